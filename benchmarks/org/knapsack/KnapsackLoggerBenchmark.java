@@ -0,0 +1,120 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.knapsack.benchmarks.SyntheticFramework;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogService;
+
+/**
+ * Formatting and printing of log entries.  stdout is replaced by a stream that discards its input, so 
+ * that the cost of the console is not measured.
+ * 
+ * @author kgilmer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KnapsackLoggerBenchmark {
+	
+	private Bundle bundle;
+	private Exception exception;
+	private PrintStream stdout;
+	
+	/**
+	 * Per thread buffer, as used by the logger.
+	 */
+	@State(Scope.Thread)
+	public static class Buffer {
+		private final StringBuilder sb = new StringBuilder(256);
+	}
+	
+	/**
+	 * Replace stdout and create the logged bundle.
+	 */
+	@Setup
+	public void setup() {
+		bundle = new SyntheticFramework(16).getBundle(12);
+		exception = new IllegalStateException("Benchmark exception");
+		
+		stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+	}
+	
+	/**
+	 * Restore stdout.
+	 */
+	@TearDown
+	public void tearDown() {
+		System.setOut(stdout);
+	}
+	
+	@Benchmark
+	public int format(Buffer buffer) {
+		buffer.sb.setLength(0);
+		KnapsackLogger.format(buffer.sb, System.currentTimeMillis(), bundle, LogService.LOG_INFO, "Bundle started.", null);
+		
+		return buffer.sb.length();
+	}
+	
+	@Benchmark
+	public int formatWithException(Buffer buffer) {
+		buffer.sb.setLength(0);
+		KnapsackLogger.format(buffer.sb, System.currentTimeMillis(), bundle, LogService.LOG_ERROR, "Bundle failed.", exception);
+		
+		return buffer.sb.length();
+	}
+	
+	@Benchmark
+	public void doKnapsackLog() {
+		KnapsackLogger.doKnapsackLog(bundle, null, LogService.LOG_INFO, "Bundle started.", null);
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public void doKnapsackLogConcurrent() {
+		KnapsackLogger.doKnapsackLog(bundle, null, LogService.LOG_INFO, "Bundle started.", null);
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Substitution of ${variables} in property values, as done for every value of felix.properties and 
+ * the knapsack property files at startup.
+ * 
+ * @author kgilmer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadPropertiesBenchmark {
+	
+	@Param({
+		"org.apache.felix.framework.cache", 
+		"${org.knapsack.rootDir}/bundle", 
+		"${org.knapsack.rootDir}/${benchmark.a}/${benchmark.b}/${benchmark.c}"})
+	private String value;
+	
+	/**
+	 * Define the variables used by the values.
+	 */
+	@Setup
+	public void setup() {
+		System.setProperty(ConfigurationConstants.CONFIG_KEY_ROOT_DIR, "/opt/knapsack");
+		System.setProperty("benchmark.a", "a");
+		System.setProperty("benchmark.b", "b");
+		System.setProperty("benchmark.c", "c");
+	}
+	
+	@Benchmark
+	public String evalSubsitutions() throws IOException {
+		return LoadPropertiesFunction.evalSubsitutions(value);
+	}
+}
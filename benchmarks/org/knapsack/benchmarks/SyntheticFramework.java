@@ -0,0 +1,194 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Random;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+/**
+ * A framework of N bundles for benchmarks, without Felix.  
+ * 
+ * Bundle 0 is the system bundle.  Every other bundle i exports the packages org.example.b&lt;i&gt;.api and 
+ * org.example.b&lt;i&gt;.spi and imports the api package of up to three bundles installed before it.  
+ * Imports are picked from a fixed seed, so a given N always produces the same framework.
+ * 
+ * @author kgilmer
+ *
+ */
+public final class SyntheticFramework {
+	/**
+	 * Seed of the import graph.
+	 */
+	public static final long SEED = 42;
+	
+	private static final int IMPORTS_PER_BUNDLE = 3;
+	private static final long LAST_MODIFIED = 1300000000000L;
+	
+	private final Bundle[] bundles;
+	private final BundleContext context;
+
+	/**
+	 * @param bundleCount number of bundles, including the system bundle.
+	 */
+	public SyntheticFramework(int bundleCount) {
+		Random random = new Random(SEED);
+		
+		bundles = new Bundle[Math.max(1, bundleCount)];
+		bundles[0] = createBundle(0, "org.apache.felix.framework", "3.0.9", "org.osgi.framework;version=\"1.5\"", null);
+		
+		for (int i = 1; i < bundles.length; ++i) {
+			StringBuilder imports = new StringBuilder("org.osgi.framework;version=\"[1.5,2.0)\"");
+			
+			for (int j = 0; j < IMPORTS_PER_BUNDLE && i > 1; ++j) {
+				int provider = 1 + random.nextInt(i - 1);
+				imports.append(',').append(getApiPackage(provider)).append(";version=\"[1.0,2.0)\"");
+			}
+			
+			String exports = getApiPackage(i) + ";version=\"1.0." + i + "\"," 
+					+ "org.example.b" + i + ".spi;version=\"1.0." + i + "\";uses:=\"" + getApiPackage(i) + "\"";
+			
+			bundles[i] = createBundle(i, "org.example.bundle" + i + ";singleton:=true", "1.0." + i, exports, imports.toString());
+		}
+		
+		context = (BundleContext) Proxy.newProxyInstance(BundleContext.class.getClassLoader(), 
+				new Class[] { BundleContext.class }, new InvocationHandler() {
+			
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				
+				if (name.equals("getBundles"))
+					return bundles.clone();
+				if (name.equals("getBundle"))
+					return args == null ? bundles[0] : getBundle((Long) args[0]);
+				if (name.equals("getProperty"))
+					return System.getProperty((String) args[0]);
+				
+				return handleObjectMethod(proxy, method, args, "BundleContext");
+			}
+		});
+	}
+	
+	/**
+	 * @param i bundle id
+	 * @return name of the api package exported by bundle i.
+	 */
+	public static String getApiPackage(int i) {
+		return "org.example.b" + i + ".api";
+	}
+	
+	/**
+	 * @return all bundles, the system bundle first.
+	 */
+	public Bundle[] getBundles() {
+		return bundles;
+	}
+	
+	/**
+	 * @param id
+	 * @return bundle with id, or null.
+	 */
+	public Bundle getBundle(long id) {
+		return id >= 0 && id < bundles.length ? bundles[(int) id] : null;
+	}
+	
+	/**
+	 * @return A context that returns the bundles of the framework.  Listeners are accepted and never called.
+	 */
+	public BundleContext getContext() {
+		return context;
+	}
+
+	/**
+	 * @param id
+	 * @param symbolicName
+	 * @param version
+	 * @param exports
+	 * @param imports
+	 * @return A bundle with the given headers.
+	 */
+	private static Bundle createBundle(final long id, String symbolicName, String version, String exports, String imports) {
+		final Dictionary<String, String> headers = new Hashtable<String, String>();
+		
+		headers.put("Bundle-SymbolicName", symbolicName);
+		headers.put("Bundle-Name", "Example bundle " + id);
+		headers.put("Bundle-Version", version);
+		headers.put("Export-Package", exports);
+		if (imports != null)
+			headers.put("Import-Package", imports);
+		
+		final String location = "file:///bundle/example" + id + ".jar";
+		
+		return (Bundle) Proxy.newProxyInstance(Bundle.class.getClassLoader(), new Class[] { Bundle.class }, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				
+				if (name.equals("getBundleId"))
+					return id;
+				if (name.equals("getHeaders"))
+					return headers;
+				if (name.equals("getSymbolicName"))
+					return headers.get("Bundle-SymbolicName").split(";")[0];
+				if (name.equals("getLocation"))
+					return location;
+				if (name.equals("getState"))
+					return Bundle.ACTIVE;
+				if (name.equals("getLastModified"))
+					return LAST_MODIFIED;
+				
+				return handleObjectMethod(proxy, method, args, "Bundle " + id);
+			}
+		});
+	}
+	
+	/**
+	 * @param proxy
+	 * @param method
+	 * @param args
+	 * @param label
+	 * @return result of the Object methods, or the default value of the return type for other methods.
+	 */
+	private static Object handleObjectMethod(Object proxy, Method method, Object[] args, String label) {
+		String name = method.getName();
+		
+		if (name.equals("hashCode"))
+			return System.identityHashCode(proxy);
+		if (name.equals("equals"))
+			return proxy == args[0];
+		if (name.equals("toString"))
+			return label;
+		
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class)
+			return false;
+		if (type == int.class)
+			return 0;
+		if (type == long.class)
+			return 0L;
+		
+		return null;
+	}
+}
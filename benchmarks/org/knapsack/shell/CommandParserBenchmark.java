@@ -0,0 +1,79 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.shell;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.knapsack.benchmarks.SyntheticFramework;
+import org.knapsack.shell.pub.IKnapsackCommand;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of shell command lines as received from the shell scripts.
+ * 
+ * @author kgilmer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParserBenchmark {
+	
+	@Param({
+		"bundles",
+		"services -b -d -p",
+		"log -l warning -i 12 -s 10m -n 20",
+		"headers \"quoted argument with spaces\" 12"})
+	private String commandLine;
+	
+	private CommandParser parser;
+	
+	/**
+	 * Create a parser for a synthetic framework.
+	 * 
+	 * @throws IOException
+	 */
+	@Setup
+	public void setup() throws IOException {
+		parser = new CommandParser(new SyntheticFramework(1).getContext(), null);
+	}
+	
+	@Benchmark
+	public List<String> parseArguments() throws IOException {
+		return parser.parseArguments(commandLine);
+	}
+	
+	@Benchmark
+	public IKnapsackCommand getCommand() {
+		return parser.getCommand(commandLine);
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.shell.commands;
+
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.knapsack.benchmarks.SyntheticFramework;
+import org.knapsack.shell.commands.PackageIndex.Entry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+
+/**
+ * Lookup of the providers and users of a package, as done by 'packages &lt;package&gt;', in a synthetic 
+ * framework.  headerScan measures the same lookup by parsing the headers of every bundle, as done 
+ * without the index.
+ * 
+ * @author kgilmer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PackagesBenchmark {
+	
+	@Param({"100", "1000"})
+	private int bundles;
+	
+	private SyntheticFramework framework;
+	private PackageIndex index;
+	private PackagesCommand command;
+	private String pkg;
+	private Writer out;
+	
+	/**
+	 * Create the framework, the index and the command.
+	 * 
+	 * @throws Exception
+	 */
+	@Setup
+	public void setup() throws Exception {
+		framework = new SyntheticFramework(bundles);
+		index = PackageIndex.open(framework.getContext());
+		pkg = SyntheticFramework.getApiPackage(bundles / 2);
+		
+		command = new PackagesCommand();
+		command.initialize(Arrays.asList(pkg), framework.getContext());
+		
+		out = new Writer() {
+			@Override
+			public void write(char[] cbuf, int off, int len) {
+			}
+			
+			@Override
+			public void flush() {
+			}
+			
+			@Override
+			public void close() {
+			}
+		};
+	}
+	
+	@Benchmark
+	public int indexLookup() {
+		return index.getExporters(pkg).size() + index.getImporters(pkg).size();
+	}
+	
+	@Benchmark
+	public void packagesCommand() throws Exception {
+		command.execute(out);
+	}
+	
+	@Benchmark
+	public int headerScan() {
+		int count = 0;
+		
+		for (Bundle b : framework.getContext().getBundles()) {
+			count += count(b.getHeaders().get("Export-Package"));
+			count += count(b.getHeaders().get("Import-Package"));
+		}
+		
+		return count;
+	}
+	
+	@Benchmark
+	public List<Entry> indexBuild() {
+		return PackageIndex.open(framework.getContext()).getExporters(pkg);
+	}
+
+	/**
+	 * @param header
+	 * @return number of clauses of the header naming the package.
+	 */
+	private int count(Object header) {
+		int count = 0;
+		
+		if (header != null)
+			for (ManifestHeader.Clause c : ManifestHeader.parse(header.toString()))
+				if (c.getPaths().contains(pkg))
+					count++;
+		
+		return count;
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * ApplierBenchmark.java - JMH benchmarks of Applier, Pipeline and ParallelApplier.
+ * See https://github.com/kgilmer/Sprinkles
+ * Released into the public domain.
+ */
+package org.sprinkles;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sprinkles.Applier.CombineFn;
+import org.sprinkles.Applier.Fn;
+import org.sprinkles.Applier.FoldFn;
+
+/**
+ * Map, fold and find over the input shapes knapsack uses: arrays, RandomAccess lists, linked 
+ * collections that must be iterated, and nested collections.  The match of find() is the last element, 
+ * so every element is visited.
+ * 
+ * @author kgilmer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApplierBenchmark {
+	
+	private static final Fn<String, String> NON_EMPTY_FN = new Fn<String, String>() {
+		@Override
+		public String apply(String input) {
+			return input.length() > 0 ? input : null;
+		}
+	};
+	
+	private static final FoldFn<String, Integer> LENGTH_FN = new FoldFn<String, Integer>() {
+		@Override
+		public Integer apply(String input, Integer previousOutput) {
+			return (previousOutput == null ? 0 : previousOutput) + input.length();
+		}
+	};
+	
+	private static final CombineFn<Integer> SUM_FN = new CombineFn<Integer>() {
+		@Override
+		public Integer apply(Integer left, Integer right) {
+			return (left == null ? 0 : left) + (right == null ? 0 : right);
+		}
+	};
+	
+	@Param({"16", "1024", "65536"})
+	private int size;
+	
+	private String[] array;
+	private List<String> list;
+	private Collection<String> linked;
+	private List<List<String>> nested;
+	private Fn<String, String> lastFn;
+	
+	/**
+	 * Create the inputs.
+	 */
+	@Setup
+	public void setup() {
+		array = new String[size];
+		for (int i = 0; i < size; ++i)
+			array[i] = "element" + i;
+		
+		list = new ArrayList<String>(size);
+		linked = new LinkedList<String>();
+		nested = new ArrayList<List<String>>();
+		
+		for (int i = 0; i < size; ++i) {
+			list.add(array[i]);
+			linked.add(array[i]);
+			
+			if (i % 16 == 0)
+				nested.add(new ArrayList<String>(16));
+			nested.get(nested.size() - 1).add(array[i]);
+		}
+		
+		final String last = array[size - 1];
+		lastFn = new Fn<String, String>() {
+			@Override
+			public String apply(String input) {
+				return input == last ? input : null;
+			}
+		};
+	}
+	
+	@Benchmark
+	public Collection<String> mapArray() {
+		return Applier.map(array, NON_EMPTY_FN);
+	}
+	
+	@Benchmark
+	public Collection<String> mapRandomAccessList() {
+		return Applier.map(list, NON_EMPTY_FN);
+	}
+	
+	@Benchmark
+	public Collection<String> mapLinkedCollection() {
+		return Applier.map(linked, NON_EMPTY_FN);
+	}
+	
+	@Benchmark
+	public Collection<String> mapNested() {
+		return Applier.map(nested, NON_EMPTY_FN);
+	}
+	
+	@Benchmark
+	public Integer foldArray() {
+		return Applier.fold(array, LENGTH_FN);
+	}
+	
+	@Benchmark
+	public Integer foldLinkedCollection() {
+		return Applier.fold(linked, LENGTH_FN);
+	}
+	
+	@Benchmark
+	public String findArray() {
+		return Applier.find(array, lastFn);
+	}
+	
+	@Benchmark
+	public String findRandomAccessList() {
+		return Applier.find(list, lastFn);
+	}
+	
+	@Benchmark
+	public String findLinkedCollection() {
+		return Applier.find(linked, lastFn);
+	}
+	
+	@Benchmark
+	public List<String> pipelineMap() {
+		return Pipeline.<String>from(list).map(NON_EMPTY_FN).toList();
+	}
+	
+	@Benchmark
+	public String pipelineFirst() {
+		return Pipeline.<String>from(list).map(NON_EMPTY_FN).first();
+	}
+	
+	@Benchmark
+	public Collection<String> parallelMap() {
+		return ParallelApplier.map(list, NON_EMPTY_FN);
+	}
+	
+	@Benchmark
+	public Integer parallelFold() {
+		return ParallelApplier.fold(list, LENGTH_FN, SUM_FN);
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * FileFunctionsBenchmark.java - JMH benchmarks of directory walks.
+ * See https://github.com/kgilmer/Sprinkles
+ * Released into the public domain.
+ */
+package org.sprinkles.functions;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sprinkles.Pipeline;
+
+/**
+ * Walks of a generated directory tree, as done for bundle directories: every directory has four 
+ * subdirectories down to the given depth, and a number of files.
+ * 
+ * @author kgilmer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileFunctionsBenchmark {
+	private static final int SUBDIRECTORIES = 4;
+	
+	@Param({"1", "3"})
+	private int depth;
+	
+	@Param({"10", "100"})
+	private int files;
+	
+	private File root;
+	
+	/**
+	 * Create the directory tree.
+	 * 
+	 * @throws IOException
+	 */
+	@Setup
+	public void setup() throws IOException {
+		root = File.createTempFile("knapsack-walk", "");
+		if (!root.delete() || !root.mkdir())
+			throw new IOException("Unable to create " + root);
+		
+		populate(root, depth);
+	}
+	
+	/**
+	 * Delete the directory tree.
+	 */
+	@TearDown
+	public void tearDown() {
+		delete(root);
+	}
+	
+	@Benchmark
+	public int getFiles() {
+		return FileFunctions.GET_FILES_FN.apply(root).size();
+	}
+	
+	@Benchmark
+	public int walkFiles() {
+		int count = 0;
+		
+		for (File f : FileFunctions.WALK_FILES_FN.apply(root))
+			if (f != null)
+				count++;
+		
+		return count;
+	}
+	
+	@Benchmark
+	public File walkFirstFile() {
+		return Pipeline.<File>from(root).expand(FileFunctions.WALK_FILES_FN).first();
+	}
+	
+	/**
+	 * @param dir
+	 * @param level
+	 * @throws IOException
+	 */
+	private void populate(File dir, int level) throws IOException {
+		for (int i = 0; i < files; ++i)
+			if (!new File(dir, "bundle" + i + ".jar").createNewFile())
+				throw new IOException("Unable to create file in " + dir);
+		
+		if (level == 0)
+			return;
+		
+		for (int i = 0; i < SUBDIRECTORIES; ++i) {
+			File child = new File(dir, "dir" + i);
+			if (!child.mkdir())
+				throw new IOException("Unable to create " + child);
+			
+			populate(child, level - 1);
+		}
+	}
+	
+	/**
+	 * @param f
+	 */
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		
+		if (children != null)
+			for (File c : children)
+				delete(c);
+		
+		f.delete();
+	}
+}
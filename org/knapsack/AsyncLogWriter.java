@@ -0,0 +1,239 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogService;
+
+/**
+ * Hands log entries from the calling thread to a single writer thread through a bounded ring buffer.  
+ * 
+ * The slots of the ring are allocated once and reused, and the writer thread formats every entry 
+ * into the same buffer.  When the ring is full the calling thread either waits for a free slot or 
+ * the entry is dropped and counted, depending on the policy.
+ * 
+ * @author kgilmer
+ *
+ */
+final class AsyncLogWriter implements Runnable {
+	/**
+	 * Wait for a free slot when the ring is full.
+	 */
+	static final String POLICY_BLOCK = "block";
+	
+	/**
+	 * Drop the entry when the ring is full.
+	 */
+	static final String POLICY_DROP = "drop";
+	
+	/**
+	 * Default number of entries in the ring.
+	 */
+	static final int DEFAULT_CAPACITY = 1024;
+	
+	private static final long CLOSE_TIMEOUT = 2000;
+	
+	private final Slot[] ring;
+	private final boolean block;
+	private final KnapsackLogger logger;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final StringBuilder buffer = new StringBuilder(256);
+	private final Thread thread;
+	
+	private int head;
+	private int count;
+	private long dropped;
+	private boolean closed;
+
+	/**
+	 * @param capacity number of entries that may wait to be written
+	 * @param block true if the calling thread waits when the ring is full, false if the entry is dropped
+	 * @param logger logger that writes the formatted entries
+	 */
+	AsyncLogWriter(int capacity, boolean block, KnapsackLogger logger) {
+		this.ring = new Slot[capacity < 1 ? 1 : capacity];
+		for (int i = 0; i < ring.length; ++i)
+			ring[i] = new Slot();
+		
+		this.block = block;
+		this.logger = logger;
+		this.thread = new Thread(this, "Knapsack Log Writer");
+		thread.setDaemon(true);
+	}
+	
+	/**
+	 * Start the writer thread.
+	 */
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Add an entry to the ring.
+	 * 
+	 * @param time
+	 * @param bundle
+	 * @param level
+	 * @param msg
+	 * @param throwable
+	 * @return false if the writer is closed and the entry must be written by the caller.
+	 */
+	boolean log(long time, Bundle bundle, int level, String msg, Throwable throwable) {
+		lock.lock();
+		try {
+			while (count == ring.length && !closed) {
+				if (!block) {
+					dropped++;
+					return true;
+				}
+				
+				notFull.awaitUninterruptibly();
+			}
+			
+			if (closed)
+				return false;
+			
+			Slot s = ring[(head + count) % ring.length];
+			s.time = time;
+			s.bundle = bundle;
+			s.level = level;
+			s.msg = msg;
+			s.throwable = throwable;
+			
+			if (count++ == 0)
+				notEmpty.signal();
+			
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Stop accepting entries and wait for the entries in the ring to be written.
+	 */
+	void close() {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signal();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		
+		try {
+			thread.join(CLOSE_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		Slot local = new Slot();
+		
+		while (true) {
+			long lost;
+			
+			lock.lock();
+			try {
+				while (count == 0 && !closed)
+					notEmpty.awaitUninterruptibly();
+				
+				if (count == 0)
+					return;
+				
+				// Copy out of the ring so that formatting and I/O happen without the lock.
+				Slot s = ring[head];
+				local.copy(s);
+				s.clear();
+				head = (head + 1) % ring.length;
+				count--;
+				notFull.signal();
+				
+				lost = dropped;
+				dropped = 0;
+			} finally {
+				lock.unlock();
+			}
+			
+			if (lost > 0) 
+				write(local.time, null, LogService.LOG_WARNING, lost + " log entries dropped, the log ring is full.", null);
+			
+			write(local.time, local.bundle, local.level, local.msg, local.throwable);
+			local.clear();
+		}
+	}
+
+	/**
+	 * @param time
+	 * @param bundle
+	 * @param level
+	 * @param msg
+	 * @param throwable
+	 */
+	private void write(long time, Bundle bundle, int level, String msg, Throwable throwable) {
+		buffer.setLength(0);
+		KnapsackLogger.format(buffer, time, bundle, level, msg, throwable);
+		logger.write(buffer);
+	}
+	
+	/**
+	 * @param policy
+	 * @return true if policy is the block policy or undefined.
+	 */
+	static boolean isBlockPolicy(String policy) {
+		return policy == null || !policy.trim().equalsIgnoreCase(POLICY_DROP);
+	}
+
+	/**
+	 * A reusable entry of the ring.
+	 */
+	private static final class Slot {
+		private long time;
+		private Bundle bundle;
+		private int level;
+		private String msg;
+		private Throwable throwable;
+		
+		/**
+		 * @param s
+		 */
+		private void copy(Slot s) {
+			time = s.time;
+			bundle = s.bundle;
+			level = s.level;
+			msg = s.msg;
+			throwable = s.throwable;
+		}
+		
+		/**
+		 * Release references held by the slot.
+		 */
+		private void clear() {
+			bundle = null;
+			msg = null;
+			throwable = null;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * Caches the name, version and label of bundles for the logger and the shell, so that the bundle headers are
+ * not read for every line printed.  An entry is recomputed when the last modified time of the bundle changes, 
+ * and dropped when the bundle is updated or uninstalled.
+ * 
+ * @author kgilmer
+ *
+ */
+public final class BundleMetadataCache implements SynchronousBundleListener {
+	private static final BundleMetadataCache instance = new BundleMetadataCache();
+
+	private final ConcurrentMap<Long, BundleMetadata> entries = new ConcurrentHashMap<Long, BundleMetadata>();
+
+	/**
+	 * Single instance.
+	 */
+	private BundleMetadataCache() {
+	}
+
+	/**
+	 * @return the cache of this runtime.
+	 */
+	public static BundleMetadataCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @param b bundle
+	 * @return The metadata of the bundle.
+	 */
+	public BundleMetadata get(Bundle b) {
+		Long id = b.getBundleId();
+		BundleMetadata m = entries.get(id);
+
+		if (m == null || m.lastModified != b.getLastModified()) {
+			m = new BundleMetadata(b);
+			entries.put(id, m);
+		}
+
+		return m;
+	}
+
+	@Override
+	public void bundleChanged(BundleEvent event) {
+		switch (event.getType()) {
+		case BundleEvent.UPDATED:
+		case BundleEvent.UNINSTALLED:
+			entries.remove(event.getBundle().getBundleId());
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Metadata of a bundle, read from its headers once.
+	 */
+	public static final class BundleMetadata {
+		private final long id;
+		private final long lastModified;
+		private final String name;
+		private final String version;
+		private final String label;
+		private final String location;
+
+		/**
+		 * @param b
+		 */
+		private BundleMetadata(Bundle b) {
+			this.id = b.getBundleId();
+			this.lastModified = b.getLastModified();
+			this.location = b.getLocation();
+
+			String name = (String) b.getHeaders().get("Bundle-SymbolicName");
+
+			if (name == null)
+				name = (String) b.getHeaders().get("Bundle-Name");
+
+			if (name == null)
+				name = "Undefined";
+
+			if (name.indexOf(";") > -1)
+				name = name.split(";")[0];
+
+			String version = (String) b.getHeaders().get("Bundle-Version");
+
+			if (version == null)
+				version = "";
+
+			this.name = name;
+			this.version = version;
+
+			StringBuilder sb = new StringBuilder();
+			sb.append("[");
+			if (id < 10)
+				sb.append(" ");
+			sb.append(id);
+			sb.append("]");
+			sb.append(name);
+			sb.append(" (");
+			sb.append(version);
+			sb.append(")");
+			this.label = sb.toString();
+		}
+
+		/**
+		 * @return The bundle id.
+		 */
+		public long getId() {
+			return id;
+		}
+
+		/**
+		 * @return The symbolic name of the bundle, or its name if it has no symbolic name.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return The bundle version as defined in the manifest, or an empty String.
+		 */
+		public String getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return The id, name and version of the bundle, as printed by the shell and the logger.
+		 */
+		public String getLabel() {
+			return label;
+		}
+
+		/**
+		 * @return The location the bundle was installed from.
+		 */
+		public String getLocation() {
+			return location;
+		}
+	}
+}
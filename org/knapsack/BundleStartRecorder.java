@@ -0,0 +1,63 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.knapsack.StartupTimeline.Span;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * Records the start of each bundle in the startup timeline, from the STARTING event of the bundle until it has
+ * started or failed to.  Synchronous events are delivered on the thread that starts the bundle, so the span covers
+ * the bundle activator whether the bundle is started by knapsack or by the framework as the start level is raised.
+ * 
+ * @author kgilmer
+ *
+ */
+final class BundleStartRecorder implements SynchronousBundleListener {
+	private final StartupTimeline timeline;
+	private final ConcurrentMap<Long, Span> starting = new ConcurrentHashMap<Long, Span>();
+
+	/**
+	 * @param timeline timeline spans are recorded in
+	 */
+	public BundleStartRecorder(StartupTimeline timeline) {
+		this.timeline = timeline;
+	}
+
+	@Override
+	public void bundleChanged(BundleEvent event) {
+		switch (event.getType()) {
+		case BundleEvent.STARTING:
+			Span span = timeline.begin(StartupTimeline.START, BundleMetadataCache.getInstance().get(event.getBundle()).getName());
+			
+			if (span != null)
+				starting.put(event.getBundle().getBundleId(), span);
+			break;
+		case BundleEvent.STARTED:
+		case BundleEvent.STOPPED:
+			// A bundle whose activator fails is stopped without having started.
+			timeline.end(starting.remove(event.getBundle().getBundleId()));
+			break;
+		default:
+			break;
+		}
+	}
+}
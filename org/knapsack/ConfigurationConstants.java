@@ -41,6 +41,61 @@ public class ConfigurationConstants extends Properties {
 	 */
 	public static final String CONFIG_KEY_LOG_STDOUT = "org.knapsack.log.stdout";
 
+	/**
+	 * If true, log events are written to stdout by a background thread instead of the thread that logs them.
+	 */
+	public static final String CONFIG_KEY_LOG_ASYNC = "org.knapsack.log.async";
+
+	/**
+	 * Number of log events that may wait to be written by the background thread.
+	 */
+	public static final String CONFIG_KEY_LOG_ASYNC_CAPACITY = "org.knapsack.log.async.capacity";
+
+	/**
+	 * What happens to a log event when the background writer is full: 'block' waits for it, 'drop' discards the event.
+	 */
+	public static final String CONFIG_KEY_LOG_ASYNC_POLICY = "org.knapsack.log.async.policy";
+
+	/**
+	 * Number of the latest log events kept for the log command.  0 disables the history, and the log command reads the LogReader service.
+	 */
+	public static final String CONFIG_KEY_LOG_RING_SIZE = "org.knapsack.log.ring.size";
+
+	/**
+	 * If set, log events are also written to this file.  A relative path is relative to the root directory.
+	 */
+	public static final String CONFIG_KEY_LOG_FILE = "org.knapsack.log.file";
+
+	/**
+	 * Size in bytes at which the log file is rolled.  0 disables size-based rolling.
+	 */
+	public static final String CONFIG_KEY_LOG_FILE_MAX_SIZE = "org.knapsack.log.file.maxSize";
+
+	/**
+	 * Minutes after which the log file is rolled, on boundaries of local time.  0 disables time-based rolling.
+	 */
+	public static final String CONFIG_KEY_LOG_FILE_ROLL_INTERVAL = "org.knapsack.log.file.rollInterval";
+
+	/**
+	 * Number of rolled log files that are kept.
+	 */
+	public static final String CONFIG_KEY_LOG_FILE_MAX_FILES = "org.knapsack.log.file.maxFiles";
+
+	/**
+	 * Size in bytes of the buffer log events are collected in before being written to the log file.
+	 */
+	public static final String CONFIG_KEY_LOG_FILE_BUFFER_SIZE = "org.knapsack.log.file.bufferSize";
+
+	/**
+	 * Milliseconds after which buffered log events are written to the log file.
+	 */
+	public static final String CONFIG_KEY_LOG_FILE_FLUSH_INTERVAL = "org.knapsack.log.file.flushInterval";
+
+	/**
+	 * If true, rolled log files are compressed with gzip.
+	 */
+	public static final String CONFIG_KEY_LOG_FILE_COMPRESS = "org.knapsack.log.file.compress";
+
 	/**
 	 * Name of knapsack's configuration file
 	 */
@@ -66,6 +121,38 @@ public class ConfigurationConstants extends Properties {
 	 */
 	public static final String CONFIG_KEY_BUNDLE_DIRS = "org.knapsack.bundleDirs";
 	
+	/**
+	 * If true, bundles in each bundle directory are assigned a start level by the position of the directory in the list of 
+	 * bundle directories, starting at 1.  A bundle can override this with the Knapsack-StartLevel manifest header.
+	 */
+	public static final String CONFIG_KEY_DIRECTORY_START_LEVELS = "org.knapsack.bundleDirs.startLevels";
+	
+	/**
+	 * If true, bundle directories are watched and changes are applied without an explicit update.
+	 */
+	public static final String CONFIG_KEY_WATCH_BUNDLE_DIRS = "org.knapsack.bundleDirs.watch";
+	
+	/**
+	 * Time in milliseconds between checks of the bundle directories when watching is enabled.
+	 */
+	public static final String CONFIG_KEY_WATCH_INTERVAL = "org.knapsack.bundleDirs.watch.interval";
+	
+	/**
+	 * Number of threads used to install bundles from a bundle directory.  If 1 or less, bundles are installed serially.
+	 */
+	public static final String CONFIG_KEY_INSTALL_THREADS = "org.knapsack.install.threads";
+	
+	/**
+	 * Number of threads used to start the bundles of a bundle directory.  If greater than 1, bundles that do not 
+	 * import packages from each other are started concurrently.
+	 */
+	public static final String CONFIG_KEY_START_THREADS = "org.knapsack.start.threads";
+	
+	/**
+	 * Time in milliseconds after which a bundle being started concurrently is reported as slow and its dependents are started.
+	 */
+	public static final String CONFIG_KEY_START_TIMEOUT = "org.knapsack.start.timeout";
+	
 	/**
 	 * Filename for bundle directory
 	 */
@@ -77,6 +164,16 @@ public class ConfigurationConstants extends Properties {
 	
 	public final static String BASE_SCRIPT_FILENAME = ".knapsack-command.sh";
 	
+	/**
+	 * If set, the startup timeline is written to this file once boot has finished.  A relative path is relative to the root directory.
+	 */
+	public static final String CONFIG_KEY_STARTUP_REPORT = "org.knapsack.startup.report";
+	
+	/**
+	 * Filename in the root directory where the state of installed bundle jars is stored between sessions.
+	 */
+	public static final String BUNDLE_INDEX_FILENAME = ".bundle-index";
+	
 	/**
 	 * Directory for scripts
 	 */
@@ -95,6 +192,31 @@ public class ConfigurationConstants extends Properties {
 	 */
 	public static final String CONFIG_DISABLE_SCRIPTS = "org.knapsack.scripts.disable";
 
+	/**
+	 * If true, the shell creates the control and info pipes and the scripts send commands through them.
+	 */
+	public static final String CONFIG_KEY_SHELL_PIPES = "org.knapsack.shell.pipes";
+
+	/**
+	 * Output format of shell commands that do not give the --format option: text (default), json or line.
+	 */
+	public static final String CONFIG_KEY_SHELL_FORMAT = "org.knapsack.shell.format";
+
+	/**
+	 * If true, the shell also listens on a UNIX domain socket in the root directory.  Requires Java 16 or later.
+	 */
+	public static final String CONFIG_KEY_SHELL_UNIX_SOCKET = "org.knapsack.shell.unixSocket";
+
+	/**
+	 * Native command to be called with the path of the UNIX domain socket to proxy shell command to knapsack and get response.
+	 */
+	public static final String CONFIG_KEY_SHELL_UNIX_COMMAND = "org.knapsack.shell.unixCommand";
+
+	/**
+	 * Filename in the root directory of the UNIX domain socket the shell listens on.
+	 */
+	public static final String SHELL_SOCKET_FILENAME = ".shell-socket";
+
 	/**
 	 * If true, a remote client can execute shell commands.  
 	 */
@@ -115,6 +237,26 @@ public class ConfigurationConstants extends Properties {
 	 */
 	public static final String CONFIG_KEY_COMMAND_PREFIX = "org.knapsack.shell.command.prefix";
 
+	/**
+	 * Number of shell connections that are served at the same time.
+	 */
+	public static final String CONFIG_KEY_SHELL_THREADS = "org.knapsack.shell.threads";
+
+	/**
+	 * Number of shell connections that may wait to be served before new connections are refused.
+	 */
+	public static final String CONFIG_KEY_SHELL_BACKLOG = "org.knapsack.shell.backlog";
+
+	/**
+	 * Number of sessions the blocking shell server serves at the same time, on threads of their own.
+	 */
+	public static final String CONFIG_KEY_SHELL_SESSIONS = "org.knapsack.shell.sessions";
+
+	/**
+	 * If true, the shell serves all connections from one thread with a NIO Selector instead of a blocking accept loop.
+	 */
+	public static final String CONFIG_KEY_SHELL_SELECTOR = "org.knapsack.shell.selector";
+
     /**
      * Where scripts are stored in the Jar.
      */
@@ -213,10 +213,13 @@ public class FSHelper {
 	 * @param scriptDir
 	 * @param shellPort
 	 * @param command
+	 * @param controlPipe named pipe that commands are written to, or null.
+	 * @param unixSocket UNIX domain socket the shell listens on, or null.
+	 * @param unixCommand command that sends stdin to the UNIX domain socket given as its argument, or null.
 	 * @throws IOException
 	 * @throws URISyntaxException
 	 */
-	public static void copyScripts(File scriptDir, int shellPort, String command) throws IOException, URISyntaxException {
+	public static void copyScripts(File scriptDir, int shellPort, String command, File controlPipe, File unixSocket, String unixCommand) throws IOException, URISyntaxException {
 		if (!scriptDir.exists())
 			if (!scriptDir.mkdirs())
 				throw new IOException("Unable to create directories: " + scriptDir);
@@ -237,6 +240,22 @@ public class FSHelper {
 			sb.append(command);
 			sb.append("\"");
 			sb.append(StringConstants.CRLF);
+			if (controlPipe != null) {
+				sb.append("KNAPSACK_CONTROL=\"");
+				sb.append(controlPipe.getAbsolutePath());
+				sb.append("\"");
+				sb.append(StringConstants.CRLF);
+			}
+			if (unixSocket != null && unixCommand != null) {
+				sb.append("KNAPSACK_SOCKET=\"");
+				sb.append(unixSocket.getAbsolutePath());
+				sb.append("\"");
+				sb.append(StringConstants.CRLF);
+				sb.append("UNIX_COMMAND=\"");
+				sb.append(unixCommand);
+				sb.append("\"");
+				sb.append(StringConstants.CRLF);
+			}
 		
 			InputStream istream = ConfigurationConstants.class.getResourceAsStream(ConfigurationConstants.SCRIPT_RESOURCE_DIRECTORY + File.separator + ConfigurationConstants.BASE_SCRIPT_FILENAME);
 			if (istream == null)
@@ -18,11 +18,12 @@
  */
 package org.knapsack;
 
+import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.text.SimpleDateFormat;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.List;
 
 import org.knapsack.shell.StringConstants;
@@ -38,15 +39,24 @@ import org.osgi.service.log.LogReaderService;
  **/
 public class KnapsackLogger extends org.apache.felix.framework.Logger implements LogListener {
 	private static final String DEFAULT_DATE_FORMAT = "MM.dd HH:mm:ss";
-	private static SimpleDateFormat dateFormatter;
+	private static volatile TimestampFormatter timestampFormatter = new TimestampFormatter(DEFAULT_DATE_FORMAT);
+	private static final ThreadLocal<LineBuffer> lineBuffers = new ThreadLocal<LineBuffer>() {
+		@Override
+		protected LineBuffer initialValue() {
+			return new LineBuffer();
+		}
+	};
 	private boolean enabled;
 	private final List<LogReaderService> logListeners;
+	private volatile AsyncLogWriter asyncWriter;
+	private volatile RollingFileSink fileSink;
+	private volatile LogRing logRing;
 	
 	/**
 	 * @param dateFormat
 	 */
 	public KnapsackLogger(String dateFormat) {
-		dateFormatter = new SimpleDateFormat(dateFormat);
+		timestampFormatter = new TimestampFormatter(dateFormat);
 		enabled = true;
 		logListeners = new ArrayList<LogReaderService>();
 	}
@@ -60,8 +70,111 @@ public class KnapsackLogger extends org.apache.felix.framework.Logger implements
 	
 	@Override
 	protected void doLog(Bundle bundle, ServiceReference sr, int level, String msg, Throwable throwable) {
-		if (enabled)
+		if (!enabled && fileSink == null)
+			return;
+		
+		AsyncLogWriter writer = asyncWriter;
+		
+		if (writer != null && writer.log(System.currentTimeMillis(), bundle, level, msg, throwable))
+			return;
+		
+		if (fileSink == null) {
 			doKnapsackLog(bundle, sr, level, msg, throwable);
+			return;
+		}
+		
+		LineBuffer lb = lineBuffers.get();
+		lb.sb.setLength(0);
+		format(lb.sb, System.currentTimeMillis(), bundle, level, msg, throwable);
+		write(lb.sb);
+	}
+	
+	/**
+	 * Write a formatted entry to stdout, if enabled, and to the log file, if defined.
+	 * 
+	 * @param line
+	 */
+	void write(StringBuilder line) {
+		if (enabled)
+			System.out.println(line);
+		
+		RollingFileSink sink = fileSink;
+		if (sink != null)
+			try {
+				sink.write(line);
+			} catch (IOException e) {
+				System.err.println("Unable to write log file " + sink.getFile() + ": " + e.getMessage());
+			}
+	}
+	
+	/**
+	 * Also write log entries to a file.  
+	 * 
+	 * @param sink file sink, or null to stop writing to a file.
+	 */
+	synchronized void setFileSink(RollingFileSink sink) {
+		RollingFileSink old = fileSink;
+		fileSink = sink;
+		
+		if (old != null)
+			old.close();
+	}
+	
+	/**
+	 * Keep the latest entries of the LogReader services in a ring for the log command.
+	 * 
+	 * @param ring ring, or null to keep no history.
+	 */
+	public void setLogRing(LogRing ring) {
+		logRing = ring;
+	}
+	
+	/**
+	 * @return the ring of latest entries, or null if no history is kept.
+	 */
+	public LogRing getLogRing() {
+		return logRing;
+	}
+	
+	/**
+	 * @return true if log entries are written to stdout or a file.
+	 */
+	public boolean isWriting() {
+		return enabled || fileSink != null;
+	}
+	
+	/**
+	 * Write log entries from a background thread.  Entries wait in a ring of the given capacity.
+	 * 
+	 * @param capacity number of entries that may wait to be written
+	 * @param block if true a logging thread waits when the ring is full, otherwise the entry is dropped.
+	 */
+	public synchronized void setAsync(int capacity, boolean block) {
+		closeAsync();
+		
+		AsyncLogWriter writer = new AsyncLogWriter(capacity, block, this);
+		writer.start();
+		asyncWriter = writer;
+	}
+	
+	/**
+	 * Write the entries waiting to be logged and return to logging from the calling thread.  The log file, if any, is closed.
+	 */
+	public synchronized void close() {
+		closeAsync();
+		setFileSink(null);
+	}
+	
+	/**
+	 * Write the entries waiting to be logged and stop the background writer.
+	 */
+	private void closeAsync() {
+		AsyncLogWriter writer = asyncWriter;
+		
+		if (writer != null) {
+			asyncWriter = null;
+			writer.close();
+		}
 	}
 	
 	/* (non-Javadoc)
@@ -80,12 +193,25 @@ public class KnapsackLogger extends org.apache.felix.framework.Logger implements
 	 * @param throwable
 	 */
 	public static void doKnapsackLog(Bundle bundle, ServiceReference sr, int level, String msg, Throwable throwable) {
-		if (dateFormatter == null)
-			dateFormatter = new SimpleDateFormat(DEFAULT_DATE_FORMAT);
+		LineBuffer lb = lineBuffers.get();
 		
-		StringBuilder sb = new StringBuilder();
+		lb.sb.setLength(0);
+		format(lb.sb, System.currentTimeMillis(), bundle, level, msg, throwable);
 		
-		sb.append(dateFormatter.format(new Date(System.currentTimeMillis())));
+		System.out.println(lb.sb);
+	}
+	
+	/**
+	 * Format a log entry in the knapsack style.
+	 * @param sb buffer to append the entry to
+	 * @param time
+	 * @param bundle
+	 * @param level
+	 * @param msg
+	 * @param throwable
+	 */
+	static void format(StringBuilder sb, long time, Bundle bundle, int level, String msg, Throwable throwable) {
+		timestampFormatter.format(time, sb);
 		sb.append(' ');
 		getLevelLabel(level, sb);
 		sb.append(' ');
@@ -98,13 +224,12 @@ public class KnapsackLogger extends org.apache.felix.framework.Logger implements
 			sb.append(throwable.getMessage());
 			sb.append(StringConstants.CRLF);
 			
-			StringWriter sWriter = new StringWriter();
-			PrintWriter pw = new PrintWriter(sWriter);
-			throwable.printStackTrace(pw);
-			sb.append(sWriter.toString());
+			LineBuffer lb = lineBuffers.get();
+			lb.target = sb;
+			throwable.printStackTrace(lb.traceWriter);
+			lb.traceWriter.flush();
+			lb.target = null;
 		}
-		
-		System.out.println(sb.toString());
 	}
 	
 	/**
@@ -115,11 +240,7 @@ public class KnapsackLogger extends org.apache.felix.framework.Logger implements
 		if (b == null)
 			return;		
 		
-		appendId(sb, b.getBundleId());
-		getBundleName(b, sb);
-		sb.append(" (");
-		getBundleVersion(b, sb);
-		sb.append(")");	
+		sb.append(BundleMetadataCache.getInstance().get(b).getLabel());
 	}
 
 	/**
@@ -127,13 +248,7 @@ public class KnapsackLogger extends org.apache.felix.framework.Logger implements
 	 * @param sb
 	 */
 	public static void getBundleVersion(Bundle b, StringBuilder sb) {
-		String version = (String) b.getHeaders().get("Bundle-Version");
-	
-		if (version == null) {
-			version = "";
-		}
-
-		sb.append(version);		
+		sb.append(BundleMetadataCache.getInstance().get(b).getVersion());
 	}
 	
 	/**
@@ -141,33 +256,7 @@ public class KnapsackLogger extends org.apache.felix.framework.Logger implements
 	 * @param sb
 	 */
 	public static void getBundleName(Bundle b, StringBuilder sb) {
-		String name = (String) b.getHeaders().get("Bundle-SymbolicName");
-	
-		if (name == null) {
-			name = (String) b.getHeaders().get("Bundle-Name");
-		}
-	
-		if (name == null) {
-			name = "Undefined";
-		}
-	
-		if (name.indexOf(";") > -1)
-			name = name.split(";")[0];
-	
-
-		sb.append(name);		
-	}
-	
-	/**
-	 * @param sb
-	 * @param id
-	 */
-	private static void appendId(StringBuilder sb, long id) {		
-		sb.append("[");
-		if (id < 10)
-			sb.append(" ");
-		sb.append(id);
-		sb.append("]");		
+		sb.append(BundleMetadataCache.getInstance().get(b).getName());
 	}
 	
 	/**
@@ -215,13 +304,56 @@ public class KnapsackLogger extends org.apache.felix.framework.Logger implements
 	public void addLogReader(LogReaderService svc) {
 		// Add ourselves to every LogReader service available to get the
 		// superset of all log data.
-		if (!logListeners.contains(svc))
+		if (!logListeners.contains(svc)) {
+			LogRing ring = logRing;
+			
+			// Entries logged before we listen are taken from the first reader.
+			if (ring != null && ring.size() == 0) {
+				@SuppressWarnings("unchecked")
+				Enumeration<LogEntry> entries = svc.getLog();
+				List<LogEntry> history = Collections.list(entries);
+				for (int i = history.size() - 1; i >= 0; --i)
+					ring.add(history.get(i));
+			}
+			
 			svc.addLogListener(this);
+		}
+	}
+
+	/**
+	 * Buffers of a logging thread, reused for every entry it logs.
+	 */
+	private static final class LineBuffer extends Writer {
+		private final StringBuilder sb = new StringBuilder(256);
+		private final PrintWriter traceWriter = new PrintWriter(this);
+		private StringBuilder target;
+		
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			target.append(cbuf, off, len);
+		}
+		
+		@Override
+		public void write(String str, int off, int len) {
+			target.append(str, off, off + len);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
 	}
 
 	@Override
 	public void logged(LogEntry entry) {
-		if (enabled)
+		LogRing ring = logRing;
+		if (ring != null)
+			ring.add(entry);
+		
+		if (isWriting())
 			doLog(entry.getBundle(), entry.getServiceReference(), entry.getLevel(), entry.getMessage(), entry.getException());
 	}
 }
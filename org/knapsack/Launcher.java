@@ -31,6 +31,7 @@ import java.util.Random;
 
 import org.apache.felix.cm.impl.ConfigurationManager;
 import org.apache.felix.framework.FrameworkFactory;
+import org.knapsack.StartupTimeline.Span;
 import org.knapsack.init.KnapsackInitServiceImpl;
 import org.knapsack.init.pub.KnapsackInitService;
 import org.knapsack.shell.CommandParser;
@@ -45,7 +46,7 @@ import org.osgi.service.log.LogReaderService;
 import org.osgi.service.log.LogService;
 import org.osgi.util.tracker.ServiceTracker;
 import org.osgi.util.tracker.ServiceTrackerCustomizer;
-import org.sprinkles.Applier;
+import org.sprinkles.Pipeline;
 import org.sprinkles.functions.FileFunctions;
 
 /**
@@ -67,11 +68,14 @@ public class Launcher {
 
 	private static final int PORT_START = 12288;
 	private static final int MAX_PORT_RANGE = 64;
+	private static final int DEFAULT_WATCH_INTERVAL = 2000;
 
 	private static KnapsackLogger logger;
 
 	private static BundleContext context;
 
+	private static ConsoleSocketListener shell;
+
 	/**
 	 * Main entry point into knapsack.
 	 * 
@@ -96,6 +100,8 @@ public class Launcher {
 			
 		// Record boot time.
 		final long time = System.currentTimeMillis();
+		final StartupTimeline timeline = StartupTimeline.getInstance();
+		timeline.setBootTime(time);
 
 		// Create the pre-OSGi logger instance for logging outside of the OGSi
 		// context.
@@ -104,6 +110,7 @@ public class Launcher {
 		// Determine the root directory from where we run.
 		final File baseDirectory = getBaseDirectory();
 		try {
+			Span span = timeline.begin(StartupTimeline.PHASE, "properties");
 			FSHelper.validateFile(baseDirectory, true, true, false, true);
 
 			// Set initial directories
@@ -124,8 +131,22 @@ public class Launcher {
 				logger.setLogLevel(Integer.parseInt(System.getProperties().getProperty("felix.log.level")));
 			
 			logger.setLogStdout(PropertyHelper.getBoolean(ConfigurationConstants.CONFIG_KEY_LOG_STDOUT));
+			
+			int ringSize = PropertyHelper.getInt(ConfigurationConstants.CONFIG_KEY_LOG_RING_SIZE, LogRing.DEFAULT_CAPACITY);
+			if (ringSize > 0)
+				logger.setLogRing(new LogRing(ringSize));
+			
+			if (System.getProperty(ConfigurationConstants.CONFIG_KEY_LOG_FILE) != null)
+				logger.setFileSink(createLogFileSink(baseDirectory));
+			
+			if (PropertyHelper.getBoolean(ConfigurationConstants.CONFIG_KEY_LOG_ASYNC))
+				logger.setAsync(
+						PropertyHelper.getInt(ConfigurationConstants.CONFIG_KEY_LOG_ASYNC_CAPACITY, AsyncLogWriter.DEFAULT_CAPACITY), 
+						AsyncLogWriter.isBlockPolicy(System.getProperty(ConfigurationConstants.CONFIG_KEY_LOG_ASYNC_POLICY)));
+			timeline.end(span);
 
 			// Create activators that will start
+			span = timeline.begin(StartupTimeline.PHASE, "framework.init");
 			final List<BundleActivator> activators = createBundles();
 
 			// Create the Properties file used to initialize Felix
@@ -138,36 +159,67 @@ public class Launcher {
 			context = felix.getBundleContext();
 			
 			logger.setSystemBundleContext(context);
+			context.addBundleListener(BundleMetadataCache.getInstance());
+			BundleStartRecorder startRecorder = new BundleStartRecorder(timeline);
+			context.addBundleListener(startRecorder);
+			timeline.end(span);
 			
 			// LogService should now be loaded, setup logger so all log output goes to stdout
-			if (PropertyHelper.getBoolean(ConfigurationConstants.CONFIG_KEY_LOG_STDOUT)) 				
+			if (logger.isWriting() || logger.getLogRing() != null) 				
 				addLogReadersToLogger(logger, context);
 			
 			// ConfigAdmin should now be loaded, setup defaults.
+			span = timeline.begin(StartupTimeline.PHASE, "configadmin");
 			if (PropertyHelper.getBoolean(ConfigurationConstants.CONFIG_KEY_BUILTIN_CONFIGADMIN))
 				initializeConfigAdmin(felix.getBundleContext(), getConfigAdminDirectory(baseDirectory), logger);
+			timeline.end(span);
 			
 			// Create the scripts for access from the native shell.
-			ConsoleSocketListener shell = null;
+			span = timeline.begin(StartupTimeline.PHASE, "shell");
+			shell = null;
 			if (!PropertyHelper.getBoolean(ConfigurationConstants.CONFIG_DISABLE_SCRIPTS)) {
 				int port = generatePort();
 				String cmdPrefix = "";
 				if (System.getProperty(ConfigurationConstants.CONFIG_KEY_COMMAND_PREFIX) != null)
 					cmdPrefix = System.getProperty(ConfigurationConstants.CONFIG_KEY_COMMAND_PREFIX);
 				
+				File pipeDirectory = null;
+				if (PropertyHelper.getBoolean(ConfigurationConstants.CONFIG_KEY_SHELL_PIPES))
+					pipeDirectory = baseDirectory;
+				
+				File unixSocket = null;
+				if (PropertyHelper.getBoolean(ConfigurationConstants.CONFIG_KEY_SHELL_UNIX_SOCKET))
+					unixSocket = new File(baseDirectory, ConfigurationConstants.SHELL_SOCKET_FILENAME);
+				
 				shell = new ConsoleSocketListener(
-						port, context, logger, new CommandParser(context, scriptDirectory), cmdPrefix);
+						port, context, logger, new CommandParser(context, scriptDirectory), cmdPrefix, pipeDirectory, unixSocket);
 				shell.start();
-				createKnapsackScripts(scriptDirectory, port);
+				createKnapsackScripts(scriptDirectory, port, shell.getControlPipe(), shell.getUnixSocket());
 			}
+			timeline.end(span);
 			
+			span = timeline.begin(StartupTimeline.PHASE, "bundles");
 			KnapsackInitServiceImpl serviceImpl = new KnapsackInitServiceImpl(baseDirectory);
 			serviceImpl.updateBundlesSync();
+			timeline.end(span);
+			
+			if (PropertyHelper.getBoolean(ConfigurationConstants.CONFIG_KEY_WATCH_BUNDLE_DIRS))
+				serviceImpl.startWatching(PropertyHelper.getInt(ConfigurationConstants.CONFIG_KEY_WATCH_INTERVAL, DEFAULT_WATCH_INTERVAL));
 			
 			ServiceRegistration initSR = context.registerService(KnapsackInitService.class.getName(), serviceImpl, null);
-			Runtime.getRuntime().addShutdownHook(new ShutdownHook(felix, scriptDirectory, shell, initSR, logger));
+			Runtime.getRuntime().addShutdownHook(new ShutdownHook(felix, scriptDirectory, shell, serviceImpl, initSR, logger));
 			
+			span = timeline.begin(StartupTimeline.PHASE, "framework.start");
 			felix.start();
+			timeline.end(span);
+			
+			span = timeline.begin(StartupTimeline.PHASE, "bundles.start");
+			serviceImpl.frameworkStarted(context);
+			timeline.end(span);
+			
+			timeline.finish();
+			context.removeBundleListener(startRecorder);
+			writeStartupReport(baseDirectory, timeline);
 			
 			logger.log(LogService.LOG_INFO, "Knapsack " + getKnapsackVersion() + " for Apache Felix " + getFelixVersion(context) + " (" + baseDirectory + ") started in " + ((double) (System.currentTimeMillis() - time) / 1000) + " seconds.");
 		} catch (Exception e) {
@@ -178,6 +230,29 @@ public class Launcher {
 	
 	// /***************** Private helper methods
 	
+	/**
+	 * Write the startup timeline to the configured report file, if any.
+	 * 
+	 * @param baseDirectory
+	 * @param timeline
+	 */
+	private static void writeStartupReport(File baseDirectory, StartupTimeline timeline) {
+		String filename = System.getProperty(ConfigurationConstants.CONFIG_KEY_STARTUP_REPORT);
+		
+		if (filename == null || filename.trim().length() == 0)
+			return;
+		
+		File report = new File(filename.trim());
+		if (!report.isAbsolute())
+			report = new File(baseDirectory, filename.trim());
+		
+		try {
+			timeline.write(report);
+		} catch (IOException e) {
+			logger.log(LogService.LOG_WARNING, "Unable to write startup report to " + report + ".", e);
+		}
+	}
+	
 	/**
 	 * Print command usage information.
 	 */
@@ -220,6 +295,26 @@ public class Launcher {
 		return c.getBundle(0).getVersion().toString();
 	}
 
+	/**
+	 * @param baseDirectory root directory
+	 * @return A file sink for the log as configured in log.properties.
+	 * @throws IOException if the log file cannot be opened
+	 */
+	private static RollingFileSink createLogFileSink(File baseDirectory) throws IOException {
+		File file = new File(System.getProperty(ConfigurationConstants.CONFIG_KEY_LOG_FILE).trim());
+		
+		if (!file.isAbsolute())
+			file = new File(baseDirectory, file.getPath());
+		
+		return new RollingFileSink(file, 
+				PropertyHelper.getInt(ConfigurationConstants.CONFIG_KEY_LOG_FILE_MAX_SIZE, RollingFileSink.DEFAULT_MAX_SIZE),
+				PropertyHelper.getInt(ConfigurationConstants.CONFIG_KEY_LOG_FILE_ROLL_INTERVAL, 0),
+				PropertyHelper.getInt(ConfigurationConstants.CONFIG_KEY_LOG_FILE_MAX_FILES, RollingFileSink.DEFAULT_MAX_FILES),
+				PropertyHelper.getInt(ConfigurationConstants.CONFIG_KEY_LOG_FILE_BUFFER_SIZE, RollingFileSink.DEFAULT_BUFFER_SIZE),
+				PropertyHelper.getInt(ConfigurationConstants.CONFIG_KEY_LOG_FILE_FLUSH_INTERVAL, RollingFileSink.DEFAULT_FLUSH_INTERVAL),
+				PropertyHelper.getBoolean(ConfigurationConstants.CONFIG_KEY_LOG_FILE_COMPRESS));
+	}
+
 	/**
 	 * Attach the KnapsackLogger to all LogReader services available.
 	 * 
@@ -277,9 +372,9 @@ public class Launcher {
 			ConfigurationAdmin ca = (ConfigurationAdmin) bundleContext.getService(sr);
 			
 			if (ca != null) {
-				Applier.map(
-						Applier.map(configAdminDir, FileFunctions.GET_FILES_FN)
-							, new LoadDefaultsFunction(ca, logger, PropertyHelper.getBoolean(ConfigurationConstants.CONFIG_KEY_OVERWRITE_CONFIGADMIN)));
+				Pipeline.<File>from(configAdminDir).expand(FileFunctions.WALK_FILES_FN)
+						.map(new LoadDefaultsFunction(ca, logger, PropertyHelper.getBoolean(ConfigurationConstants.CONFIG_KEY_OVERWRITE_CONFIGADMIN)))
+						.toList();
 				
 				return;
 			}			
@@ -346,17 +441,19 @@ public class Launcher {
 	 * 
 	 * @param baseDirectory
 	 * @param port
-	 * @param config
+	 * @param controlPipe pipe the scripts write commands to, or null to always use the socket.
+	 * @param unixSocket UNIX domain socket the scripts connect to, or null to use the TCP port.
 	 * @throws IOException
 	 * @throws URISyntaxException
 	 */
-	private static void createKnapsackScripts(File scriptDir, int port) throws IOException, URISyntaxException {
+	private static void createKnapsackScripts(File scriptDir, int port, File controlPipe, File unixSocket) throws IOException, URISyntaxException {
 		FSHelper.validateFile(scriptDir, true, true, false, true);
 
 		if (FSHelper.directoryHasFiles(scriptDir))
 			FSHelper.deleteFilesInDir(scriptDir);
 
-		FSHelper.copyScripts(scriptDir, port, System.getProperties().getProperty(ConfigurationConstants.CONFIG_KEY_SHELL_COMMAND));
+		FSHelper.copyScripts(scriptDir, port, System.getProperties().getProperty(ConfigurationConstants.CONFIG_KEY_SHELL_COMMAND), controlPipe, 
+				unixSocket, System.getProperties().getProperty(ConfigurationConstants.CONFIG_KEY_SHELL_UNIX_COMMAND));
 		System.setProperty(ConfigurationConstants.SYSTEM_PROPERTY_KEY_SHELL_PORT, Integer.toString(port));
 	}
 
@@ -378,7 +475,7 @@ public class Launcher {
 	 * @throws IOException
 	 */
 	private static void loadProperties(File baseDirectory, KnapsackLogger logger) throws IOException {
-		Applier.map(Applier.map(baseDirectory, FileFunctions.GET_FILES_FN), new LoadPropertiesFunction(logger));
+		Pipeline.<File>from(baseDirectory).expand(FileFunctions.WALK_FILES_FN).map(new LoadPropertiesFunction(logger)).toList();
 	}
 
 	/**
@@ -432,5 +529,12 @@ public class Launcher {
 			throw new RuntimeException("BundleContext is not available.");
 		
 		return context;
-	}	
+	}
+
+	/**
+	 * @return the shell of this knapsack, or null if it is disabled or has not been started.
+	 */
+	public static ConsoleSocketListener getShell() {
+		return shell;
+	}
 }
@@ -0,0 +1,268 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.service.log.LogEntry;
+
+/**
+ * A bounded history of log entries, indexed by level and bundle.
+ * 
+ * Each entry is given a sequence number as it is added, and the entry with sequence number n is held 
+ * in slot n % capacity.  The indexes hold the sequence numbers of the entries of a level or bundle in the 
+ * order they were added, so that a query visits only the entries it may return, from newest to oldest, 
+ * and stops once it has enough.
+ * 
+ * @author kgilmer
+ *
+ */
+public final class LogRing {
+	/**
+	 * Default number of entries held.
+	 */
+	public static final int DEFAULT_CAPACITY = 1000;
+	
+	/**
+	 * Query parameter matching any bundle.
+	 */
+	public static final long ANY_BUNDLE = -1;
+	
+	private static final int MAX_LEVEL = 4;
+	
+	private final LogEntry[] entries;
+	private final SequenceList[] levelIndex = new SequenceList[MAX_LEVEL + 1];
+	private final Map<Long, SequenceList> bundleIndex = new HashMap<Long, SequenceList>();
+	private long next;
+
+	/**
+	 * @param capacity maximum number of entries held.  When full the oldest entry is dropped.
+	 */
+	public LogRing(int capacity) {
+		this.entries = new LogEntry[capacity < 1 ? 1 : capacity];
+		
+		for (int i = 0; i < levelIndex.length; ++i)
+			levelIndex[i] = new SequenceList();
+	}
+
+	/**
+	 * @param entry entry to add
+	 */
+	public synchronized void add(LogEntry entry) {
+		int slot = (int) (next % entries.length);
+		LogEntry evicted = entries[slot];
+		
+		if (evicted != null) {
+			levelIndex[getLevelSlot(evicted.getLevel())].removeFirst();
+			
+			if (evicted.getBundle() != null) {
+				Long id = evicted.getBundle().getBundleId();
+				SequenceList l = bundleIndex.get(id);
+				l.removeFirst();
+				if (l.size() == 0)
+					bundleIndex.remove(id);
+			}
+		}
+		
+		entries[slot] = entry;
+		levelIndex[getLevelSlot(entry.getLevel())].add(next);
+		
+		if (entry.getBundle() != null) {
+			Long id = entry.getBundle().getBundleId();
+			SequenceList l = bundleIndex.get(id);
+			if (l == null) {
+				l = new SequenceList();
+				bundleIndex.put(id, l);
+			}
+			l.add(next);
+		}
+		
+		next++;
+	}
+	
+	/**
+	 * Find the newest entries matching all of the given criteria.
+	 * 
+	 * @param maxLevel entries of this level or more severe (lower) are returned, or 0 for all levels
+	 * @param bundleId only entries of this bundle are returned, or ANY_BUNDLE
+	 * @param since only entries logged at or after this time are returned, or 0 for all
+	 * @param count maximum number of entries returned, or 0 for no limit
+	 * @return matching entries, oldest first.
+	 */
+	public synchronized List<LogEntry> query(int maxLevel, long bundleId, long since, int count) {
+		if (count <= 0)
+			count = entries.length;
+		
+		long first = since > 0 ? findFirst(since) : getOldest();
+		boolean levelFilter = maxLevel > 0 && maxLevel < MAX_LEVEL;
+		List<LogEntry> result = new ArrayList<LogEntry>(Math.min(count, 64));
+		
+		if (bundleId != ANY_BUNDLE) {
+			SequenceList l = bundleIndex.get(bundleId);
+			
+			for (int i = l == null ? -1 : l.size() - 1; i >= 0 && result.size() < count; --i) {
+				long seq = l.get(i);
+				if (seq < first)
+					break;
+				
+				LogEntry e = get(seq);
+				if (!levelFilter || (getLevelSlot(e.getLevel()) != 0 && e.getLevel() <= maxLevel))
+					result.add(e);
+			}
+		} else if (levelFilter) {
+			// Merge the indexes of the levels requested, newest first.
+			int[] pos = new int[maxLevel + 1];
+			for (int level = 1; level <= maxLevel; ++level)
+				pos[level] = levelIndex[level].size() - 1;
+			
+			while (result.size() < count) {
+				int best = -1;
+				long bestSeq = -1;
+				
+				for (int level = 1; level <= maxLevel; ++level) {
+					if (pos[level] >= 0 && levelIndex[level].get(pos[level]) > bestSeq) {
+						best = level;
+						bestSeq = levelIndex[level].get(pos[level]);
+					}
+				}
+				
+				if (best == -1 || bestSeq < first)
+					break;
+				
+				pos[best]--;
+				result.add(get(bestSeq));
+			}
+		} else {
+			for (long seq = next - 1; seq >= first && result.size() < count; --seq)
+				result.add(get(seq));
+		}
+		
+		Collections.reverse(result);
+		return result;
+	}
+	
+	/**
+	 * @return number of entries held.
+	 */
+	public synchronized int size() {
+		return (int) (next - getOldest());
+	}
+	
+	/**
+	 * @return the maximum number of entries held.
+	 */
+	public int getCapacity() {
+		return entries.length;
+	}
+	
+	/**
+	 * @param seq
+	 * @return entry of sequence number.
+	 */
+	private LogEntry get(long seq) {
+		return entries[(int) (seq % entries.length)];
+	}
+	
+	/**
+	 * @return sequence number of the oldest entry held.
+	 */
+	private long getOldest() {
+		return Math.max(0, next - entries.length);
+	}
+
+	/**
+	 * Entries are added as they are logged, so their times are in order.  
+	 * 
+	 * @param time
+	 * @return sequence number of the first entry logged at or after time.
+	 */
+	private long findFirst(long time) {
+		long low = getOldest();
+		long high = next;
+		
+		while (low < high) {
+			long mid = (low + high) >>> 1;
+			
+			if (get(mid).getTime() < time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		
+		return low;
+	}
+	
+	/**
+	 * @param level
+	 * @return index of level, with 0 for levels that are not defined by LogService.
+	 */
+	private static int getLevelSlot(int level) {
+		return level < 1 || level > MAX_LEVEL ? 0 : level;
+	}
+
+	/**
+	 * Sequence numbers in the order they were added.  Numbers are removed from the head as entries are dropped from the ring.
+	 */
+	private static final class SequenceList {
+		private long[] data = new long[16];
+		private int head;
+		private int size;
+		
+		/**
+		 * @param seq
+		 */
+		private void add(long seq) {
+			if (size == data.length) {
+				long[] grown = new long[data.length * 2];
+				for (int i = 0; i < size; ++i)
+					grown[i] = data[(head + i) % data.length];
+				data = grown;
+				head = 0;
+			}
+			
+			data[(head + size) % data.length] = seq;
+			size++;
+		}
+		
+		/**
+		 * Remove the oldest sequence number.
+		 */
+		private void removeFirst() {
+			head = (head + 1) % data.length;
+			size--;
+		}
+		
+		/**
+		 * @param i position, 0 being the oldest
+		 * @return sequence number at position.
+		 */
+		private long get(int i) {
+			return data[(head + i) % data.length];
+		}
+		
+		/**
+		 * @return number of sequence numbers held.
+		 */
+		private int size() {
+			return size;
+		}
+	}
+}
@@ -40,4 +40,22 @@ public final class PropertyHelper {
 	
 		return Boolean.parseBoolean(System.getProperty(key));
 	}
+
+	/**
+	 * @param key Key for System.getProperties()
+	 * @param defaultValue value to return if key does not exist or is not a valid integer.
+	 * @return integer value of property or defaultValue.
+	 */
+	public static int getInt(String key, int defaultValue) {
+		String value = System.getProperty(key);
+		
+		if (value == null)
+			return defaultValue;
+		
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
 }
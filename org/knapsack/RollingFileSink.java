@@ -0,0 +1,410 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.knapsack.shell.StringConstants;
+
+/**
+ * Writes log entries to a file, rolling to a new file when the file reaches a maximum size or 
+ * at the end of a time interval.  
+ * 
+ * Entries are encoded into a buffer that is written to the file channel when full, or by a 
+ * flush thread at a fixed interval.  Rolled files are renamed with the time they were rolled and,
+ * if enabled, compressed with gzip on a background thread.  Only the newest rolled files are kept.
+ * 
+ * @author kgilmer
+ *
+ */
+final class RollingFileSink {
+	/**
+	 * Default maximum size of the log file in bytes.
+	 */
+	static final int DEFAULT_MAX_SIZE = 10 * 1024 * 1024;
+	
+	/**
+	 * Default number of rolled files kept.
+	 */
+	static final int DEFAULT_MAX_FILES = 5;
+	
+	/**
+	 * Default size of the write buffer in bytes.
+	 */
+	static final int DEFAULT_BUFFER_SIZE = 8192;
+	
+	/**
+	 * Default interval between flushes of the write buffer in milliseconds.
+	 */
+	static final int DEFAULT_FLUSH_INTERVAL = 1000;
+	
+	private static final String ROLL_DATE_FORMAT = "yyyyMMdd-HHmmss";
+	private static final String COMPRESSED_SUFFIX = ".gz";
+	/**
+	 * Suffix of rolled files after the name of the log file: the roll time, a counter if several files were rolled in
+	 * the same second, and the suffix of compressed files.
+	 */
+	private static final Pattern ROLLED_SUFFIX = Pattern.compile("\\.(\\d{8}-\\d{6})(?:-(\\d{1,9}))?(?:" + Pattern.quote(COMPRESSED_SUFFIX) + ")?");
+	private static final byte[] LINE_END = StringConstants.CRLF.getBytes();
+	
+	private final File file;
+	private final long maxSize;
+	private final long rollInterval;
+	private final int maxFiles;
+	private final boolean compress;
+	private final ByteBuffer buffer;
+	private final CharsetEncoder encoder;
+	private final SimpleDateFormat rollDateFormat = new SimpleDateFormat(ROLL_DATE_FORMAT);
+	private final Thread flushThread;
+	private final ExecutorService compressor;
+	
+	private FileChannel channel;
+	private long size;
+	private long nextRoll;
+	private boolean closed;
+
+	/**
+	 * @param file log file
+	 * @param maxSize size in bytes at which the file is rolled, 0 for no limit
+	 * @param rollInterval minutes after which the file is rolled, 0 for no time-based rolling
+	 * @param maxFiles number of rolled files kept
+	 * @param bufferSize size in bytes of the write buffer
+	 * @param flushInterval milliseconds between flushes of the write buffer, at least 1
+	 * @param compress if true rolled files are compressed with gzip
+	 * @throws IOException if the log file cannot be opened
+	 */
+	RollingFileSink(File file, long maxSize, int rollInterval, int maxFiles, int bufferSize, long flushInterval, boolean compress) throws IOException {
+		this.file = file.getAbsoluteFile();
+		this.maxSize = maxSize;
+		this.rollInterval = TimeUnit.MINUTES.toMillis(rollInterval);
+		this.maxFiles = maxFiles;
+		this.compress = compress;
+		this.buffer = ByteBuffer.allocate(Math.max(bufferSize, 256));
+		// 0 would make the flush thread spin, a negative interval would end it.
+		final long interval = Math.max(1, flushInterval);
+		this.encoder = Charset.defaultCharset().newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		
+		open();
+		
+		this.compressor = compress ? Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Knapsack Log Compressor");
+				t.setDaemon(true);
+				return t;
+			}
+		}) : null;
+		
+		this.flushThread = new Thread("Knapsack Log Flush") {
+			@Override
+			public void run() {
+				while (!isClosed()) {
+					try {
+						Thread.sleep(interval);
+						flush();
+					} catch (InterruptedException e) {
+						return;
+					} catch (IOException e) {
+						System.err.println("Unable to write log file " + RollingFileSink.this.file + ": " + e.getMessage());
+					}
+				}
+			}
+		};
+		flushThread.setDaemon(true);
+		flushThread.start();
+	}
+	
+	/**
+	 * Append an entry and a line separator to the log file.
+	 * 
+	 * @param line
+	 * @throws IOException
+	 */
+	synchronized void write(CharSequence line) throws IOException {
+		if (closed)
+			return;
+		
+		long now = System.currentTimeMillis();
+		if ((maxSize > 0 && size + buffer.position() >= maxSize) || (nextRoll > 0 && now >= nextRoll))
+			roll(now);
+		
+		CharBuffer in = CharBuffer.wrap(line);
+		encoder.reset();
+		
+		while (true) {
+			CoderResult result = encoder.encode(in, buffer, true);
+			
+			if (result.isOverflow()) {
+				drain();
+				continue;
+			}
+			
+			result = encoder.flush(buffer);
+			if (result.isOverflow()) {
+				drain();
+				continue;
+			}
+			
+			break;
+		}
+		
+		if (buffer.remaining() < LINE_END.length)
+			drain();
+		
+		buffer.put(LINE_END);
+	}
+	
+	/**
+	 * Write buffered entries to the log file.
+	 * 
+	 * @throws IOException
+	 */
+	synchronized void flush() throws IOException {
+		if (!closed)
+			drain();
+	}
+	
+	/**
+	 * Flush buffered entries and close the log file.  Compression of rolled files still running is given a moment to complete.
+	 */
+	void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			
+			try {
+				drain();
+				channel.close();
+			} catch (IOException e) {
+				System.err.println("Unable to close log file " + file + ": " + e.getMessage());
+			}
+			closed = true;
+		}
+		
+		flushThread.interrupt();
+		
+		if (compressor != null) {
+			compressor.shutdown();
+			try {
+				compressor.awaitTermination(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * @return true if the sink has been closed.
+	 */
+	synchronized boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * @return the log file.
+	 */
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Open the log file for append.
+	 * 
+	 * @throws IOException
+	 */
+	private void open() throws IOException {
+		File parent = file.getParentFile();
+		if (parent != null && !parent.exists() && !parent.mkdirs())
+			throw new IOException("Unable to create directory " + parent);
+		
+		channel = new FileOutputStream(file, true).getChannel();
+		size = channel.size();
+		
+		long now = System.currentTimeMillis();
+		if (rollInterval > 0) {
+			// Roll on interval boundaries of local time, so that a daily interval rolls at midnight.
+			long offset = TimeZone.getDefault().getOffset(now);
+			nextRoll = ((now + offset) / rollInterval + 1) * rollInterval - offset;
+		} else {
+			nextRoll = 0;
+		}
+	}
+	
+	/**
+	 * Write the buffer to the file channel.
+	 * 
+	 * @throws IOException
+	 */
+	private void drain() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			size += channel.write(buffer);
+		buffer.clear();
+	}
+	
+	/**
+	 * Close the current file, rename it with the roll time and open a new file.
+	 * 
+	 * @param now
+	 * @throws IOException
+	 */
+	private void roll(long now) throws IOException {
+		drain();
+		channel.close();
+		
+		if (size > 0) {
+			String stamp = rollDateFormat.format(new Date(now));
+			File rolled = new File(file.getParentFile(), file.getName() + "." + stamp);
+			for (int i = 1; rolled.exists() || new File(rolled.getPath() + COMPRESSED_SUFFIX).exists(); ++i)
+				rolled = new File(file.getParentFile(), file.getName() + "." + stamp + "-" + i);
+			
+			if (!file.renameTo(rolled)) {
+				System.err.println("Unable to roll log file " + file + " to " + rolled + ".");
+			} else if (compress) {
+				final File target = rolled;
+				compressor.execute(new Runnable() {
+					@Override
+					public void run() {
+						compress(target);
+						deleteOldFiles();
+					}
+				});
+			} else {
+				deleteOldFiles();
+			}
+		}
+		
+		open();
+	}
+	
+	/**
+	 * Replace a rolled file by its gzip compressed version.
+	 * 
+	 * @param source
+	 */
+	private static void compress(File source) {
+		File target = new File(source.getPath() + COMPRESSED_SUFFIX);
+		byte[] buf = new byte[DEFAULT_BUFFER_SIZE];
+		InputStream in = null;
+		OutputStream out = null;
+		
+		try {
+			in = new FileInputStream(source);
+			out = new GZIPOutputStream(new FileOutputStream(target));
+			
+			int len;
+			while ((len = in.read(buf)) != -1)
+				out.write(buf, 0, len);
+			
+			out.close();
+			out = null;
+			in.close();
+			in = null;
+			
+			if (!source.delete())
+				System.err.println("Unable to delete " + source + " after compression.");
+		} catch (IOException e) {
+			System.err.println("Unable to compress " + source + ": " + e.getMessage());
+			target.delete();
+		} finally {
+			FSHelper.closeQuietly(in);
+			FSHelper.closeQuietly(out);
+		}
+	}
+
+	/**
+	 * Delete the oldest rolled files so that no more than maxFiles remain.  Other files that start with the name of the log
+	 * file are left alone.
+	 */
+	private void deleteOldFiles() {
+		File[] files = file.getParentFile().listFiles();
+		if (files == null)
+			return;
+		
+		String name = file.getName();
+		List<RolledFile> rolled = new ArrayList<RolledFile>();
+		for (File f : files) {
+			if (!f.getName().startsWith(name))
+				continue;
+			
+			Matcher m = ROLLED_SUFFIX.matcher(f.getName().substring(name.length()));
+			if (m.matches())
+				rolled.add(new RolledFile(f, m.group(1), m.group(2) == null ? 0 : Integer.parseInt(m.group(2))));
+		}
+		
+		Collections.sort(rolled);
+		for (int i = 0; i < rolled.size() - maxFiles; ++i)
+			rolled.get(i).file.delete();
+	}
+	
+	/**
+	 * A rolled file, ordered oldest first: by roll time, then by the counter of files rolled in the same second.
+	 */
+	private static final class RolledFile implements Comparable<RolledFile> {
+		private final File file;
+		private final String stamp;
+		private final int counter;
+		
+		/**
+		 * @param file
+		 * @param stamp roll time, in a format whose text order is time order
+		 * @param counter 0 for the first file rolled in a second
+		 */
+		public RolledFile(File file, String stamp, int counter) {
+			this.file = file;
+			this.stamp = stamp;
+			this.counter = counter;
+		}
+
+		@Override
+		public int compareTo(RolledFile o) {
+			int c = stamp.compareTo(o.stamp);
+			
+			if (c != 0)
+				return c;
+			
+			return counter < o.counter ? -1 : (counter == o.counter ? 0 : 1);
+		}
+	}
+}
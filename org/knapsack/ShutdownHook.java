@@ -19,6 +19,7 @@ package org.knapsack;
 import java.io.File;
 
 import org.apache.felix.framework.Logger;
+import org.knapsack.init.KnapsackInitServiceImpl;
 import org.knapsack.shell.ConsoleSocketListener;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.framework.launch.Framework;
@@ -34,6 +35,7 @@ public class ShutdownHook extends Thread {
 	private final Framework framework;
 	private final File scriptDirectory;
 	private final ConsoleSocketListener shell;
+	private final KnapsackInitServiceImpl initService;
 	private final ServiceRegistration initSR;
 	private final Logger logger;
 
@@ -41,13 +43,15 @@ public class ShutdownHook extends Thread {
 	 * @param framework
 	 * @param scriptDirectory
 	 * @param shell
+	 * @param initService
 	 * @param initSR
 	 */
-	public ShutdownHook(Framework framework, File scriptDirectory, ConsoleSocketListener shell, ServiceRegistration initSR, Logger logger) {
+	public ShutdownHook(Framework framework, File scriptDirectory, ConsoleSocketListener shell, KnapsackInitServiceImpl initService, ServiceRegistration initSR, Logger logger) {
 		super("Knapsack Shutdown Hook");
 		this.framework = framework;
 		this.scriptDirectory = scriptDirectory;
 		this.shell = shell;
+		this.initService = initService;
 		this.initSR = initSR;
 		this.logger = logger;
 	}
@@ -63,6 +67,9 @@ public class ShutdownHook extends Thread {
 			if (shell != null)
 				shell.shutdown();
 			
+			if (initService != null)
+				initService.stopWatching();
+			
 			if (initSR != null)
 				initSR.unregister();
 			
@@ -73,6 +80,9 @@ public class ShutdownHook extends Thread {
 
 			FSHelper.deleteFilesInDir(scriptDirectory);
 			logger.log(LogService.LOG_INFO, "Shutdown complete.");
+			
+			if (logger instanceof KnapsackLogger)
+				((KnapsackLogger) logger).close();
 		} catch (Exception ex) {
 			System.err.println("Error during felix shutdown: " + ex);
 		}
@@ -0,0 +1,259 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Records how long the phases of knapsack startup and the install and start of each bundle take.
+ *
+ * Spans are recorded from the time knapsack is launched until boot is finished.  Afterwards the timeline
+ * is fixed and can be printed by the shell or written to a file.
+ *
+ * @author kgilmer
+ *
+ */
+public final class StartupTimeline {
+	/**
+	 * Category for a phase of startup.
+	 */
+	public static final String PHASE = "phase";
+
+	/**
+	 * Category for the install of a bundle.
+	 */
+	public static final String INSTALL = "install";
+
+	/**
+	 * Category for the start of a bundle.
+	 */
+	public static final String START = "start";
+
+	private static final char SEPARATOR = '\t';
+
+	private static final StartupTimeline instance = new StartupTimeline();
+
+	private final List<Span> spans = new ArrayList<Span>();
+	private volatile long bootTime = System.currentTimeMillis();
+	private volatile long finishTime = 0;
+
+	/**
+	 * Single instance.
+	 */
+	private StartupTimeline() {
+	}
+
+	/**
+	 * @return the timeline of this runtime.
+	 */
+	public static StartupTimeline getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @param time time knapsack was launched.
+	 */
+	public void setBootTime(long time) {
+		this.bootTime = time;
+	}
+
+	/**
+	 * @param category category of span
+	 * @param name name of span
+	 * @return a span that is recorded when ended, or null if boot has finished.
+	 */
+	public Span begin(String category, String name) {
+		if (!isRecording())
+			return null;
+
+		return new Span(category, name, System.currentTimeMillis());
+	}
+
+	/**
+	 * End a span returned by begin().  Does nothing if span is null.
+	 *
+	 * @param span
+	 */
+	public void end(Span span) {
+		if (span == null || !isRecording())
+			return;
+
+		span.end = System.currentTimeMillis();
+
+		synchronized (spans) {
+			spans.add(span);
+		}
+	}
+
+	/**
+	 * Boot has completed, stop recording.
+	 */
+	public void finish() {
+		finishTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return true if spans are being recorded.
+	 */
+	public boolean isRecording() {
+		return finishTime == 0;
+	}
+
+	/**
+	 * @return time knapsack was launched.
+	 */
+	public long getBootTime() {
+		return bootTime;
+	}
+
+	/**
+	 * @return time in milliseconds from launch until boot finished, or -1 if boot has not finished.
+	 */
+	public long getDuration() {
+		if (finishTime == 0)
+			return -1;
+
+		return finishTime - bootTime;
+	}
+
+	/**
+	 * @return recorded spans, ordered by start time.
+	 */
+	public List<Span> getSpans() {
+		List<Span> l;
+		synchronized (spans) {
+			l = new ArrayList<Span>(spans);
+		}
+
+		// Spans are added when they end.
+		Collections.sort(l, new Comparator<Span>() {
+
+			@Override
+			public int compare(Span s1, Span s2) {
+				return s1.start < s2.start ? -1 : (s1.start == s2.start ? 0 : 1);
+			}
+		});
+
+		return l;
+	}
+
+	/**
+	 * Write the timeline as tab-separated lines of category, name, start offset from launch in milliseconds,
+	 * duration in milliseconds and thread.  The first line names the columns.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+
+		try {
+			w.write("category\tname\tstart\tduration\tthread\n");
+			w.write(PHASE);
+			w.write(SEPARATOR);
+			w.write("boot");
+			w.write(SEPARATOR);
+			w.write('0');
+			w.write(SEPARATOR);
+			w.write(Long.toString(getDuration()));
+			w.write(SEPARATOR);
+			w.write("main\n");
+
+			for (Span s : getSpans()) {
+				w.write(s.getCategory());
+				w.write(SEPARATOR);
+				w.write(s.getName());
+				w.write(SEPARATOR);
+				w.write(Long.toString(s.getStart() - bootTime));
+				w.write(SEPARATOR);
+				w.write(Long.toString(s.getDuration()));
+				w.write(SEPARATOR);
+				w.write(s.getThread());
+				w.write('\n');
+			}
+		} finally {
+			FSHelper.closeQuietly(w);
+		}
+	}
+
+	/**
+	 * A named interval of time.
+	 */
+	public static final class Span {
+		private final String category;
+		private final String name;
+		private final String thread;
+		private final long start;
+		private long end;
+
+		/**
+		 * @param category
+		 * @param name
+		 * @param start
+		 */
+		private Span(String category, String name, long start) {
+			this.category = category;
+			this.name = name;
+			this.start = start;
+			this.thread = Thread.currentThread().getName();
+		}
+
+		/**
+		 * @return category of span.
+		 */
+		public String getCategory() {
+			return category;
+		}
+
+		/**
+		 * @return name of span.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return name of thread span was recorded on.
+		 */
+		public String getThread() {
+			return thread;
+		}
+
+		/**
+		 * @return start time.
+		 */
+		public long getStart() {
+			return start;
+		}
+
+		/**
+		 * @return duration in milliseconds.
+		 */
+		public long getDuration() {
+			return end - start;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Thread-safe formatter of log timestamps.  The text of the last second formatted is kept, so that
+ * log entries within the same second reuse it instead of going through SimpleDateFormat.
+ * 
+ * @author kgilmer
+ *
+ */
+final class TimestampFormatter {
+	private final SimpleDateFormat format;
+	private final boolean cacheable;
+	private volatile Cached last;
+
+	/**
+	 * @param pattern SimpleDateFormat pattern
+	 */
+	TimestampFormatter(String pattern) {
+		this.format = new SimpleDateFormat(pattern);
+		// Patterns with milliseconds change text within a second and can not be cached.
+		this.cacheable = pattern.indexOf('S') == -1;
+		this.last = new Cached(-1, null);
+	}
+
+	/**
+	 * @param time milliseconds since the epoch
+	 * @param sb buffer to append formatted time to
+	 */
+	void format(long time, StringBuilder sb) {
+		long second = time / 1000;
+		Cached c = last;
+
+		if (cacheable && c.second == second) {
+			sb.append(c.text);
+			return;
+		}
+
+		String text;
+		synchronized (format) {
+			text = format.format(new Date(time));
+		}
+
+		if (cacheable)
+			last = new Cached(second, text);
+
+		sb.append(text);
+	}
+
+	/**
+	 * A formatted second.
+	 */
+	private static final class Cached {
+		private final long second;
+		private final String text;
+
+		/**
+		 * @param second
+		 * @param text
+		 */
+		private Cached(long second, String text) {
+			this.second = second;
+			this.text = text;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.init;
+
+import org.knapsack.Launcher;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.service.log.LogService;
+import org.sprinkles.Applier;
+
+/**
+ * Assign a start level to a bundle.  The level of the bundle directory is used unless the bundle manifest
+ * declares one in the Knapsack-StartLevel header.
+ *
+ * @author kgilmer
+ *
+ */
+class AssignStartLevelFunction implements Applier.Fn<BundleJarWrapper, BundleJarWrapper> {
+	/**
+	 * Manifest header a bundle can use to declare its start level.
+	 */
+	public static final String START_LEVEL_HEADER = "Knapsack-StartLevel";
+
+	private final int directoryLevel;
+	private int maxLevel = 0;
+
+	/**
+	 * @param directoryLevel start level of the directory the bundles are in
+	 */
+	public AssignStartLevelFunction(int directoryLevel) {
+		this.directoryLevel = directoryLevel;
+	}
+
+	@Override
+	public BundleJarWrapper apply(BundleJarWrapper element) {
+		int level = getLevel(element);
+		BundleStartLevel startLevel = element.getBundle().adapt(BundleStartLevel.class);
+
+		if (startLevel.getStartLevel() != level)
+			startLevel.setStartLevel(level);
+
+		if (level > maxLevel)
+			maxLevel = level;
+
+		return element;
+	}
+
+	/**
+	 * @return the highest start level assigned.
+	 */
+	public int getMaxLevel() {
+		return maxLevel;
+	}
+
+	/**
+	 * @param element
+	 * @return start level for bundle
+	 */
+	private int getLevel(BundleJarWrapper element) {
+		Object header = element.getBundle().getHeaders().get(START_LEVEL_HEADER);
+
+		if (header != null) {
+			try {
+				int level = Integer.parseInt(header.toString().trim());
+
+				if (level > 0)
+					return level;
+			} catch (NumberFormatException e) {
+				// Fall through to warning.
+			}
+
+			Launcher.getLogger().log(LogService.LOG_WARNING, "Ignoring invalid " + START_LEVEL_HEADER + " in " + element.getJar() + ": " + header);
+		}
+
+		return directoryLevel;
+	}
+}
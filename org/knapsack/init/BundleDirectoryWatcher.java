@@ -0,0 +1,182 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.init;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.knapsack.KnapsackLogger;
+import org.knapsack.Launcher;
+import org.osgi.service.log.LogService;
+import org.sprinkles.functions.FileFunctions;
+
+/**
+ * A thread that watches the bundle directories and updates the framework when jars are added, modified, removed,
+ * or have their execute bit changed.
+ *
+ * The directories are polled at a fixed interval.  Changes are only acted upon once a poll finds the directories
+ * the same as the poll before it, so a burst of writes (such as a jar being copied in, or several jars being deployed)
+ * is coalesced into one update.  Only the jars that changed are processed.
+ *
+ * @author kgilmer
+ *
+ */
+class BundleDirectoryWatcher extends Thread {
+	private static final String JAR_EXTENSION = ".JAR";
+
+	private final List<File> bundleDirs;
+	private final long interval;
+	private final KnapsackLogger logger;
+	private volatile boolean running = true;
+
+	/**
+	 * @param directories directories to watch
+	 * @param interval time in milliseconds between polls
+	 */
+	public BundleDirectoryWatcher(Collection<File> directories, long interval) {
+		super("Knapsack Bundle Directory Watcher");
+		this.bundleDirs = new ArrayList<File>(directories);
+		this.interval = interval;
+		this.logger = Launcher.getLogger();
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		logger.log(LogService.LOG_INFO, "Watching bundle directories " + bundleDirs + " every " + interval + "ms.");
+
+		// The state the framework was last updated to.
+		Map<File, JarState> applied = snapshot();
+		// The state found by the previous poll.
+		Map<File, JarState> previous = applied;
+
+		while (running) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			if (!running)
+				break;
+
+			Map<File, JarState> current = snapshot();
+
+			if (!current.equals(previous)) {
+				// Still changing, wait for the directories to settle.
+				previous = current;
+				continue;
+			}
+
+			if (current.equals(applied))
+				continue;
+
+			Set<File> changes = getChanges(applied, current);
+			applied = current;
+
+			logger.log(LogService.LOG_DEBUG, "Bundle directory changes detected: " + changes);
+
+			try {
+				(new BundleInitThread(bundleDirs, changes)).run();
+			} catch (Exception e) {
+				logger.log(LogService.LOG_ERROR, "An error occurred while updating bundles.", e);
+			}
+		}
+	}
+
+	/**
+	 * Stop watching.  The thread will exit after the current poll or update.
+	 */
+	public void shutdown() {
+		running = false;
+		interrupt();
+	}
+
+	/**
+	 * @return The state of every jar in the bundle directories.
+	 */
+	private Map<File, JarState> snapshot() {
+		Map<File, JarState> m = new HashMap<File, JarState>();
+
+		for (File dir : bundleDirs)
+			if (dir.isDirectory())
+				for (File f : FileFunctions.GET_FILES_FN.apply(dir))
+					if (f.getName().toUpperCase().endsWith(JAR_EXTENSION))
+						m.put(f, new JarState(f));
+
+		return m;
+	}
+
+	/**
+	 * @param before
+	 * @param after
+	 * @return files that were added, removed, or have a different state.
+	 */
+	private static Set<File> getChanges(Map<File, JarState> before, Map<File, JarState> after) {
+		Set<File> changes = new HashSet<File>();
+
+		for (Entry<File, JarState> e : after.entrySet())
+			if (!e.getValue().equals(before.get(e.getKey())))
+				changes.add(e.getKey());
+
+		for (File f : before.keySet())
+			if (!after.containsKey(f))
+				changes.add(f);
+
+		return changes;
+	}
+
+	/**
+	 * The attributes of a jar that determine if the framework needs to be updated.
+	 */
+	private static final class JarState {
+		private final long size;
+		private final long lastModified;
+		private final boolean executable;
+
+		/**
+		 * @param f jar file
+		 */
+		public JarState(File f) {
+			this.size = f.length();
+			this.lastModified = f.lastModified();
+			this.executable = f.canExecute();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof JarState))
+				return false;
+
+			JarState js = (JarState) obj;
+
+			return js.size == size && js.lastModified == lastModified && js.executable == executable;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (size ^ (size >>> 32)) ^ (int) (lastModified ^ (lastModified >>> 32)) ^ (executable ? 1 : 0);
+		}
+	}
+}
@@ -17,20 +17,43 @@
 package org.knapsack.init;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+import org.knapsack.ConfigurationConstants;
 import org.knapsack.KnapsackLogger;
 import org.knapsack.Launcher;
+import org.knapsack.PropertyHelper;
+import org.knapsack.StartupTimeline;
+import org.knapsack.StartupTimeline.Span;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+import org.osgi.framework.wiring.FrameworkWiring;
 import org.osgi.service.log.LogService;
 import org.sprinkles.Applier;
+import org.sprinkles.Pipeline;
 import org.sprinkles.functions.FileFunctions;
 
 /**
  * A short-lived thread that scans a set of directories for files, and installs/starts/stops bundles in the framework.
+ * Directories are processed in order; the jars within a directory may be installed concurrently.
  * @author kgilmer
  *
  */
@@ -39,8 +62,25 @@ public class BundleInitThread extends Thread {
 	 * A list of directories that knapsack will look for bundles in.
 	 */
 	private final List<File> bundleDirs;
+	/**
+	 * If not null, only these jars are installed, started, stopped or uninstalled.
+	 */
+	private final Set<File> changes;
 	private final KnapsackLogger logger;
-	private final static Map<File, Long> bundleJarSizeMap = new HashMap<File, Long>();
+	private static JarChangeDetector changeDetector;
+	/**
+	 * Start level to raise the framework to once it has started, or 0 if none is needed.
+	 */
+	private static int pendingStartLevel = 0;
+	/**
+	 * Bundles to start once the framework has started, by directory.  Before then bundle.start() only marks a bundle
+	 * to be started by the framework, so scans that run before the framework has started leave their bundles here.
+	 */
+	private static final Map<File, Collection<BundleJarWrapper>> pendingStarts = new LinkedHashMap<File, Collection<BundleJarWrapper>>();
+	/**
+	 * Time in milliseconds after which a starting bundle is considered slow, if bundles are started concurrently.
+	 */
+	private static final int DEFAULT_START_TIMEOUT = 10000;
 
 	/**
 	 * @param rootDir
@@ -51,6 +91,7 @@ public class BundleInitThread extends Thread {
 		for (String bfn : filenames) 
 			bundleDirs.add(new File(rootDir, bfn.trim()));
 		
+		changes = null;
 		logger = Launcher.getLogger();
 	}
 	
@@ -58,8 +99,17 @@ public class BundleInitThread extends Thread {
 	 * @param directories
 	 */
 	public BundleInitThread(Collection<File> directories) {	
+		this(directories, null);
+	}
+	
+	/**
+	 * @param directories
+	 * @param changes jars that have been added, modified or removed.  Other jars in the directories are left as they are.
+	 */
+	public BundleInitThread(Collection<File> directories, Set<File> changes) {	
 		bundleDirs = new ArrayList<File>();
 		bundleDirs.addAll(directories);		
+		this.changes = changes;
 		logger = Launcher.getLogger();
 	}
 
@@ -67,58 +117,138 @@ public class BundleInitThread extends Thread {
 	public void run() {		
 		// A collection for all bundles.
 		Collection<BundleJarWrapper> all = new ArrayList<BundleJarWrapper>();
-		// A collection for newly installed bundles.
-		Collection<BundleJarWrapper> installed = new ArrayList<BundleJarWrapper>();
-		// A collection for started bundles.
-		Collection<BundleJarWrapper> started = new ArrayList<BundleJarWrapper>();
+		// A collection for newly installed bundles, may be added to by several installer threads.
+		Collection<BundleJarWrapper> installed = Collections.synchronizedList(new ArrayList<BundleJarWrapper>());
+		// A collection for bundles updated from changed jars, may be added to by several installer threads.
+		Collection<BundleJarWrapper> updated = Collections.synchronizedList(new ArrayList<BundleJarWrapper>());
+		// A collection for started bundles.  Bundles that are slow to start are added from the threads that start them.
+		Collection<BundleJarWrapper> started = Collections.synchronizedList(new ArrayList<BundleJarWrapper>());
 		// A collection for stopped bundles.
 		Collection<BundleJarWrapper> stopped = new ArrayList<BundleJarWrapper>();
 		// A collection for uninstalled bundles.
 		Collection<File> uninstalled = new ArrayList<File>();
 		
-		for (File bundleDir : bundleDirs) {
-			//Verify and setup fs
-			if (bundleDir.isFile()) {
-				logger.log(LogService.LOG_ERROR, "Bundle directory is a file, cannot start: " + bundleDir + ".");
-				return;
-			}
-				
-			logger.log(LogService.LOG_INFO, "Scanning bundle directory: " + bundleDir);
+		long installTime = 0;
+		long startTime = 0;
+		long stopTime = 0;
+		long time = System.currentTimeMillis();
+		
+		JarChangeDetector detector = getChangeDetector();
+		StartupTimeline timeline = StartupTimeline.getInstance();
+		ExecutorService installer = createExecutor(
+				ConfigurationConstants.CONFIG_KEY_INSTALL_THREADS, Runtime.getRuntime().availableProcessors(), "Knapsack Bundle Installer");
+		
+		// If directories are mapped to start levels, bundles are marked to start and the framework starts them by level.
+		BundleContext context = Launcher.getBundleContext();
+		FrameworkStartLevel startLevel = null;
+		int maxStartLevel = 0;
+		int directoryLevel = 0;
+		
+		if (PropertyHelper.getBoolean(ConfigurationConstants.CONFIG_KEY_DIRECTORY_START_LEVELS)) {
+			startLevel = context.getBundle(0).adapt(FrameworkStartLevel.class);
 			
-			if (!bundleDir.exists()) {
-				if (!bundleDir.mkdirs()) 
-					logger.log(LogService.LOG_ERROR, "Bundle directory cannot be created: " + bundleDir + ".");
+			if (startLevel == null)
+				logger.log(LogService.LOG_WARNING, "FrameworkStartLevel is not available, bundles will be started in directory order.");
+		}
+		
+		// If start threads are configured and the framework is not starting bundles by level, bundles are started concurrently in dependency order.
+		ExecutorService starterExecutor = null;
+		ConcurrentBundleStarter starter = null;
+		
+		if (startLevel == null) {
+			starterExecutor = createExecutor(ConfigurationConstants.CONFIG_KEY_START_THREADS, 1, "Knapsack Bundle Starter");
+			starter = createStarter(starterExecutor);
+		}
+		
+		try {
+			for (File bundleDir : bundleDirs) {
+				directoryLevel++;
+				
+
+				//Verify and setup fs
+				if (bundleDir.isFile()) {
+					logger.log(LogService.LOG_ERROR, "Bundle directory is a file, cannot start: " + bundleDir + ".");
+					return;
+				}
+					
+				logger.log(LogService.LOG_INFO, "Scanning bundle directory: " + bundleDir);
 				
-				continue;
+				if (!bundleDir.exists()) {
+					if (!bundleDir.mkdirs()) 
+						logger.log(LogService.LOG_ERROR, "Bundle directory cannot be created: " + bundleDir + ".");
+					
+					continue;
+				}
+				
+				//Install bundles.  All installs of a directory complete before the directory's bundles are started.
+				long phaseTime = System.currentTimeMillis();
+				Span span = timeline.begin(StartupTimeline.PHASE, "install " + bundleDir.getName());
+				Collection<BundleJarWrapper> bundles = installBundles(
+						restrictToChanges(Pipeline.<File>from(bundleDir).expand(FileFunctions.WALK_FILES_FN)),
+						new InstallBundleFunction(installed, updated, Launcher.getBundleContext()), 
+						installer);
+				installTime += System.currentTimeMillis() - phaseTime;
+				timeline.end(span);
+				
+				all.addAll(bundles);
+				
+				if (startLevel != null) {
+					AssignStartLevelFunction assign = new AssignStartLevelFunction(directoryLevel);
+					Applier.map(bundles, assign);
+					maxStartLevel = Math.max(maxStartLevel, assign.getMaxLevel());
+				}
+				
+				//Start bundles, or leave them to be started once the framework has started.
+				Collection<BundleJarWrapper> startable = Applier.map(bundles, new StartableBundleFilter());
+				if (startLevel != null || !deferStart(bundleDir, startable)) {
+					phaseTime = System.currentTimeMillis();
+					startBundles(bundleDir, startable, starter, started);
+					startTime += System.currentTimeMillis() - phaseTime;
+				}
+				
+				//Stop bundles
+				phaseTime = System.currentTimeMillis();
+				stopped.addAll(Applier.map( 
+						Applier.map(
+								bundles, new StoppableBundleFilter()), new StopBundleFunction()));
+				stopTime += System.currentTimeMillis() - phaseTime;
 			}
-						
-			//Install bundles
-			Collection<BundleJarWrapper> bundles = Applier.map(
-					Applier.map(bundleDir, FileFunctions.GET_FILES_FN),
-					new InstallBundleFunction(installed, Launcher.getBundleContext()));		
-			
-			all.addAll(bundles);
 			
-			//Start bundles
-			started.addAll(Applier.map(
-					Applier.map(
-							bundles, new StartableBundleFilter()), new StartBundleFunction()));
+			if (startLevel != null && maxStartLevel > 0)
+				raiseStartLevel(startLevel, maxStartLevel);
+		} finally {
+			if (installer != null)
+				installer.shutdownNow();
 			
-			//Stop bundles
-			stopped.addAll(Applier.map( 
-					Applier.map(
-							bundles, new StoppableBundleFilter()), new StopBundleFunction()));			
+			// Slow bundles are allowed to finish starting.
+			if (starterExecutor != null)
+				starterExecutor.shutdown();
 		}
 		
 		//Uninstall bundles
+		long phaseTime = System.currentTimeMillis();
 		uninstalled.addAll(Applier.map(
 				Applier.map(
-						bundleJarSizeMap.keySet(), new UninstallBundleFilter(all)), 
+						restrictToChanges(detector.getFiles()), new UninstallBundleFilter(all)), 
 						new UninstallBundleFunction()));
+		long uninstallTime = System.currentTimeMillis() - phaseTime;
+		
+		//Refresh packages of all updated bundles at once
+		if (updated.size() > 0)
+			refreshPackages(updated);
+		
+		try {
+			detector.save();
+		} catch (IOException e) {
+			logger.log(LogService.LOG_WARNING, "Unable to save bundle index.", e);
+		}
 	
 		if (installed != null && installed.size() > 0)
 			logger.log(LogService.LOG_INFO, "Installed Bundles: " + installed);
 		
+		if (updated != null && updated.size() > 0)
+			logger.log(LogService.LOG_INFO, "Updated Bundles: " + updated);
+		
 		if (started != null && started.size() > 0)
 			logger.log(LogService.LOG_INFO, "Started Bundles: " + started);
 		
@@ -127,14 +257,294 @@ public class BundleInitThread extends Thread {
 		
 		if (uninstalled != null && uninstalled.size() > 0)
 			logger.log(LogService.LOG_INFO, "Uninstalled Bundles: " + uninstalled);
+		
+		logger.log(LogService.LOG_INFO, "Bundle update completed in " + (System.currentTimeMillis() - time) 
+				+ "ms (install: " + installTime + "ms, start: " + startTime + "ms, stop: " + stopTime 
+				+ "ms, uninstall: " + uninstallTime + "ms).");
+	}
+
+	/**
+	 * Start the bundles of a directory, concurrently if a starter is given, otherwise serially.
+	 * 
+	 * @param bundleDir directory the bundles are in
+	 * @param bundles bundles to start
+	 * @param starter starter or null to start bundles serially
+	 * @param started bundles that were started are added to this collection
+	 */
+	private static void startBundles(File bundleDir, Collection<BundleJarWrapper> bundles, ConcurrentBundleStarter starter, Collection<BundleJarWrapper> started) {
+		StartupTimeline timeline = StartupTimeline.getInstance();
+		Span span = timeline.begin(StartupTimeline.PHASE, "start " + bundleDir.getName());
+		
+		if (starter != null)
+			starter.start(bundles, started);
+		else
+			started.addAll(Applier.map(bundles, new StartBundleFunction()));
+		
+		timeline.end(span);
+	}
+
+	/**
+	 * Leave the bundles of a directory to be started once the framework has started, see applyPendingStarts().
+	 * 
+	 * @param bundleDir
+	 * @param bundles
+	 * @return true if the framework has not started and the bundles will be started later, false if they should be started now.
+	 */
+	private static boolean deferStart(File bundleDir, Collection<BundleJarWrapper> bundles) {
+		synchronized (BundleInitThread.class) {
+			if (Launcher.getBundleContext().getBundle().getState() == Bundle.ACTIVE)
+				return false;
+			
+			Collection<BundleJarWrapper> pending = pendingStarts.get(bundleDir);
+			if (pending == null)
+				pendingStarts.put(bundleDir, pending = new ArrayList<BundleJarWrapper>());
+			
+			pending.addAll(bundles);
+			return true;
+		}
+	}
+
+	/**
+	 * Start the bundles that were scanned before the framework started, directory by directory.  Returns once the
+	 * bundles have started, failed to start, or have been found to be slow.
+	 */
+	public static void applyPendingStarts() {
+		Map<File, Collection<BundleJarWrapper>> directories;
+		
+		synchronized (BundleInitThread.class) {
+			if (pendingStarts.isEmpty())
+				return;
+			
+			directories = new LinkedHashMap<File, Collection<BundleJarWrapper>>(pendingStarts);
+			pendingStarts.clear();
+		}
+		
+		Collection<BundleJarWrapper> started = Collections.synchronizedList(new ArrayList<BundleJarWrapper>());
+		long time = System.currentTimeMillis();
+		ExecutorService executor = createExecutor(ConfigurationConstants.CONFIG_KEY_START_THREADS, 1, "Knapsack Bundle Starter");
+		
+		try {
+			ConcurrentBundleStarter starter = createStarter(executor);
+			
+			for (Entry<File, Collection<BundleJarWrapper>> e : directories.entrySet())
+				startBundles(e.getKey(), e.getValue(), starter, started);
+		} finally {
+			// Slow bundles are allowed to finish starting.
+			if (executor != null)
+				executor.shutdown();
+		}
+		
+		KnapsackLogger logger = Launcher.getLogger();
+		
+		if (started.size() > 0)
+			logger.log(LogService.LOG_INFO, "Started Bundles: " + started);
+		
+		logger.log(LogService.LOG_INFO, "Bundle start completed in " + (System.currentTimeMillis() - time) + "ms.");
+	}
+
+	/**
+	 * @param executor executor bundles are started on, or null
+	 * @return A starter for the executor, or null if bundles should be started serially.
+	 */
+	private static ConcurrentBundleStarter createStarter(ExecutorService executor) {
+		if (executor == null)
+			return null;
+		
+		FrameworkWiring wiring = Launcher.getBundleContext().getBundle(0).adapt(FrameworkWiring.class);
+		
+		if (wiring == null) {
+			Launcher.getLogger().log(LogService.LOG_WARNING, "FrameworkWiring is not available, bundles will be started serially.");
+			return null;
+		}
+		
+		return new ConcurrentBundleStarter(executor, wiring, 
+				PropertyHelper.getInt(ConfigurationConstants.CONFIG_KEY_START_TIMEOUT, DEFAULT_START_TIMEOUT));
+	}
+
+	/**
+	 * Raise the framework start level so the framework starts the marked bundles, one start level at a time.  
+	 * The change is asynchronous, so the scan does not wait on bundle activators.  If the framework has not 
+	 * started yet the level is raised once it has, see applyPendingStartLevel().
+	 * 
+	 * @param startLevel
+	 * @param level
+	 */
+	private void raiseStartLevel(FrameworkStartLevel startLevel, int level) {
+		synchronized (BundleInitThread.class) {
+			if (Launcher.getBundleContext().getBundle().getState() != Bundle.ACTIVE) {
+				pendingStartLevel = Math.max(pendingStartLevel, level);
+				return;
+			}
+		}
+		
+		if (startLevel.getStartLevel() < level) {
+			logger.log(LogService.LOG_INFO, "Raising framework start level from " + startLevel.getStartLevel() + " to " + level + ".");
+			startLevel.setStartLevel(level);
+		}
+	}
+
+	/**
+	 * Raise the framework start level to the level required by bundles that were scanned before the framework started.
+	 * Returns once the framework has reached the level, so that the bundles it starts are started as part of boot.
+	 * 
+	 * @param context
+	 */
+	public static void applyPendingStartLevel(BundleContext context) {
+		int level;
+		
+		synchronized (BundleInitThread.class) {
+			level = pendingStartLevel;
+			pendingStartLevel = 0;
+		}
+		
+		if (level == 0)
+			return;
+		
+		FrameworkStartLevel sl = context.getBundle(0).adapt(FrameworkStartLevel.class);
+		
+		if (sl != null && sl.getStartLevel() < level) {
+			Launcher.getLogger().log(LogService.LOG_INFO, "Raising framework start level from " + sl.getStartLevel() + " to " + level + ".");
+			
+			final CountDownLatch changed = new CountDownLatch(1);
+			sl.setStartLevel(level, new FrameworkListener() {
+				
+				@Override
+				public void frameworkEvent(FrameworkEvent event) {
+					changed.countDown();
+				}
+			});
+			
+			try {
+				changed.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Refresh the packages of a set of bundles with one call to the framework, so that dependent bundles are 
+	 * re-resolved once no matter how many bundles were updated.
+	 * 
+	 * @param bundles
+	 */
+	private void refreshPackages(Collection<BundleJarWrapper> bundles) {
+		FrameworkWiring wiring = Launcher.getBundleContext().getBundle(0).adapt(FrameworkWiring.class);
+		
+		if (wiring == null) {
+			logger.log(LogService.LOG_WARNING, "FrameworkWiring is not available, packages of updated bundles have not been refreshed.");
+			return;
+		}
+		
+		List<Bundle> bl = new ArrayList<Bundle>(bundles.size());
+		for (BundleJarWrapper wrapper : bundles)
+			bl.add(wrapper.getBundle());
+		
+		wiring.refreshBundles(bl);
+	}
+
+	/**
+	 * @param files
+	 * @return the input files or, if only changes are to be processed, the input files that have changed.  Files are filtered as they are read.
+	 */
+	private Iterable<File> restrictToChanges(Iterable<File> files) {
+		if (changes == null)
+			return files;
+		
+		return Pipeline.<File>from(files).map(new Applier.Fn<File, File>() {
+
+			@Override
+			public File apply(File f) {
+				return changes.contains(f) ? f : null;
+			}
+		});
+	}
+
+	/**
+	 * Install a set of jars.  If an executor is available the jars are installed concurrently, otherwise serially.  
+	 * Jars are read lazily, so the install of the first jar starts while the directory is still being walked.
+	 * In either case the method returns once every jar has been processed, and results are in the order of the input.
+	 * 
+	 * @param jars files to install
+	 * @param function install function
+	 * @param executor executor or null for serial installation
+	 * @return Collection of installed bundles.
+	 */
+	private Collection<BundleJarWrapper> installBundles(Iterable<File> jars, final InstallBundleFunction function, ExecutorService executor) {
+		if (executor == null)
+			return Pipeline.<File>from(jars).map(function).toList();
+		
+		List<Future<BundleJarWrapper>> futures = new ArrayList<Future<BundleJarWrapper>>();
+		
+		for (final File jar : jars)
+			futures.add(executor.submit(new Callable<BundleJarWrapper>() {
+
+				@Override
+				public BundleJarWrapper call() throws Exception {
+					return function.apply(jar);
+				}
+			}));
+		
+		Collection<BundleJarWrapper> bundles = new ArrayList<BundleJarWrapper>(futures.size());
+		
+		for (Future<BundleJarWrapper> future : futures) {
+			try {
+				BundleJarWrapper wrapper = future.get();
+				
+				if (wrapper != null)
+					bundles.add(wrapper);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				logger.log(LogService.LOG_WARNING, "Interrupted while installing bundles.");
+				break;
+			} catch (ExecutionException e) {
+				logger.log(LogService.LOG_ERROR, "An error occurred while installing a bundle.", e.getCause());
+			}
+		}
+		
+		return bundles;
 	}
 
 	/**
-	 * @return Map of installed bundles that their size when installed.
+	 * @param key property that holds the number of threads
+	 * @param defaultThreads number of threads if property is not set
+	 * @param name prefix for thread names
+	 * @return An executor or null if work should be done serially.
 	 */
-	public static Map<File, Long> getBundleSizeMap() {
+	private static ExecutorService createExecutor(String key, int defaultThreads, final String name) {
+		int threads = PropertyHelper.getInt(key, defaultThreads);
+		
+		if (threads < 2)
+			return null;
+		
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count = 0;
+			
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + " " + (++count));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
 
-		return bundleJarSizeMap;
+	/**
+	 * @return Tracks the state of installed bundle jars.  On first access state is loaded from the bundle index in the root directory.
+	 */
+	static synchronized JarChangeDetector getChangeDetector() {
+		if (changeDetector == null) {
+			changeDetector = new JarChangeDetector(
+					new File(System.getProperty(ConfigurationConstants.CONFIG_KEY_ROOT_DIR), ConfigurationConstants.BUNDLE_INDEX_FILENAME));
+			
+			try {
+				changeDetector.load();
+			} catch (IOException e) {
+				Launcher.getLogger().log(LogService.LOG_WARNING, "Unable to load bundle index, all bundle jars will be checked.", e);
+			}
+		}
+		
+		return changeDetector;
 	}
 
 }
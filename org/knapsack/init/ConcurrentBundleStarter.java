@@ -0,0 +1,335 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.init;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.knapsack.KnapsackLogger;
+import org.knapsack.Launcher;
+import org.knapsack.StartupTimeline;
+import org.knapsack.StartupTimeline.Span;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.osgi.service.log.LogService;
+
+/**
+ * Starts a set of bundles concurrently.  The bundles are resolved first and the package wiring between them is
+ * used to order the starts: a bundle is only started after every bundle in the set that it imports packages from
+ * has been started.  Bundles that do not depend on each other are started in parallel.
+ *
+ * A bundle whose activator takes longer than the timeout is reported as slow and its dependents are started
+ * without waiting for it.  The slow start continues in the background.  The timeout runs from when the bundle begins
+ * to start, not from when it is queued, so bundles waiting for a thread are never reported as slow.
+ *
+ * @author kgilmer
+ *
+ */
+class ConcurrentBundleStarter {
+	private final ExecutorService executor;
+	private final FrameworkWiring frameworkWiring;
+	private final long timeout;
+	private final KnapsackLogger logger;
+
+	/**
+	 * @param executor executor bundles are started on
+	 * @param frameworkWiring wiring of the framework, used to resolve bundles before the wiring between them is read
+	 * @param timeout time in milliseconds after which a starting bundle is considered slow
+	 */
+	public ConcurrentBundleStarter(ExecutorService executor, FrameworkWiring frameworkWiring, long timeout) {
+		this.executor = executor;
+		this.frameworkWiring = frameworkWiring;
+		this.timeout = timeout;
+		this.logger = Launcher.getLogger();
+	}
+
+	/**
+	 * Start bundles and wait until each has started, failed to start, or has been found to be slow.
+	 *
+	 * @param bundles bundles to start
+	 * @param started bundles that were started are added to this collection.  Slow bundles are added once they have
+	 * started, which may be after this method returns, so the collection must be thread-safe.
+	 */
+	public void start(Collection<BundleJarWrapper> bundles, Collection<BundleJarWrapper> started) {
+		if (bundles.isEmpty())
+			return;
+
+		Map<Bundle, BundleJarWrapper> wrappers = new HashMap<Bundle, BundleJarWrapper>();
+		for (BundleJarWrapper wrapper : bundles)
+			wrappers.put(wrapper.getBundle(), wrapper);
+
+		StartupTimeline timeline = StartupTimeline.getInstance();
+		Span span = timeline.begin(StartupTimeline.PHASE, "resolve");
+		frameworkWiring.resolveBundles(wrappers.keySet());
+		timeline.end(span);
+
+		// For each bundle, the bundles of the set that import from it, and the number of providers each bundle waits on.
+		Map<Bundle, List<Bundle>> consumers = new HashMap<Bundle, List<Bundle>>();
+		Map<Bundle, Integer> providerCount = new HashMap<Bundle, Integer>();
+		buildGraph(wrappers.keySet(), consumers, providerCount);
+
+		Starts starts = new Starts(new ExecutorCompletionService<StartResult>(executor), started);
+		int released = 0;
+
+		for (Entry<Bundle, Integer> e : providerCount.entrySet())
+			if (e.getValue() == 0)
+				starts.submit(wrappers.get(e.getKey()));
+
+		while (released < wrappers.size()) {
+			if (starts.running.isEmpty()) {
+				// Remaining bundles wait on each other, start them without regard to order.
+				logger.log(LogService.LOG_DEBUG, "Circular package dependencies found, starting remaining bundles unordered.");
+				for (Entry<Bundle, Integer> e : providerCount.entrySet())
+					if (e.getValue() > 0) {
+						e.setValue(0);
+						starts.submit(wrappers.get(e.getKey()));
+					}
+			}
+
+			Future<StartResult> f;
+			try {
+				f = starts.completion.poll(starts.getWaitTime(), TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				logger.log(LogService.LOG_WARNING, "Interrupted while starting bundles.");
+				break;
+			}
+
+			if (f == null) {
+				// Nothing completed in time, release the dependents of slow bundles.  Releasing submits to running, so slow bundles are found first.
+				long now = System.currentTimeMillis();
+				List<Bundle> slow = new ArrayList<Bundle>();
+				for (Iterator<Bundle> i = starts.running.iterator(); i.hasNext();) {
+					Bundle b = i.next();
+					Long begun = starts.begun.get(b);
+
+					if (begun != null && now - begun >= timeout) {
+						i.remove();
+						slow.add(b);
+					}
+				}
+
+				for (Bundle b : slow) {
+					released++;
+					logger.log(LogService.LOG_WARNING, "Bundle " + wrappers.get(b) + " is slow to start (over " + timeout + "ms), starting its dependents.");
+					release(b, consumers, providerCount, starts, wrappers);
+				}
+
+				continue;
+			}
+
+			StartResult result;
+			try {
+				result = f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (ExecutionException e) {
+				logger.log(LogService.LOG_ERROR, "An error occurred while starting a bundle.", e.getCause());
+				continue;
+			}
+
+			Bundle b = result.wrapper.getBundle();
+
+			// Bundles already found to be slow were released when their time ran out.
+			if (!starts.running.remove(b))
+				continue;
+
+			released++;
+			release(b, consumers, providerCount, starts, wrappers);
+		}
+	}
+
+	/**
+	 * Find which bundles of the set import packages that other bundles of the set export.
+	 *
+	 * @param bundles
+	 * @param consumers
+	 * @param providerCount
+	 */
+	private void buildGraph(Collection<Bundle> bundles, Map<Bundle, List<Bundle>> consumers, Map<Bundle, Integer> providerCount) {
+		for (Bundle b : bundles) {
+			consumers.put(b, new ArrayList<Bundle>());
+			providerCount.put(b, 0);
+		}
+
+		for (Bundle provider : bundles) {
+			// Bundles that could not be resolved have no wiring.
+			BundleWiring wiring = provider.adapt(BundleWiring.class);
+			List<BundleWire> wires = wiring != null ? wiring.getProvidedWires(BundleRevision.PACKAGE_NAMESPACE) : null;
+
+			if (wires == null)
+				continue;
+
+			List<Bundle> pc = consumers.get(provider);
+
+			for (BundleWire wire : wires) {
+				Bundle consumer = wire.getRequirerWiring().getBundle();
+
+				if (consumer != provider && providerCount.containsKey(consumer) && !pc.contains(consumer)) {
+					pc.add(consumer);
+					providerCount.put(consumer, providerCount.get(consumer) + 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A provider has started (or is slow), start consumers that are no longer waiting on any provider.
+	 */
+	private void release(Bundle provider, Map<Bundle, List<Bundle>> consumers, Map<Bundle, Integer> providerCount,
+			Starts starts, Map<Bundle, BundleJarWrapper> wrappers) {
+		for (Bundle consumer : consumers.get(provider)) {
+			int count = providerCount.get(consumer);
+
+			if (count == 0)
+				continue;
+
+			providerCount.put(consumer, --count);
+
+			if (count == 0)
+				starts.submit(wrappers.get(consumer));
+		}
+	}
+
+	/**
+	 * The bundles of one call to start() that have been submitted.
+	 */
+	private final class Starts {
+		private final CompletionService<StartResult> completion;
+		private final Collection<BundleJarWrapper> started;
+		/**
+		 * Bundles that are queued or starting and not yet found to be slow.  Only used by the thread that calls start().
+		 */
+		private final Set<Bundle> running = new HashSet<Bundle>();
+		/**
+		 * Time each bundle began to start, set by the thread that starts it.
+		 */
+		private final Map<Bundle, Long> begun = new ConcurrentHashMap<Bundle, Long>();
+
+		/**
+		 * @param completion
+		 * @param started
+		 */
+		public Starts(CompletionService<StartResult> completion, Collection<BundleJarWrapper> started) {
+			this.completion = completion;
+			this.started = started;
+		}
+
+		/**
+		 * @param wrapper
+		 */
+		public void submit(BundleJarWrapper wrapper) {
+			running.add(wrapper.getBundle());
+			completion.submit(new StartTask(wrapper, this));
+		}
+
+		/**
+		 * @return time to wait for the next bundle to start before checking for slow bundles.
+		 */
+		public long getWaitTime() {
+			long earliest = Long.MAX_VALUE;
+
+			for (Bundle b : running) {
+				Long t = begun.get(b);
+
+				if (t != null)
+					earliest = Math.min(earliest, t);
+			}
+
+			// If all are queued, a bundle can only begin once another completes, which ends the wait.
+			if (earliest == Long.MAX_VALUE)
+				return timeout;
+
+			return Math.max(1, earliest + timeout - System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Start a bundle and time its activation.
+	 */
+	private final class StartTask implements Callable<StartResult> {
+		private final BundleJarWrapper wrapper;
+		private final Starts starts;
+
+		/**
+		 * @param wrapper
+		 * @param starts
+		 */
+		public StartTask(BundleJarWrapper wrapper, Starts starts) {
+			this.wrapper = wrapper;
+			this.starts = starts;
+		}
+
+		@Override
+		public StartResult call() throws Exception {
+			// First, so that a task that fails is released once its time runs out.
+			long time = System.currentTimeMillis();
+			starts.begun.put(wrapper.getBundle(), time);
+
+			try {
+				wrapper.getBundle().start();
+			} catch (Exception e) {
+				logger.log(LogService.LOG_ERROR, "Unable to start " + wrapper.getJar() + ".", e);
+				return new StartResult(wrapper);
+			}
+
+			time = System.currentTimeMillis() - time;
+
+			if (time >= timeout)
+				logger.log(LogService.LOG_WARNING, "Started " + wrapper + " in " + time + "ms.");
+			else
+				logger.log(LogService.LOG_DEBUG, "Started " + wrapper + " in " + time + "ms.");
+
+			starts.started.add(wrapper);
+
+			return new StartResult(wrapper);
+		}
+	}
+
+	/**
+	 * A bundle that has started or failed to start.
+	 */
+	private static final class StartResult {
+		private final BundleJarWrapper wrapper;
+
+		/**
+		 * @param wrapper
+		 */
+		public StartResult(BundleJarWrapper wrapper) {
+			this.wrapper = wrapper;
+		}
+	}
+}
@@ -17,6 +17,7 @@
 package org.knapsack.init;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
@@ -24,6 +25,8 @@ import java.util.Map;
 
 import org.knapsack.KnapsackLogger;
 import org.knapsack.Launcher;
+import org.knapsack.StartupTimeline;
+import org.knapsack.StartupTimeline.Span;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
@@ -40,11 +43,18 @@ class InstallBundleFunction implements Applier.Fn<File, BundleJarWrapper> {
 
 	private final Map<String, Bundle> installedBundleMap;
 	private final Collection<BundleJarWrapper> installed;
+	private final Collection<BundleJarWrapper> updated;
 	private final BundleContext context;
 	private final KnapsackLogger logger;
 
-	public InstallBundleFunction(Collection<BundleJarWrapper> installed, BundleContext context) {
+	/**
+	 * @param installed collection to add newly installed bundles to
+	 * @param updated collection to add bundles updated from a changed jar to
+	 * @param context
+	 */
+	public InstallBundleFunction(Collection<BundleJarWrapper> installed, Collection<BundleJarWrapper> updated, BundleContext context) {
 		this.installed = installed;
+		this.updated = updated;
 		this.context = context;
 		this.logger = Launcher.getLogger();
 		installedBundleMap = createLocationList(context);
@@ -66,55 +76,91 @@ class InstallBundleFunction implements Applier.Fn<File, BundleJarWrapper> {
 		}
 		
 		String fileUri = fileToUri(element);
+		boolean alreadyInstalled = isInstalled(fileUri);
+		StartupTimeline timeline = StartupTimeline.getInstance();
 		
-		if (isInstalled(fileUri) && !fileChanged(element)) {
-			logger.log(LogService.LOG_DEBUG, element.getName() + " is already installed.");
-			return new BundleJarWrapper(element, installedBundleMap.get(fileUri));
-		} else if (isInstalled(fileUri) && fileChanged(element)) {
-			uninstallBundle(installedBundleMap.get(fileUri));
+		if (alreadyInstalled) {
+			Bundle b = installedBundleMap.get(fileUri);
+			
+			if (!fileChanged(element, b)) {
+				logger.log(LogService.LOG_DEBUG, element.getName() + " is already installed.");
+				return new BundleJarWrapper(element, b);
+			} 
+			
+			Span span = timeline.begin(StartupTimeline.INSTALL, element.getName());
+			try {
+				return updateBundle(element, b);
+			} finally {
+				timeline.end(span);
+			}
 		}
 			
+		Span span = timeline.begin(StartupTimeline.INSTALL, element.getName());
 		try {
 			Bundle b = context.installBundle(fileUri);		
-			BundleInitThread.getBundleSizeMap().put(element, element.length());
+			recordFile(element, b);
 			BundleJarWrapper wrapper = new BundleJarWrapper(element, b);
 			installed.add(wrapper);
 			return wrapper;		
 		} catch (BundleException e) {
 			logger.log(LogService.LOG_ERROR, "Unable to install " + element.getName() + " as a bundle.", e);
 			return null;
+		} finally {
+			timeline.end(span);
 		}
 	}
 
 	/**
-	 * Uninstall a bundle.  Will absorb any BundleException and log it but allow installation process to continue rather than aborting.
+	 * Record the state of an installed jar so that later scans can detect changes.
 	 * 
+	 * @param element
 	 * @param bundle
 	 */
-	private void uninstallBundle(Bundle bundle) {
+	private void recordFile(File element, Bundle bundle) {
 		try {
-			bundle.uninstall();
+			BundleInitThread.getChangeDetector().record(element, bundle.getBundleId());
+		} catch (IOException e) {
+			logger.log(LogService.LOG_WARNING, "Unable to read " + element + ", changes to it will not be detected.", e);
+		}
+	}
+
+	/**
+	 * Update a bundle in place from its changed jar.  The bundle keeps its id, and packages are not refreshed 
+	 * here so that all bundles updated in a scan can be refreshed together.  Will absorb any BundleException 
+	 * and log it but allow installation process to continue rather than aborting.
+	 * 
+	 * @param element
+	 * @param bundle
+	 * @return wrapper for the bundle, whether or not the update succeeded.
+	 */
+	private BundleJarWrapper updateBundle(File element, Bundle bundle) {
+		BundleJarWrapper wrapper = new BundleJarWrapper(element, bundle);
+		
+		try {
+			bundle.update();
+			recordFile(element, bundle);
+			updated.add(wrapper);
 		} catch (BundleException e) {
-			logger.log(LogService.LOG_ERROR, "An error occurred while uninstalling " + bundle.getLocation() + ".", e);
+			logger.log(LogService.LOG_ERROR, "An error occurred while updating " + bundle.getLocation() + ".", e);
 		}
+		
+		return wrapper;
 	}
 
 	/**
 	 * Compares file on filesystem to internal state of file to determine if they are different.
 	 * 
 	 * @param element
+	 * @param bundle
 	 * @return
 	 */
-	private boolean fileChanged(File element) {
-		Map<File, Long> bsm = BundleInitThread.getBundleSizeMap();
-		
-		if (!bsm.containsKey(element))
-			return true;
-		
-		if (bsm.get(element) != element.length())
+	private boolean fileChanged(File element, Bundle bundle) {
+		try {
+			return BundleInitThread.getChangeDetector().isChanged(element, bundle.getBundleId());
+		} catch (IOException e) {
+			logger.log(LogService.LOG_WARNING, "Unable to read " + element + ", assuming it has changed.", e);
 			return true;
-		
-		return false;
+		}
 	}
 
 	/**
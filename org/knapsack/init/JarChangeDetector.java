@@ -0,0 +1,262 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.init;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.knapsack.FSHelper;
+
+/**
+ * Determines if a bundle jar has changed since it was installed.
+ *
+ * The size and modification time of a jar are compared first.  Only if one of them has moved
+ * is the content of the jar read and compared by digest, so a jar that was touched or copied
+ * over with identical content is not considered changed.  Checking a jar that has not been
+ * modified does not read the file.
+ *
+ * The recorded state can be stored in an index file so that it survives a restart.  Each line of
+ * the index holds the size, modification time, bundle id, digest and path of a jar, separated by tabs.
+ *
+ * @author kgilmer
+ *
+ */
+class JarChangeDetector {
+	private static final String DIGEST_ALGORITHM = "SHA-1";
+	private static final int BUFFER_SIZE = 1024 * 8;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final String INDEX_HEADER = "# knapsack bundle index 1";
+	private static final String INDEX_ENCODING = "UTF-8";
+	private static final char INDEX_SEPARATOR = '\t';
+	private static final int INDEX_FIELDS = 5;
+
+	private final Map<File, Fingerprint> fingerprints = new ConcurrentHashMap<File, Fingerprint>();
+	private final File indexFile;
+
+	/**
+	 * @param indexFile file the recorded state is loaded from and saved to, or null if state should not be persisted.
+	 */
+	public JarChangeDetector(File indexFile) {
+		this.indexFile = indexFile;
+	}
+
+	/**
+	 * @param jar jar file
+	 * @param bundleId id of the bundle currently installed from the jar
+	 * @return true if the jar has not been recorded for this bundle or the content of the jar differs from the recorded content.
+	 * @throws IOException if the jar cannot be read
+	 */
+	public boolean isChanged(File jar, long bundleId) throws IOException {
+		Fingerprint recorded = fingerprints.get(jar);
+
+		// If the framework installed a different bundle from this location than the one recorded, the record is stale.
+		if (recorded == null || recorded.bundleId != bundleId)
+			return true;
+
+		long size = jar.length();
+		long lastModified = jar.lastModified();
+
+		if (recorded.size == size && recorded.lastModified == lastModified)
+			return false;
+
+		String digest = digest(jar);
+
+		if (!digest.equals(recorded.digest))
+			return true;
+
+		// Same content, remember the new attributes so the next check does not read the file.
+		fingerprints.put(jar, new Fingerprint(size, lastModified, bundleId, digest));
+		return false;
+	}
+
+	/**
+	 * Record the current state of a jar.
+	 *
+	 * @param jar jar file
+	 * @param bundleId id of the bundle installed from the jar
+	 * @throws IOException if the jar cannot be read
+	 */
+	public void record(File jar, long bundleId) throws IOException {
+		long size = jar.length();
+		long lastModified = jar.lastModified();
+
+		fingerprints.put(jar, new Fingerprint(size, lastModified, bundleId, digest(jar)));
+	}
+
+	/**
+	 * @param jar jar file to no longer track.
+	 */
+	public void remove(File jar) {
+		fingerprints.remove(jar);
+	}
+
+	/**
+	 * @return jars that are tracked.
+	 */
+	public Set<File> getFiles() {
+		return fingerprints.keySet();
+	}
+
+	/**
+	 * Load the recorded state from the index file, if it exists.  Malformed lines are ignored.
+	 *
+	 * @throws IOException on I/O error
+	 */
+	public synchronized void load() throws IOException {
+		if (indexFile == null || !indexFile.isFile())
+			return;
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), INDEX_ENCODING));
+		try {
+			String line = reader.readLine();
+
+			if (line == null || !line.equals(INDEX_HEADER))
+				return;
+
+			while ((line = reader.readLine()) != null) {
+				String[] elems = line.split(String.valueOf(INDEX_SEPARATOR), INDEX_FIELDS);
+
+				if (elems.length != INDEX_FIELDS)
+					continue;
+
+				try {
+					fingerprints.put(new File(elems[4]), new Fingerprint(
+							Long.parseLong(elems[0]), Long.parseLong(elems[1]), Long.parseLong(elems[2]), elems[3]));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+			}
+		} finally {
+			FSHelper.closeQuietly(reader);
+		}
+	}
+
+	/**
+	 * Save the recorded state to the index file.  The index is written to a temporary file first and then
+	 * renamed so that an interrupted save does not leave a truncated index behind.
+	 *
+	 * @throws IOException on I/O error
+	 */
+	public synchronized void save() throws IOException {
+		if (indexFile == null)
+			return;
+
+		File tmp = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), INDEX_ENCODING));
+		try {
+			writer.write(INDEX_HEADER);
+			writer.write('\n');
+
+			for (Entry<File, Fingerprint> e : fingerprints.entrySet()) {
+				Fingerprint fp = e.getValue();
+
+				writer.write(Long.toString(fp.size));
+				writer.write(INDEX_SEPARATOR);
+				writer.write(Long.toString(fp.lastModified));
+				writer.write(INDEX_SEPARATOR);
+				writer.write(Long.toString(fp.bundleId));
+				writer.write(INDEX_SEPARATOR);
+				writer.write(fp.digest);
+				writer.write(INDEX_SEPARATOR);
+				writer.write(e.getKey().getPath());
+				writer.write('\n');
+			}
+		} finally {
+			FSHelper.closeQuietly(writer);
+		}
+
+		if (!tmp.renameTo(indexFile)) {
+			// Some platforms will not rename over an existing file.
+			indexFile.delete();
+
+			if (!tmp.renameTo(indexFile))
+				throw new IOException("Unable to write " + indexFile);
+		}
+	}
+
+	/**
+	 * Compute the digest of a file by streaming its content.
+	 *
+	 * @param file input file
+	 * @return hex encoded digest
+	 * @throws IOException on I/O error
+	 */
+	static String digest(File file) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Digest algorithm is not available: " + DIGEST_ALGORITHM, e);
+		}
+
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n = 0;
+			while (-1 != (n = in.read(buffer)))
+				md.update(buffer, 0, n);
+		} finally {
+			FSHelper.closeQuietly(in);
+		}
+
+		byte[] d = md.digest();
+		char[] hex = new char[d.length * 2];
+		for (int i = 0; i < d.length; ++i) {
+			hex[i * 2] = HEX[(d[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX[d[i] & 0xf];
+		}
+
+		return new String(hex);
+	}
+
+	/**
+	 * The recorded state of a jar.
+	 */
+	private static final class Fingerprint {
+		private final long size;
+		private final long lastModified;
+		private final long bundleId;
+		private final String digest;
+
+		/**
+		 * @param size size of file in bytes
+		 * @param lastModified modification time of file
+		 * @param bundleId id of bundle installed from file
+		 * @param digest digest of file content
+		 */
+		public Fingerprint(long size, long lastModified, long bundleId, String digest) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.bundleId = bundleId;
+			this.digest = digest;
+		}
+	}
+}
@@ -21,6 +21,7 @@ import java.util.Collection;
 
 import org.knapsack.ConfigurationConstants;
 import org.knapsack.init.pub.KnapsackInitService;
+import org.osgi.framework.BundleContext;
 import org.sprinkles.Applier;
 
 /**
@@ -33,6 +34,7 @@ public class KnapsackInitServiceImpl implements KnapsackInitService {
 	private final File baseDir;
 	private Collection<File> bundleDirs = null;
 	private String dirList;
+	private BundleDirectoryWatcher watcher;
 
 	/**
 	 * @param baseDir
@@ -52,12 +54,48 @@ public class KnapsackInitServiceImpl implements KnapsackInitService {
 	
 	
 	/**
-	 * Called by knapsack Activator synchronously so that all bundles are resolved before framework start event is fired.
+	 * Called by knapsack Activator synchronously so that all bundles are installed before the framework starts.  Bundles
+	 * are started once it has, see frameworkStarted().
 	 */
 	public void updateBundlesSync() {
 		(new BundleInitThread(getBundleDirectories())).run();
 	}
 
+	/**
+	 * Called once the framework has started to start the bundles that were installed before start, and to raise the 
+	 * framework start level to the level they require.
+	 * 
+	 * @param context
+	 */
+	public void frameworkStarted(BundleContext context) {
+		BundleInitThread.applyPendingStarts();
+		BundleInitThread.applyPendingStartLevel(context);
+	}
+	
+	/**
+	 * Start watching the bundle directories for changes.  Has no effect if already watching.
+	 * 
+	 * @param interval time in milliseconds between checks of the bundle directories.
+	 */
+	public synchronized void startWatching(long interval) {
+		if (watcher != null)
+			return;
+		
+		watcher = new BundleDirectoryWatcher(getBundleDirectories(), interval);
+		watcher.start();
+	}
+	
+	/**
+	 * Stop watching the bundle directories for changes.
+	 */
+	public synchronized void stopWatching() {
+		if (watcher == null)
+			return;
+		
+		watcher.shutdown();
+		watcher = null;
+	}
+
 	@Override
 	public Collection<File> getBundleDirectories() {
 		if (bundleDirs == null)
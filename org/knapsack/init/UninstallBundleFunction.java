@@ -51,7 +51,7 @@ public class UninstallBundleFunction implements Applier.Fn<File, File> {
 		if (bundle != null) {
 			try {
 				bundle.uninstall();
-				BundleInitThread.getBundleSizeMap().remove(element);
+				BundleInitThread.getChangeDetector().remove(element);
 			} catch (BundleException e) {
 				logger.log(LogService.LOG_ERROR, "Unable to uninstall " + element + ".", e);
 				return null;
@@ -59,6 +59,8 @@ public class UninstallBundleFunction implements Applier.Fn<File, File> {
 
 			return element;
 		} else {
+			// The jar was recorded in a previous session but its bundle is no longer installed.
+			BundleInitThread.getChangeDetector().remove(element);
 			return null;
 		}
 	}
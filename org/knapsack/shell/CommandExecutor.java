@@ -16,21 +16,40 @@
  */
 package org.knapsack.shell;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.List;
 
+import org.knapsack.ConfigurationConstants;
+import org.knapsack.shell.commands.AbstractKnapsackCommand;
 import org.knapsack.shell.pub.IKnapsackCommand;
+import org.knapsack.shell.pub.IStreamingKnapsackCommand;
+import org.knapsack.shell.pub.IStructuredKnapsackCommand;
 import org.osgi.framework.BundleException;
 
 /**
  * Given an input String, find command to execute, execute, and return results.
  * 
+ * An executor may be called from several threads.  Command instances are shared, so commands based on AbstractKnapsackCommand
+ * run on a copy made for each call and all calls run in parallel.  Other commands are initialized and executed while holding
+ * their lock: calls to the same command run one at a time.
+ * 
+ * The output format is text unless the command line has the option --format=json or --format=line, or another default
+ * is configured.  In these formats commands that implement IStructuredKnapsackCommand write records, the output of 
+ * other commands is returned in a record with the field "output".
+ * 
  * @author kgilmer
  * 
  */
 public class CommandExecutor {
+	/**
+	 * Prefix of the option that selects the output format.
+	 */
+	private static final String FORMAT_OPTION = "--format=";
+
 	private final CommandParser parser;
 
 	protected CommandExecutor(CommandParser parser) {
@@ -41,60 +60,180 @@ public class CommandExecutor {
 	 * Executes the command entered by user.
 	 * 
 	 * @param line
-	 * @param justCrlf
-	 * @param pwErr
+	 * @return output of command
 	 * @throws IOException
 	 */
 	public String executeCommand(String line) throws IOException {
-		if (line == null) {
-			// JVM is being shutdown
-			return "";
-		} else if (line.length() > 0) {
-			IKnapsackCommand cmd = parser.parse(line);
-
-			if (cmd == null)
-				return "Unknown command: " + line;
-
-			if (hasHelpParam(cmd)) {
-				String rs = "";
-
-				if (cmd.getDescription() != null)
-					rs = cmd.getDescription();
-
-				return rs + StringConstants.CRLF + "Usage: " + cmd.getName() + " " + cmd.getUsage();
-			} else if (cmd != null && cmd.isValid()) {
-				try {
-					return cmd.execute();
-				} catch (Exception e) {
-					String es = "An error occurred while executing: " + cmd.getName() + StringConstants.CRLF;
-
-					if (e.getCause() != null && e.getCause().getMessage() != null) {
-						es = es + StringConstants.CRLF + "Message: " + e.getMessage() + StringConstants.CRLF + e.getCause().getMessage() + StringConstants.CRLF;
-					} else if (e.getMessage() != null) {
-						es = es + StringConstants.CRLF + "Message: " + e.getMessage() + StringConstants.CRLF;
-					}
-					ByteArrayOutputStream baos = new ByteArrayOutputStream();
-					PrintWriter pw = new PrintWriter(new OutputStreamWriter(baos));
-
-					e.printStackTrace(new PrintWriter(pw));
-					pw.flush();
-
-					if (e instanceof BundleException)
-						if (((BundleException) e).getNestedException() != null) {
-							((BundleException) e).getNestedException().printStackTrace(pw);
-							pw.flush();
-						}
-
-					return es + baos.toString();
-				}
-			} else {
-				String es = "Invalid usage of command " + cmd.getName() + StringConstants.CRLF;
-				return es + "Usage: " + cmd.getName() + " " + cmd.getUsage();
+		StringWriter sw = new StringWriter();
+		executeCommand(line, sw);
+		
+		return sw.toString();
+	}
+
+	/**
+	 * Executes the command entered by user, writing the output as it is produced.  Commands that return
+	 * their output as a String are written out once they complete.
+	 * 
+	 * @param line
+	 * @param out
+	 * @throws IOException
+	 */
+	public void executeCommand(String line, Writer out) throws IOException {
+		if (line == null || line.length() == 0) {
+			// JVM is being shutdown, or the input was empty
+			return;
+		}
+		
+		IKnapsackCommand cmd = parser.getCommand(line);
+
+		if (cmd == null) {
+			out.write("Unknown command: " + line);
+			return;
+		}
+
+		List<String> args = parser.parseArguments(line);
+		String format = takeFormat(args);
+		
+		if (!RecordEncoder.isFormat(format)) {
+			out.write("Unknown output format: " + format);
+			return;
+		}
+
+		if (cmd instanceof AbstractKnapsackCommand) {
+			executeCommand(((AbstractKnapsackCommand) cmd).copy(), args, format, out);
+			return;
+		}
+		
+		// Commands that cannot be copied are shared by all calls, so their output is buffered
+		// rather than held up by a slow client while the command is locked.
+		StringWriter sw = new StringWriter();
+		
+		synchronized (cmd) {
+			executeCommand(cmd, args, format, sw);
+		}
+		
+		out.write(sw.toString());
+	}
+
+	/**
+	 * @param cmd command, not used by any other thread until it completes.
+	 * @param args arguments of command
+	 * @param format output format
+	 * @param out writer for the output of command
+	 * @throws IOException
+	 */
+	private void executeCommand(IKnapsackCommand cmd, List<String> args, String format, Writer out) throws IOException {
+		RecordEncoder records = RecordEncoder.create(format, out);
+		cmd.initialize(args, parser.getContext());
+		
+		if (records == null)
+			executeCommand(cmd, out);
+		else
+			executeCommand(cmd, records);
+	}
+
+	/**
+	 * Remove the output format option from the arguments of a command.
+	 * 
+	 * @param args arguments, may be null.
+	 * @return The output format given by the arguments, or the configured default.
+	 */
+	private static String takeFormat(List<String> args) {
+		String format = System.getProperty(ConfigurationConstants.CONFIG_KEY_SHELL_FORMAT, RecordEncoder.FORMAT_TEXT);
+		
+		if (args == null)
+			return format;
+		
+		for (Iterator<String> i = args.iterator(); i.hasNext();) {
+			String arg = i.next();
+			
+			if (arg.startsWith(FORMAT_OPTION)) {
+				format = arg.substring(FORMAT_OPTION.length());
+				i.remove();
 			}
 		}
+		
+		return format;
+	}
 
-		// The input was empty
-		return "";
+	/**
+	 * Execute a command in a structured output format.  Usage, errors and the output of commands that do not write
+	 * records are returned as text in one record.
+	 * 
+	 * @param cmd initialized command
+	 * @param records encoder for the output of command.
+	 * @throws IOException
+	 */
+	private void executeCommand(IKnapsackCommand cmd, RecordEncoder records) throws IOException {
+		if (cmd instanceof IStructuredKnapsackCommand && cmd.isValid() && !hasHelpParam(cmd)) {
+			try {
+				((IStructuredKnapsackCommand) cmd).execute(records);
+				return;
+			} catch (Exception e) {
+				// A record that was cut short is dropped, the error is returned in a record of its own.
+				records.discardRecord();
+				records = RecordEncoder.create(records.getFormat(), records.getTarget());
+				records.beginRecord();
+				records.field("error", "An error occurred while executing: " + cmd.getName());
+				records.field("message", e.getMessage());
+				records.endRecord();
+				return;
+			}
+		}
+		
+		StringWriter sw = new StringWriter();
+		executeCommand(cmd, sw);
+		
+		records.beginRecord();
+		records.field("output", sw.toString());
+		records.endRecord();
+	}
+
+	/**
+	 * @param cmd initialized command
+	 * @param out writer for the output of command, or an error message.
+	 * @throws IOException
+	 */
+	private void executeCommand(IKnapsackCommand cmd, Writer out) throws IOException {
+		if (hasHelpParam(cmd)) {
+			if (cmd.getDescription() != null)
+				out.write(cmd.getDescription());
+
+			out.write(StringConstants.CRLF + "Usage: " + cmd.getName() + " " + cmd.getUsage());
+		} else if (cmd.isValid()) {
+			try {
+				if (cmd instanceof IStreamingKnapsackCommand) {
+					((IStreamingKnapsackCommand) cmd).execute(out);
+				} else {
+					String resp = cmd.execute();
+					
+					if (resp != null)
+						out.write(resp);
+				}
+			} catch (Exception e) {
+				String es = "An error occurred while executing: " + cmd.getName() + StringConstants.CRLF;
+
+				if (e.getCause() != null && e.getCause().getMessage() != null) {
+					es = es + StringConstants.CRLF + "Message: " + e.getMessage() + StringConstants.CRLF + e.getCause().getMessage() + StringConstants.CRLF;
+				} else if (e.getMessage() != null) {
+					es = es + StringConstants.CRLF + "Message: " + e.getMessage() + StringConstants.CRLF;
+				}
+				out.write(es);
+				
+				PrintWriter pw = new PrintWriter(out);
+
+				e.printStackTrace(pw);
+
+				if (e instanceof BundleException)
+					if (((BundleException) e).getNestedException() != null)
+						((BundleException) e).getNestedException().printStackTrace(pw);
+				
+				pw.flush();
+			}
+		} else {
+			out.write("Invalid usage of command " + cmd.getName() + StringConstants.CRLF);
+			out.write("Usage: " + cmd.getName() + " " + cmd.getUsage());
+		}
 	}
 
 	/**
@@ -20,9 +20,10 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.knapsack.FSHelper;
 import org.knapsack.Launcher;
@@ -35,13 +36,14 @@ import org.osgi.framework.ServiceReference;
 import org.osgi.service.log.LogService;
 
 /**
- * Parses Strings into IKnapSackCommand instances.
+ * Parses Strings into IKnapSackCommand instances.  Commands may be looked up and parsed by several
+ * shell connections at once.
  * 
  * @author kgilmer
  * 
  */
 public class CommandParser implements ServiceListener {
-	private Map<String, IKnapsackCommand> commands;
+	private final ConcurrentMap<String, IKnapsackCommand> commands;
 
 	private final BundleContext context;
 
@@ -50,18 +52,32 @@ public class CommandParser implements ServiceListener {
 	public CommandParser(final BundleContext context, final File scriptDir) throws IOException {
 		this.context = context;
 		this.scriptDir = scriptDir;
-		commands = new Hashtable<String, IKnapsackCommand>();
+		commands = new ConcurrentHashMap<String, IKnapsackCommand>();
 	}
 
 	/**
 	 * @param commandLine
-	 * @return
+	 * @return The command named by the first token of the command line, or null if no such command is registered.
+	 */
+	protected IKnapsackCommand getCommand(String commandLine) {
+		return commands.get(commandLine.split(" ")[0]);
+	}
+
+	/**
+	 * @return BundleContext commands are initialized with.
+	 */
+	protected BundleContext getContext() {
+		return context;
+	}
+
+	/**
+	 * @param commandLine
+	 * @return The arguments of the command line, or null if there are none.  Command name not included.
 	 * @throws IOException
 	 */
-	protected IKnapsackCommand parse(String commandLine) throws IOException {	
+	protected List<String> parseArguments(String commandLine) throws IOException {	
 		String[] tokens = commandLine.split(" ");
 		boolean quoteMode = false;
-		String command = tokens[0];
 		List<String> args = null;
 
 		if (tokens.length > 1) {
@@ -101,13 +117,7 @@ public class CommandParser implements ServiceListener {
 		if (quoteMode)
 			throw new IOException("Parse Error: unclosed quotes." + StringConstants.CRLF);
 
-		if (commands.containsKey(command)) {
-			IKnapsackCommand cmd = (IKnapsackCommand) commands.get(command);
-			cmd.initialize(args, context);
-			return cmd;
-		}
-
-		return null;
+		return args;
 	}
 
 	/* (non-Javadoc)
@@ -120,11 +130,8 @@ public class CommandParser implements ServiceListener {
 		if (type == ServiceEvent.REGISTERED) {
 			final IKnapsackCommand cmd = (IKnapsackCommand) context.getService(ref);		
 			
-			if (commands.containsKey(cmd.getName())) {
+			if (!addCommand(cmd))
 				Launcher.getLogger().log(LogService.LOG_WARNING, "A shell command named " + cmd.getName() + " has already been registered.  Ignoring second registration.");
-			} else {
-				addCommand(cmd);				
-			}
 		} else if (type == ServiceEvent.UNREGISTERING) {
 			if (ref.getBundle().getState() != Bundle.UNINSTALLED && context.getBundle() != null) {
 				final IKnapsackCommand cmd = (IKnapsackCommand) context.getService(ref);				
@@ -137,17 +144,27 @@ public class CommandParser implements ServiceListener {
 		return Collections.unmodifiableMap(commands);
 	}
 	
-	private void addCommand(IKnapsackCommand command) {
-		commands.put(command.getName(), command);
+	/**
+	 * @param command
+	 * @return false if a command of the same name is already registered.
+	 */
+	private boolean addCommand(IKnapsackCommand command) {
+		if (commands.putIfAbsent(command.getName(), command) != null)
+			return false;
+		
 		try {
 			FSHelper.createFilesystemCommand(scriptDir, command.getName(), Launcher.getLogger());
 		} catch (IOException e) {
 			//Ignore this error, the symlink was created by a pre-existing instance.
 		}
+		
+		return true;
 	}
 	
 	private void removeCommand(IKnapsackCommand command) {
-		commands.remove(command.getName());
+		if (!commands.remove(command.getName(), command))
+			return;
+		
 		try {
 			FSHelper.deleteFilesystemCommand(scriptDir, command.getName());
 		} catch (IOException e) {
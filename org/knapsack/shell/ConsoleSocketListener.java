@@ -16,21 +16,38 @@
  */
 package org.knapsack.shell;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.knapsack.FSHelper;
 import org.knapsack.KnapsackLogger;
 import org.knapsack.PropertyHelper;
 import org.knapsack.ConfigurationConstants;
@@ -43,8 +60,10 @@ import org.knapsack.shell.commands.PackagesCommand;
 import org.knapsack.shell.commands.PrintConfCommand;
 import org.knapsack.shell.commands.ServicesCommand;
 import org.knapsack.shell.commands.ShutdownCommand;
+import org.knapsack.shell.commands.StartupCommand;
 import org.knapsack.shell.commands.UpdateCommand;
 import org.knapsack.shell.pub.IKnapsackCommand;
+import org.knapsack.shell.pub.ShellSession;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
 import org.osgi.framework.InvalidSyntaxException;
@@ -52,16 +71,63 @@ import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.log.LogService;
 
 /**
- * Listens for commands on a configured socket.
+ * Listens for commands on a configured socket.  Accepted connections are handed to a bounded pool of threads
+ * so that a slow command does not hold up other clients.  When all threads are busy and the queue of waiting
+ * connections is full, new connections are refused with a message.  Clients that stop reading a response are closed
+ * after a timeout.
+ * 
+ * A connection carries one command unless the client starts a session, see {@link ShellSession}.  With the blocking
+ * server a session holds a thread of a separate, smaller pool until it ends or is idle for BLOCKING_SESSION_TIMEOUT, so 
+ * sessions do not keep other clients from being served; the selector server only uses a thread while a command runs.
+ * 
+ * If a pipe directory is given, commands are also accepted from named pipes, see {@link PipeCommandServer}.  If a
+ * UNIX domain socket is given and the JVM supports it, connections are also accepted on the socket and served by a
+ * {@link SelectorCommandServer}.
  * 
  * @author kgilmer
  * 
  */
 public class ConsoleSocketListener extends Thread {
 	/**
-	 * Default for the ServerSocket backlog.
+	 * Default for the ServerSocket backlog and the number of connections waiting for a thread.
+	 */
+	private static final int SERVER_BACKLOG_DEFAULT = 50;
+
+	/**
+	 * Default number of connections served at the same time.
+	 */
+	private static final int SERVER_THREADS_DEFAULT = 4;
+
+	/**
+	 * Default number of sessions the blocking server serves at the same time.
+	 */
+	private static final int SERVER_SESSIONS_DEFAULT = 2;
+
+	/**
+	 * Time in milliseconds a client has to send its command.
 	 */
-	private static final int SERVER_BACKLOG_DEFAULT = 1;
+	static final int CLIENT_READ_TIMEOUT = 10000;
+
+	/**
+	 * Time in milliseconds a client has to accept more of a response before it is closed.
+	 */
+	static final int CLIENT_WRITE_TIMEOUT = 10000;
+
+	/**
+	 * Response to a connection that is refused because all threads are busy.
+	 */
+	public static final String BUSY_MESSAGE = "Shell is busy, try again later.";
+
+	/**
+	 * Time in milliseconds a session may be idle before it is closed.
+	 */
+	static final int SESSION_TIMEOUT = 5 * 60 * 1000;
+
+	/**
+	 * Time in milliseconds a session of the blocking server may be idle before it is closed.  Shorter than for the
+	 * selector server, as an idle session holds a thread.
+	 */
+	static final int BLOCKING_SESSION_TIMEOUT = 30 * 1000;
 
 	private final int port;
 
@@ -71,10 +137,31 @@ public class ConsoleSocketListener extends Thread {
 
 	private CommandExecutor executor;
 
+	private volatile ThreadPoolExecutor connectionPool;
+
+	private volatile ThreadPoolExecutor sessionPool;
+
+	private volatile SelectorCommandServer selectorServer;
+
+	private final File pipeDirectory;
+
+	private volatile PipeCommandServer pipeServer;
+
+	private final File unixSocket;
+
+	private volatile SelectorCommandServer unixServer;
+
 	private static CommandParser parser;
 
 	private final KnapsackLogger log;
 
+	/**
+	 * Responses being written by the blocking server, checked by the write watchdog.
+	 */
+	private final Set<TimedOutputStream> responses = Collections.newSetFromMap(new ConcurrentHashMap<TimedOutputStream, Boolean>());
+
+	private volatile Timer writeWatchdog;
+
 	private List<ServiceRegistration> commandRegistrations;
 
 	private ServerSocket socket;
@@ -87,11 +174,14 @@ public class ConsoleSocketListener extends Thread {
 	 * @param context
 	 * @param log
 	 * @param parser
+	 * @param commandPrefix
+	 * @param pipeDirectory directory to create the control pipes in, or null to only listen on the socket.
+	 * @param unixSocket UNIX domain socket file to also listen on, or null.
 	 * @throws UnknownHostException
 	 * @throws IOException
 	 * @throws InvalidSyntaxException
 	 */
-	public ConsoleSocketListener(int port, BundleContext context, KnapsackLogger log, CommandParser parser, String commandPrefix)
+	public ConsoleSocketListener(int port, BundleContext context, KnapsackLogger log, CommandParser parser, String commandPrefix, File pipeDirectory, File unixSocket)
 			throws UnknownHostException, IOException, InvalidSyntaxException {
 
 		this.parser = parser;
@@ -100,6 +190,8 @@ public class ConsoleSocketListener extends Thread {
 		this.context = context;
 		this.log = log;
 		this.port = port;
+		this.pipeDirectory = pipeDirectory;
+		this.unixSocket = unixSocket;
 	}	
 
 	public void run() {
@@ -109,36 +201,58 @@ public class ConsoleSocketListener extends Thread {
 				commandRegistrations = registerCommands();
 			}
 			
-			this.socket = createServerSocket();
+			int backlog = PropertyHelper.getInt(ConfigurationConstants.CONFIG_KEY_SHELL_BACKLOG, SERVER_BACKLOG_DEFAULT);
+			this.executor = new CommandExecutor(parser);
+			this.connectionPool = createConnectionPool(backlog);
+			
+			if (pipeDirectory != null)
+				startPipeServer();
+			
+			if (unixSocket != null)
+				startUnixServer(backlog);
+			
+			if (PropertyHelper.getBoolean(ConfigurationConstants.CONFIG_KEY_SHELL_SELECTOR)) {
+				ServerSocketChannel channel = ServerSocketChannel.open();
+				channel.socket().bind(new InetSocketAddress(getBindAddress(), port), backlog);
+				selectorServer = new SelectorCommandServer(channel, executor, connectionPool, log);
+				
+				if (running)
+					selectorServer.run();
+				
+				return;
+			}
+			
+			this.socket = createServerSocket(backlog);
+			this.sessionPool = createSessionPool();
+			startWriteWatchdog();
 
 			while (running) {
+				Socket connection;
 				try {
-					Socket connection = socket.accept();
-
+					connection = socket.accept();
+				} catch (IOException e) {
 					if (!running)
 						return;
+					
+					log.log(LogService.LOG_ERROR, "An Error occurred while accepting a shell connection.", e);
+					continue;
+				}
 
-					if (executor == null)
-						executor = new CommandExecutor(parser);
-
-					BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-					OutputStream out = connection.getOutputStream();
-
-					String sl = in.readLine();
-
-					if (sl != null) {
-						String resp = executor.executeCommand(sl.trim());
+				if (!running) {
+					FSHelper.closeQuietly(connection);
+					return;
+				}
 
-						if (resp != null && resp.length() > 0) {
-							out.write(resp.getBytes());
-							if (!resp.endsWith(StringConstants.CRLF))
-								out.write(StringConstants.CRLF.getBytes());
-						}
+				try {
+					connectionPool.execute(new ConnectionHandler(connection));
+				} catch (RejectedExecutionException e) {
+					log.log(LogService.LOG_WARNING, "Shell is busy, refusing connection from " + connection.getInetAddress() + ".");
+					try {
+						connection.getOutputStream().write((BUSY_MESSAGE + StringConstants.CRLF).getBytes());
+					} catch (IOException ioe) {
+						// Client has gone away.
 					}
-
-					connection.close();
-				} catch (Exception e) {
-					log.log(LogService.LOG_ERROR, "An Error occurred while while processing command.", e);					
+					FSHelper.closeQuietly(connection);
 				}
 			}
 		} catch (Exception e) {
@@ -153,6 +267,12 @@ public class ConsoleSocketListener extends Thread {
 			}
 		} finally {
 			socket = null;
+			if (writeWatchdog != null)
+				writeWatchdog.cancel();
+			if (sessionPool != null)
+				sessionPool.shutdown();
+			if (connectionPool != null)
+				connectionPool.shutdown();
 			try {
 				context.removeServiceListener(parser);
 			} catch (Exception e) {
@@ -161,6 +281,75 @@ public class ConsoleSocketListener extends Thread {
 		}
 	}
 
+	/**
+	 * Close the connections of the blocking server whose clients stopped reading a response, there is no write 
+	 * timeout for sockets.  A thread blocked writing to a closed socket fails and is returned to the pool.
+	 */
+	private void startWriteWatchdog() {
+		writeWatchdog = new Timer("Knapsack Shell Write Watchdog", true);
+		writeWatchdog.schedule(new TimerTask() {
+			
+			@Override
+			public void run() {
+				long now = System.currentTimeMillis();
+				
+				for (TimedOutputStream out : responses) {
+					if (out.isStalled(now)) {
+						log.log(LogService.LOG_WARNING, "Shell client " + out.connection.getInetAddress() + " did not read its response in " + CLIENT_WRITE_TIMEOUT + "ms.");
+						out.timedOut = true;
+						FSHelper.closeQuietly(out.connection);
+					}
+				}
+			}
+		}, CLIENT_WRITE_TIMEOUT / 4, CLIENT_WRITE_TIMEOUT / 4);
+	}
+
+	/**
+	 * Serve commands from named pipes.  If the pipes cannot be created, clients fall back to the socket.
+	 */
+	private void startPipeServer() {
+		PipeCommandServer server = new PipeCommandServer(pipeDirectory, executor, connectionPool, log);
+		
+		try {
+			server.start();
+			pipeServer = server;
+		} catch (IOException e) {
+			log.log(LogService.LOG_WARNING, "Unable to create shell control pipes, using socket only: " + e.getMessage());
+			server.shutdown();
+		}
+	}
+
+	/**
+	 * Serve connections to the UNIX domain socket from a thread of its own.  If the socket cannot be created, clients fall 
+	 * back to the TCP port.
+	 * 
+	 * @param backlog
+	 */
+	private void startUnixServer(int backlog) {
+		if (!UnixDomainSockets.isSupported()) {
+			log.log(LogService.LOG_WARNING, "UNIX domain sockets are not supported by this JVM, using TCP only.");
+			return;
+		}
+		
+		try {
+			final SelectorCommandServer server = new SelectorCommandServer(UnixDomainSockets.bind(unixSocket, backlog), executor, connectionPool, log);
+			Thread t = new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					server.run();
+				}
+			}, "Knapsack Shell Unix Socket");
+			t.setDaemon(true);
+			t.start();
+			
+			unixServer = server;
+			log.log(LogService.LOG_INFO, "Accepting socket connections on " + unixSocket);
+		} catch (IOException e) {
+			log.log(LogService.LOG_WARNING, "Unable to create shell socket " + unixSocket + ", using TCP only: " + e.getMessage());
+		}
+	}
+
 	private List<ServiceRegistration> registerCommands() {
 		List<ServiceRegistration> cr = new ArrayList<ServiceRegistration>();
 		
@@ -174,8 +363,9 @@ public class ConsoleSocketListener extends Thread {
 		cr.add(registerCommand(new HeadersCommand()));
 		cr.add(registerCommand(new BounceCommand()));
 		cr.add(registerCommand(new PackagesCommand()));
+		cr.add(registerCommand(new StartupCommand()));
 		
-		return commandRegistrations;
+		return cr;
 	}
 	
 	private ServiceRegistration registerCommand(IKnapsackCommand cmd) {
@@ -211,23 +401,71 @@ public class ConsoleSocketListener extends Thread {
 	}
 
 	/**
+	 * @param backlog number of connections that may wait to be served
+	 * @return A pool of daemon threads with a bounded queue of waiting connections.
+	 */
+	private ThreadPoolExecutor createConnectionPool(int backlog) {
+		int threads = Math.max(1, PropertyHelper.getInt(ConfigurationConstants.CONFIG_KEY_SHELL_THREADS, SERVER_THREADS_DEFAULT));
+		
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, 
+				new LinkedBlockingQueue<Runnable>(Math.max(1, backlog)), new ThreadFactory() {
+			private int count = 0;
+			
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Knapsack Shell " + (++count));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// Idle shells do not keep threads around.
+		pool.allowCoreThreadTimeOut(true);
+		
+		return pool;
+	}
+
+	/**
+	 * @return A pool of daemon threads for the sessions of the blocking server.  Sessions beyond the limit are refused, not queued.
+	 */
+	private ThreadPoolExecutor createSessionPool() {
+		int sessions = Math.max(1, PropertyHelper.getInt(ConfigurationConstants.CONFIG_KEY_SHELL_SESSIONS, SERVER_SESSIONS_DEFAULT));
+		
+		return new ThreadPoolExecutor(0, sessions, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+			private int count = 0;
+			
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Knapsack Shell Session " + (++count));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * @param backlog ServerSocket backlog
 	 * @return A ServerSocket based on runtime configuration.
 	 * @throws IOException
 	 * @throws UnknownHostException
 	 */
-	private ServerSocket createServerSocket() throws UnknownHostException, IOException {
-		ServerSocket s;
+	private ServerSocket createServerSocket(int backlog) throws UnknownHostException, IOException {
+		return new ServerSocket(port, backlog, getBindAddress());
+	}
 
+	/**
+	 * @return The address to listen on based on runtime configuration, or null for any address.
+	 * @throws UnknownHostException
+	 */
+	private InetAddress getBindAddress() throws UnknownHostException {
 		if (PropertyHelper.getBoolean(ConfigurationConstants.CONFIG_KEY_ACCEPT_ANY_HOST)) {
-			s = new ServerSocket(port, SERVER_BACKLOG_DEFAULT, null);
 			log.log(LogService.LOG_INFO, "Accepting socket connections from any host on port " + port);
-		} else {
-			InetAddress localhost = InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 });
-			s = new ServerSocket(port, SERVER_BACKLOG_DEFAULT, localhost);
-			log.log(LogService.LOG_INFO, "Accepting socket connections from " + localhost + " on port " + port);
+			return null;
 		}
-
-		return s;
+		
+		InetAddress localhost = InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 });
+		log.log(LogService.LOG_INFO, "Accepting socket connections from " + localhost + " on port " + port);
+		
+		return localhost;
 	}
 
 	/**
@@ -237,6 +475,23 @@ public class ConsoleSocketListener extends Thread {
 		return port;
 	}
 
+	/**
+	 * @return the UNIX domain socket that is also listened on, or null.  The socket may not exist yet.
+	 */
+	public File getUnixSocket() {
+		return unixSocket;
+	}
+
+	/**
+	 * @return the pipe commands can be written to, or null if pipes are not used.  The pipe may not exist yet.
+	 */
+	public File getControlPipe() {
+		if (pipeDirectory == null)
+			return null;
+		
+		return new File(pipeDirectory, PipeCommandServer.CONTROL_PIPE_FILENAME);
+	}
+
 	/**
 	 * Shutdown the listener. No new client connections will be accepted.
 	 */
@@ -249,5 +504,210 @@ public class ConsoleSocketListener extends Thread {
 			} catch (IOException e) {
 			}
 		}
+		
+		if (selectorServer != null)
+			selectorServer.shutdown();
+		
+		if (pipeServer != null)
+			pipeServer.shutdown();
+		
+		if (unixServer != null) {
+			unixServer.shutdown();
+			unixSocket.delete();
+		}
+		
+		if (writeWatchdog != null)
+			writeWatchdog.cancel();
+		
+		if (sessionPool != null)
+			sessionPool.shutdown();
+		
+		if (connectionPool != null)
+			connectionPool.shutdown();
+	}
+
+	/**
+	 * The output stream of a connection of the blocking server, which records when a write started so that a
+	 * write the client does not accept can be timed out.
+	 */
+	private static final class TimedOutputStream extends OutputStream {
+		private final Socket connection;
+		private final OutputStream out;
+		/**
+		 * Time the pending write started, or 0 if no write is pending.
+		 */
+		private volatile long writeStart = 0;
+		private volatile boolean timedOut = false;
+
+		/**
+		 * @param connection
+		 * @throws IOException
+		 */
+		public TimedOutputStream(Socket connection) throws IOException {
+			this.connection = connection;
+			this.out = connection.getOutputStream();
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			writeStart = System.currentTimeMillis();
+			
+			try {
+				out.write(b, off, len);
+			} finally {
+				writeStart = 0;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		/**
+		 * @param now
+		 * @return true if a write has been pending for longer than the write timeout.
+		 */
+		public boolean isStalled(long now) {
+			long start = writeStart;
+			
+			return start != 0 && now - start > CLIENT_WRITE_TIMEOUT;
+		}
+	}
+
+	/**
+	 * Read a command from a connection, execute it, and write the response.
+	 */
+	private final class ConnectionHandler implements Runnable {
+		private final Socket connection;
+
+		/**
+		 * @param connection
+		 */
+		public ConnectionHandler(Socket connection) {
+			this.connection = connection;
+		}
+
+		@Override
+		public void run() {
+			TimedOutputStream out = null;
+			boolean session = false;
+			
+			try {
+				connection.setSoTimeout(CLIENT_READ_TIMEOUT);
+				
+				BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+				out = new TimedOutputStream(connection);
+				responses.add(out);
+
+				String sl = in.readLine();
+
+				if (sl != null && sl.trim().equals(ShellSession.SESSION_REQUEST)) {
+					session = startSession(in, out);
+				} else if (sl != null) {
+					ResponseWriter resp = ResponseWriter.create(out, false);
+					executor.executeCommand(sl.trim(), resp);
+
+					if (!resp.isEmpty() && !resp.endsWithNewline())
+						resp.write(StringConstants.CRLF);
+					
+					resp.finish();
+				}
+			} catch (SocketTimeoutException e) {
+				log.log(LogService.LOG_WARNING, "Shell client " + connection.getInetAddress() + " did not send a command in " + CLIENT_READ_TIMEOUT + "ms.");
+			} catch (Exception e) {
+				// The watchdog has logged why it closed the connection.
+				if (out == null || !out.timedOut)
+					log.log(LogService.LOG_ERROR, "An Error occurred while while processing command.", e);
+			} finally {
+				// A session closes its connection when it ends.
+				if (!session)
+					close(out);
+			}
+		}
+
+		/**
+		 * Hand the connection to a thread of the session pool, so that it does not hold a thread of the connection pool.
+		 * 
+		 * @param in
+		 * @param out
+		 * @return true if the session was started, false if it was refused.
+		 * @throws IOException
+		 */
+		private boolean startSession(final BufferedReader in, final TimedOutputStream out) throws IOException {
+			try {
+				sessionPool.execute(new Runnable() {
+					
+					@Override
+					public void run() {
+						try {
+							runSession(in, new BufferedOutputStream(out));
+						} catch (SocketTimeoutException e) {
+							log.log(LogService.LOG_DEBUG, "Closing shell session of " + connection.getInetAddress() + " after " + BLOCKING_SESSION_TIMEOUT + "ms idle.");
+						} catch (Exception e) {
+							if (!out.timedOut)
+								log.log(LogService.LOG_ERROR, "An Error occurred while while processing command.", e);
+						} finally {
+							close(out);
+						}
+					}
+				});
+				
+				return true;
+			} catch (RejectedExecutionException e) {
+				log.log(LogService.LOG_WARNING, "Too many shell sessions, refusing session from " + connection.getInetAddress() + ".");
+				out.write((BUSY_MESSAGE + StringConstants.CRLF).getBytes());
+				
+				return false;
+			}
+		}
+
+		/**
+		 * @param out output stream of connection, or null if it was not opened.
+		 */
+		private void close(TimedOutputStream out) {
+			if (out != null)
+				responses.remove(out);
+			
+			FSHelper.closeQuietly(connection);
+		}
+
+		/**
+		 * Execute commands until the client closes the connection, writing each response as frames.
+		 * 
+		 * @param in
+		 * @param out
+		 * @throws IOException
+		 */
+		private void runSession(BufferedReader in, OutputStream out) throws IOException {
+			connection.setSoTimeout(BLOCKING_SESSION_TIMEOUT);
+			connection.setTcpNoDelay(true);
+			
+			ResponseWriter resp = ResponseWriter.create(out, true);
+			String sl;
+			while (running && (sl = in.readLine()) != null) {
+				executor.executeCommand(sl.trim(), resp);
+				resp.finish();
+				
+				// Pipelined commands are answered in one write.
+				if (!in.ready())
+					out.flush();
+			}
+			
+			out.flush();
+		}
+	}
+
+	/**
+	 * @param length length of a chunk of response in bytes
+	 * @return The header of a session frame: the length of the chunk and a newline.
+	 */
+	static byte[] getFrameHeader(int length) {
+		return (length + "\n").getBytes();
 	}
 }
@@ -0,0 +1,193 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.shell;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes records as JSON, one top level record per line, so a client can parse each line as it arrives.
+ * 
+ * @author kgilmer
+ *
+ */
+class JsonRecordWriter extends RecordEncoder {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * For each open record or list, true once it has an element.
+	 */
+	private boolean[] hasElements = new boolean[8];
+	private int depth = 0;
+
+	/**
+	 * @param out
+	 */
+	public JsonRecordWriter(Writer out) {
+		super(out);
+	}
+
+	@Override
+	String getFormat() {
+		return FORMAT_JSON;
+	}
+
+	@Override
+	public void beginRecord() throws IOException {
+		separate();
+		out.write('{');
+		push();
+	}
+
+	@Override
+	public void beginRecord(String name) throws IOException {
+		name(name);
+		out.write('{');
+		push();
+	}
+
+	@Override
+	public void endRecord() throws IOException {
+		depth--;
+		out.write('}');
+
+		if (depth == 0) {
+			out.write(StringConstants.CRLF);
+			flushRecord();
+		}
+	}
+
+	@Override
+	public void beginList(String name) throws IOException {
+		name(name);
+		out.write('[');
+		push();
+	}
+
+	@Override
+	public void endList() throws IOException {
+		depth--;
+		out.write(']');
+	}
+
+	@Override
+	public void field(String name, String value) throws IOException {
+		name(name);
+		string(value);
+	}
+
+	@Override
+	public void field(String name, long value) throws IOException {
+		name(name);
+		out.write(Long.toString(value));
+	}
+
+	@Override
+	public void value(String value) throws IOException {
+		separate();
+		string(value);
+	}
+
+	/**
+	 * Open a record or list.
+	 */
+	private void push() {
+		if (depth == hasElements.length) {
+			boolean[] larger = new boolean[depth * 2];
+			System.arraycopy(hasElements, 0, larger, 0, depth);
+			hasElements = larger;
+		}
+
+		hasElements[depth++] = false;
+	}
+
+	/**
+	 * Write a comma if the current record or list already has an element.
+	 * 
+	 * @throws IOException
+	 */
+	private void separate() throws IOException {
+		if (depth == 0)
+			return;
+
+		if (hasElements[depth - 1])
+			out.write(',');
+
+		hasElements[depth - 1] = true;
+	}
+
+	/**
+	 * @param name
+	 * @throws IOException
+	 */
+	private void name(String name) throws IOException {
+		separate();
+		string(name);
+		out.write(':');
+	}
+
+	/**
+	 * Write a quoted and escaped string.  Unescaped runs of the string are written as they are.
+	 * 
+	 * @param s
+	 * @throws IOException
+	 */
+	private void string(String s) throws IOException {
+		if (s == null) {
+			out.write("null");
+			return;
+		}
+
+		out.write('"');
+
+		int start = 0;
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+
+			if (c >= 0x20 && c != '"' && c != '\\')
+				continue;
+
+			out.write(s, start, i - start);
+			start = i + 1;
+
+			switch (c) {
+			case '"':
+				out.write("\\\"");
+				break;
+			case '\\':
+				out.write("\\\\");
+				break;
+			case '\n':
+				out.write("\\n");
+				break;
+			case '\r':
+				out.write("\\r");
+				break;
+			case '\t':
+				out.write("\\t");
+				break;
+			default:
+				out.write("\\u00");
+				out.write(HEX[c >> 4]);
+				out.write(HEX[c & 0xf]);
+			}
+		}
+
+		out.write(s, start, s.length() - start);
+		out.write('"');
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.shell;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes records in a compact line protocol: one top level record per line, as space separated name=value pairs.
+ * Fields of nested records are named by their path, such as bundle.id, and elements of lists by their index, 
+ * such as objectClass.0 or usedBy.1.name.  Null fields are left out.
+ * 
+ * In names and values, backslash, space, equals, tab, carriage return and newline are escaped as \\, \s, \e, \t, \r and \n.
+ * 
+ * @author kgilmer
+ *
+ */
+class LineRecordWriter extends RecordEncoder {
+	/**
+	 * Open records and lists, innermost last.
+	 */
+	private final List<Frame> frames = new ArrayList<Frame>();
+	private boolean firstPair;
+
+	/**
+	 * @param out
+	 */
+	public LineRecordWriter(Writer out) {
+		super(out);
+	}
+
+	@Override
+	String getFormat() {
+		return FORMAT_LINE;
+	}
+
+	@Override
+	public void beginRecord() throws IOException {
+		if (frames.isEmpty()) {
+			firstPair = true;
+			frames.add(new Frame(""));
+		} else {
+			frames.add(new Frame(nextElement() + "."));
+		}
+	}
+
+	@Override
+	public void beginRecord(String name) throws IOException {
+		frames.add(new Frame(current().prefix + name + "."));
+	}
+
+	@Override
+	public void endRecord() throws IOException {
+		frames.remove(frames.size() - 1);
+
+		if (frames.isEmpty()) {
+			out.write(StringConstants.CRLF);
+			flushRecord();
+		}
+	}
+
+	@Override
+	public void beginList(String name) throws IOException {
+		frames.add(new Frame(current().prefix + name + "."));
+	}
+
+	@Override
+	public void endList() throws IOException {
+		frames.remove(frames.size() - 1);
+	}
+
+	@Override
+	public void field(String name, String value) throws IOException {
+		pair(current().prefix + name, value);
+	}
+
+	@Override
+	public void field(String name, long value) throws IOException {
+		pair(current().prefix + name, Long.toString(value));
+	}
+
+	@Override
+	public void value(String value) throws IOException {
+		pair(nextElement(), value);
+	}
+
+	/**
+	 * @return The innermost open record or list.
+	 */
+	private Frame current() {
+		return frames.get(frames.size() - 1);
+	}
+
+	/**
+	 * @return The name of the next element of the current list.
+	 */
+	private String nextElement() {
+		Frame list = current();
+
+		return list.prefix + (list.count++);
+	}
+
+	/**
+	 * @param name
+	 * @param value
+	 * @throws IOException
+	 */
+	private void pair(String name, String value) throws IOException {
+		if (value == null)
+			return;
+
+		if (!firstPair)
+			out.write(' ');
+
+		firstPair = false;
+		escape(name);
+		out.write('=');
+		escape(value);
+	}
+
+	/**
+	 * Write a string with separators escaped.  Unescaped runs of the string are written as they are.
+	 * 
+	 * @param s
+	 * @throws IOException
+	 */
+	private void escape(String s) throws IOException {
+		int start = 0;
+
+		for (int i = 0; i < s.length(); ++i) {
+			char e;
+
+			switch (s.charAt(i)) {
+			case '\\':
+				e = '\\';
+				break;
+			case ' ':
+				e = 's';
+				break;
+			case '=':
+				e = 'e';
+				break;
+			case '\t':
+				e = 't';
+				break;
+			case '\r':
+				e = 'r';
+				break;
+			case '\n':
+				e = 'n';
+				break;
+			default:
+				continue;
+			}
+
+			out.write(s, start, i - start);
+			out.write('\\');
+			out.write(e);
+			start = i + 1;
+		}
+
+		out.write(s, start, s.length() - start);
+	}
+
+	/**
+	 * An open record or list.
+	 */
+	private static final class Frame {
+		/**
+		 * Prefix of the names of the fields or elements.
+		 */
+		private final String prefix;
+		/**
+		 * Number of elements of a list.
+		 */
+		private int count = 0;
+
+		/**
+		 * @param prefix
+		 */
+		public Frame(String prefix) {
+			this.prefix = prefix;
+		}
+	}
+}
@@ -0,0 +1,465 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.shell;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.knapsack.FSHelper;
+import org.knapsack.KnapsackLogger;
+import org.osgi.service.log.LogService;
+
+/**
+ * A shell server that takes commands from named pipes, so that the shell scripts do not need to start a
+ * network client for every command.
+ * 
+ * A client creates its own pipe for the response, named with RESPONSE_PIPE_PREFIX, then writes a line to the control pipe:
+ * the absolute path of its response pipe, a space, and the command line.  The command is run on a pool of worker threads 
+ * and its output is written to the response pipe, which is closed when the command completes.  Lines shorter than PIPE_BUF
+ * (at least 512 bytes) are written atomically, so clients do not need to coordinate.
+ * 
+ * Opening a pipe for writing waits for a reader.  A client that does not open its response pipe within REPLY_OPEN_TIMEOUT
+ * gets no response, so that it does not hold a thread.  The control thread only opens response pipes in a way that does 
+ * not wait, to refuse commands when too many busy responses are pending.  Clients wait longer than REPLY_OPEN_TIMEOUT
+ * for a response to start, and a line naming an invalid response pipe is not answered.
+ * 
+ * Reading from the info pipe returns the verbose bundle list.
+ * 
+ * @author kgilmer
+ *
+ */
+class PipeCommandServer {
+	/**
+	 * Filename of the pipe commands are read from.
+	 */
+	static final String CONTROL_PIPE_FILENAME = "control";
+	
+	/**
+	 * Filename of the pipe that returns framework information when read.
+	 */
+	static final String INFO_PIPE_FILENAME = "info";
+	
+	/**
+	 * Command whose output is returned from the info pipe.
+	 */
+	private static final String INFO_COMMAND = "bundles -v";
+	
+	/**
+	 * Time in milliseconds the info pipe has no writer after a response, so that the reader sees end of file.
+	 */
+	private static final long INFO_REOPEN_DELAY = 100;
+	
+	/**
+	 * Name prefix of response pipes.  Other files are refused, so that a command line cannot name a device or another special file.
+	 */
+	static final String RESPONSE_PIPE_PREFIX = "knapsack-response.";
+	
+	/**
+	 * Time in milliseconds a client has to open its response pipe.
+	 */
+	private static final long REPLY_OPEN_TIMEOUT = 10000;
+	
+	/**
+	 * Time in milliseconds a refused client has to open its response pipe.  Shorter, as busy responses are written one at a time.
+	 */
+	private static final long BUSY_REPLY_OPEN_TIMEOUT = 1000;
+	
+	/**
+	 * Busy responses waiting to be written, beyond which they are written without waiting for the client.
+	 */
+	private static final int MAX_PENDING_BUSY_REPLIES = 16;
+	
+	private final File controlPipe;
+	private final File infoPipe;
+	private final CommandExecutor executor;
+	private final ExecutorService workers;
+	private final KnapsackLogger log;
+	private volatile boolean running = true;
+	private RandomAccessFile control;
+	/**
+	 * Unblocks opens of response pipes that have not completed in time.
+	 */
+	private final Timer replyWatchdog = new Timer("Knapsack Shell Pipe Watchdog", true);
+	/**
+	 * Writes busy responses off the control thread, opening a response pipe may wait.
+	 */
+	private final ThreadPoolExecutor busyReplies;
+
+	/**
+	 * @param directory directory the pipes are created in
+	 * @param executor executor commands are run with
+	 * @param workers pool commands are run on
+	 * @param log
+	 */
+	public PipeCommandServer(File directory, CommandExecutor executor, ExecutorService workers, KnapsackLogger log) {
+		this.controlPipe = new File(directory, CONTROL_PIPE_FILENAME);
+		this.infoPipe = new File(directory, INFO_PIPE_FILENAME);
+		this.executor = executor;
+		this.workers = workers;
+		this.log = log;
+		this.busyReplies = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_PENDING_BUSY_REPLIES), new ThreadFactory() {
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Knapsack Shell Pipe Busy");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		busyReplies.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Create the pipes and start serving them on daemon threads.
+	 * 
+	 * @throws IOException if the pipes cannot be created.
+	 */
+	public void start() throws IOException {
+		createPipe(controlPipe);
+		createPipe(infoPipe);
+		
+		// Opened for reading and writing so that the pipe does not reach end of file when a client closes it.
+		control = new RandomAccessFile(controlPipe, "rw");
+		
+		Thread controlThread = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				serveControl();
+			}
+		}, "Knapsack Shell Control Pipe");
+		controlThread.setDaemon(true);
+		controlThread.start();
+		
+		Thread infoThread = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				serveInfo();
+			}
+		}, "Knapsack Shell Info Pipe");
+		infoThread.setDaemon(true);
+		infoThread.start();
+		
+		log.log(LogService.LOG_INFO, "Accepting commands from " + controlPipe);
+	}
+	
+	/**
+	 * Stop serving and delete the pipes.
+	 */
+	public void shutdown() {
+		running = false;
+		replyWatchdog.cancel();
+		busyReplies.shutdownNow();
+		
+		if (control != null) {
+			try {
+				// Wake up the control thread.
+				control.write(StringConstants.CRLF.getBytes());
+				
+				// Wake up the info thread, which waits for a reader.  Opening for reading and writing does not wait.
+				new RandomAccessFile(infoPipe, "rw").close();
+			} catch (IOException e) {
+				// Ignore, pipes are deleted below.
+			}
+		}
+		
+		controlPipe.delete();
+		infoPipe.delete();
+	}
+	
+	/**
+	 * @return the pipe commands are read from.
+	 */
+	public File getControlPipe() {
+		return controlPipe;
+	}
+	
+	/**
+	 * Read command lines from the control pipe until shutdown.
+	 */
+	private void serveControl() {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(control.getFD())));
+			String line;
+			
+			while (running && (line = in.readLine()) != null) {
+				line = line.trim();
+				
+				if (line.length() == 0)
+					continue;
+				
+				int i = line.indexOf(' ');
+				File reply = new File(i > 0 ? line.substring(0, i) : line);
+				
+				if (!isResponsePipe(reply)) {
+					log.log(LogService.LOG_WARNING, "Ignoring shell command with invalid response pipe: " + line);
+					continue;
+				}
+				
+				String command = i > 0 ? line.substring(i + 1).trim() : "";
+				
+				try {
+					workers.execute(new CommandTask(reply, command));
+				} catch (RejectedExecutionException e) {
+					log.log(LogService.LOG_WARNING, "Shell is busy, refusing command from " + reply + ".");
+					refuse(reply);
+				}
+			}
+		} catch (IOException e) {
+			if (running)
+				log.log(LogService.LOG_ERROR, "An Error occurred while reading " + controlPipe, e);
+		} finally {
+			try {
+				control.close();
+			} catch (IOException e) {
+				// Ignore close errors.
+			}
+		}
+	}
+	
+	/**
+	 * Write framework information to each reader of the info pipe until shutdown.
+	 */
+	private void serveInfo() {
+		while (running) {
+			OutputStream out = null;
+			
+			try {
+				// Waits for a reader.
+				out = new FileOutputStream(infoPipe);
+				
+				if (running)
+					execute(ConsoleSocketListener.getCommandPrefix() + INFO_COMMAND, out);
+			} catch (IOException e) {
+				if (running)
+					log.log(LogService.LOG_DEBUG, "Reader of " + infoPipe + " went away: " + e.getMessage());
+			} finally {
+				FSHelper.closeQuietly(out);
+			}
+			
+			try {
+				Thread.sleep(INFO_REOPEN_DELAY);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Run a command and write its output.
+	 * 
+	 * @param command
+	 * @param out
+	 * @throws IOException
+	 */
+	private void execute(String command, OutputStream out) throws IOException {
+		ResponseWriter resp = ResponseWriter.create(out, false);
+		executor.executeCommand(command, resp);
+
+		if (!resp.isEmpty() && !resp.endsWithNewline())
+			resp.write(StringConstants.CRLF);
+		
+		resp.finish();
+	}
+	
+	/**
+	 * Write the busy message to a response pipe on the busy reply thread.  If too many are waiting the message is written 
+	 * at once, which the client only receives if it has already opened the pipe.
+	 * 
+	 * @param reply
+	 */
+	private void refuse(final File reply) {
+		try {
+			busyReplies.execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					OutputStream out = null;
+					
+					try {
+						out = openReply(reply, BUSY_REPLY_OPEN_TIMEOUT);
+						out.write((ConsoleSocketListener.BUSY_MESSAGE + StringConstants.CRLF).getBytes());
+					} catch (IOException e) {
+						// Client has gone away.
+					} finally {
+						FSHelper.closeQuietly(out);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			RandomAccessFile out = null;
+			
+			try {
+				// Opening for reading and writing does not wait, and the message fits in the pipe.
+				out = new RandomAccessFile(reply, "rw");
+				out.write((ConsoleSocketListener.BUSY_MESSAGE + StringConstants.CRLF).getBytes());
+			} catch (IOException e2) {
+				log.log(LogService.LOG_DEBUG, "Unable to write busy response to " + reply + ": " + e2.getMessage());
+			} finally {
+				FSHelper.closeQuietly(out);
+			}
+		}
+	}
+	
+	/**
+	 * Open a response pipe for writing.  Waits for the client to open the pipe for reading.
+	 * 
+	 * @param reply
+	 * @param timeout time in milliseconds to wait for the client
+	 * @return stream to write the response to.
+	 * @throws IOException if the pipe cannot be opened, or the client did not open it in time.
+	 */
+	private OutputStream openReply(final File reply, long timeout) throws IOException {
+		// A client that gave up has removed its pipe, which would otherwise be created as a regular file.
+		if (!isSpecialFile(reply))
+			throw new IOException(reply + " no longer exists.");
+		
+		final AtomicBoolean opened = new AtomicBoolean(false);
+		TimerTask unblock = new TimerTask() {
+			
+			@Override
+			public void run() {
+				if (!opened.compareAndSet(false, true))
+					return;
+				
+				try {
+					// Opening for reading and writing does not wait, and completes the pending open for writing.
+					new RandomAccessFile(reply, "rw").close();
+				} catch (IOException e) {
+					// The pipe has been removed, the pending open fails by itself.
+				}
+			}
+		};
+		try {
+			replyWatchdog.schedule(unblock, timeout);
+		} catch (IllegalStateException e) {
+			throw new IOException("Shell has been shut down.");
+		}
+		
+		FileOutputStream out;
+		try {
+			out = new FileOutputStream(reply);
+		} finally {
+			unblock.cancel();
+		}
+		
+		if (!opened.compareAndSet(false, true)) {
+			FSHelper.closeQuietly(out);
+			throw new IOException("Client did not open " + reply + " in " + timeout + "ms.");
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Create a named pipe, replacing any file left from a previous run.  Only the owner can read and write the pipe.
+	 * 
+	 * @param pipe
+	 * @throws IOException
+	 */
+	private static void createPipe(File pipe) throws IOException {
+		if (pipe.exists() && !pipe.delete())
+			throw new IOException("Unable to delete: " + pipe);
+		
+		Process p = new ProcessBuilder("mkfifo", "-m", "600", pipe.getAbsolutePath()).redirectErrorStream(true).start();
+		
+		try {
+			if (p.waitFor() != 0 || !isSpecialFile(pipe))
+				throw new IOException("Unable to create named pipe: " + pipe);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while creating named pipe: " + pipe);
+		}
+	}
+	
+	/**
+	 * @param f
+	 * @return true if the file exists and is neither a regular file nor a directory.
+	 */
+	private static boolean isSpecialFile(File f) {
+		return f.exists() && !f.isFile() && !f.isDirectory();
+	}
+	
+	/**
+	 * Java cannot tell a pipe from other special files, so a response pipe is also recognised by its name.
+	 * 
+	 * @param f
+	 * @return true if the file is an absolute path to an existing special file named like a response pipe.
+	 */
+	private static boolean isResponsePipe(File f) {
+		if (!f.isAbsolute())
+			return false;
+		
+		try {
+			// Links are resolved, so a link named like a response pipe to another file is refused.
+			File target = f.getCanonicalFile();
+			
+			return target.getName().startsWith(RESPONSE_PIPE_PREFIX) && isSpecialFile(target);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Execute a command on a worker thread and write its output to the client's response pipe.
+	 */
+	private final class CommandTask implements Runnable {
+		private final File reply;
+		private final String command;
+
+		/**
+		 * @param reply
+		 * @param command
+		 */
+		public CommandTask(File reply, String command) {
+			this.reply = reply;
+			this.command = command;
+		}
+
+		@Override
+		public void run() {
+			OutputStream out = null;
+			
+			try {
+				out = openReply(reply, REPLY_OPEN_TIMEOUT);
+				execute(command, out);
+			} catch (IOException e) {
+				log.log(LogService.LOG_DEBUG, "Client of " + reply + " went away: " + e.getMessage());
+			} catch (Exception e) {
+				log.log(LogService.LOG_ERROR, "An Error occurred while while processing command.", e);
+			} finally {
+				FSHelper.closeQuietly(out);
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.shell;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.knapsack.shell.pub.IRecordWriter;
+
+/**
+ * Base class of the encoders for the structured output formats of the shell.
+ * 
+ * Each top level record is written to a buffer and passed to the output once it ends, so the output only
+ * ever holds complete records, even when a command fails in the middle of one.
+ * 
+ * @author kgilmer
+ *
+ */
+abstract class RecordEncoder implements IRecordWriter {
+	/**
+	 * Output format of plain text, as formatted by each command.
+	 */
+	static final String FORMAT_TEXT = "text";
+
+	/**
+	 * Output format of one JSON object per line.
+	 */
+	static final String FORMAT_JSON = "json";
+
+	/**
+	 * Output format of one line of name=value pairs per record.
+	 */
+	static final String FORMAT_LINE = "line";
+
+	/**
+	 * The top level record being written.
+	 */
+	protected final StringWriter out = new StringWriter();
+
+	private final Writer target;
+
+	/**
+	 * @param target
+	 */
+	protected RecordEncoder(Writer target) {
+		this.target = target;
+	}
+
+	/**
+	 * @param format
+	 * @return true if format is the name of one of the output formats of the shell.
+	 */
+	static boolean isFormat(String format) {
+		return format.equals(FORMAT_TEXT) || format.equals(FORMAT_JSON) || format.equals(FORMAT_LINE);
+	}
+
+	/**
+	 * @param format
+	 * @param out
+	 * @return An encoder for the format, or null if the format is text or unknown.
+	 */
+	static RecordEncoder create(String format, Writer out) {
+		if (format.equals(FORMAT_JSON))
+			return new JsonRecordWriter(out);
+
+		if (format.equals(FORMAT_LINE))
+			return new LineRecordWriter(out);
+
+		return null;
+	}
+
+	/**
+	 * @return The name of the output format.
+	 */
+	abstract String getFormat();
+
+	/**
+	 * @return The writer the records are passed to.
+	 */
+	Writer getTarget() {
+		return target;
+	}
+
+	/**
+	 * Pass the top level record that has just ended to the output.
+	 * 
+	 * @throws IOException
+	 */
+	protected void flushRecord() throws IOException {
+		StringBuffer record = out.getBuffer();
+
+		target.write(record.toString());
+		record.setLength(0);
+	}
+
+	/**
+	 * Drop a top level record that was cut short.  The encoder must not be used afterwards.
+	 */
+	void discardRecord() {
+		out.getBuffer().setLength(0);
+	}
+}
@@ -0,0 +1,255 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.shell;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Encodes the output of commands into a fixed size buffer and emits it in chunks as the buffer fills.  The buffers and
+ * encoder are reused for every response written with the same instance, so output is never held as a whole.
+ *
+ * In framed mode each chunk is preceded by its length in bytes and a newline, and a response is terminated by an empty
+ * chunk.  This is the response format of shell sessions.
+ *
+ * @author kgilmer
+ *
+ */
+abstract class ResponseWriter extends Writer {
+	/**
+	 * Size in bytes of the chunks responses are emitted in.
+	 */
+	static final int CHUNK_SIZE = 8192;
+
+	/**
+	 * Room in front of a chunk for its frame header.
+	 */
+	private static final int HEADER_ROOM = 8;
+
+	private static final byte[] END_FRAME = ConsoleSocketListener.getFrameHeader(0);
+
+	private final boolean framed;
+	private final CharsetEncoder encoder;
+	private final CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE / 2);
+	private final byte[] buf = new byte[HEADER_ROOM + CHUNK_SIZE];
+	private final ByteBuffer bytes = ByteBuffer.wrap(buf, HEADER_ROOM, CHUNK_SIZE).slice();
+	private boolean empty = true;
+	private char last;
+
+	/**
+	 * @param framed if true, chunks are written as session frames.
+	 */
+	protected ResponseWriter(boolean framed) {
+		this.framed = framed;
+		this.encoder = Charset.defaultCharset().newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	/**
+	 * @param out stream chunks are written to
+	 * @param framed if true, chunks are written as session frames.
+	 * @return A writer that writes responses to a stream.
+	 */
+	static ResponseWriter create(final OutputStream out, boolean framed) {
+		return new ResponseWriter(framed) {
+
+			@Override
+			protected void emit(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+		};
+	}
+
+	/**
+	 * Called with each chunk of encoded output.  The array is reused once this method returns.
+	 *
+	 * @param b
+	 * @param off
+	 * @param len
+	 * @throws IOException
+	 */
+	protected abstract void emit(byte[] b, int off, int len) throws IOException;
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		if (len == 0)
+			return;
+
+		empty = false;
+		last = cbuf[off + len - 1];
+
+		while (len > 0) {
+			int n = Math.min(len, chars.remaining());
+			chars.put(cbuf, off, n);
+			off += n;
+			len -= n;
+
+			if (!chars.hasRemaining())
+				encode(false);
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		if (len == 0)
+			return;
+
+		empty = false;
+		last = str.charAt(off + len - 1);
+
+		while (len > 0) {
+			int n = Math.min(len, chars.remaining());
+			chars.put(str, off, off + n);
+			off += n;
+			len -= n;
+
+			if (!chars.hasRemaining())
+				encode(false);
+		}
+	}
+
+	@Override
+	public Writer append(CharSequence csq) throws IOException {
+		if (!(csq instanceof StringBuilder))
+			return super.append(csq);
+
+		// Copy straight from the builder rather than through a String.
+		StringBuilder sb = (StringBuilder) csq;
+		int len = sb.length();
+
+		if (len == 0)
+			return this;
+
+		empty = false;
+		last = sb.charAt(len - 1);
+
+		for (int off = 0; off < len;) {
+			int n = Math.min(len - off, chars.remaining());
+			sb.getChars(off, off + n, chars.array(), chars.arrayOffset() + chars.position());
+			chars.position(chars.position() + n);
+			off += n;
+
+			if (!chars.hasRemaining())
+				encode(false);
+		}
+
+		return this;
+	}
+
+	/**
+	 * @return true if nothing has been written for the current response.
+	 */
+	public boolean isEmpty() {
+		return empty;
+	}
+
+	/**
+	 * @return true if the current response ends with a line break.
+	 */
+	public boolean endsWithNewline() {
+		return !empty && last == '\n';
+	}
+
+	/**
+	 * Emit what has been written so far.
+	 */
+	@Override
+	public void flush() throws IOException {
+		encode(false);
+		emitChunk();
+	}
+
+	/**
+	 * Commands must not close the writer, the connection stays open until the response is finished.
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	/**
+	 * Complete the current response.  The writer can then be used for the next response.
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		encode(true);
+
+		while (encoder.flush(bytes).isOverflow())
+			emitChunk();
+
+		emitChunk();
+		encoder.reset();
+
+		if (framed)
+			emit(END_FRAME, 0, END_FRAME.length);
+
+		empty = true;
+	}
+
+	/**
+	 * Encode buffered characters.  Characters that cannot be encoded yet, such as half of a surrogate pair, are kept.
+	 *
+	 * @param endOfInput
+	 * @throws IOException
+	 */
+	private void encode(boolean endOfInput) throws IOException {
+		chars.flip();
+
+		while (true) {
+			CoderResult result = encoder.encode(chars, bytes, endOfInput);
+
+			if (!result.isOverflow())
+				break;
+
+			emitChunk();
+		}
+
+		chars.compact();
+	}
+
+	/**
+	 * Emit the encoded bytes, if any.
+	 *
+	 * @throws IOException
+	 */
+	private void emitChunk() throws IOException {
+		int len = bytes.position();
+
+		if (len == 0)
+			return;
+
+		if (framed) {
+			byte[] header = ConsoleSocketListener.getFrameHeader(len);
+			int start = HEADER_ROOM - header.length;
+			System.arraycopy(header, 0, buf, start, header.length);
+			emit(buf, start, header.length + len);
+		} else {
+			emit(buf, HEADER_ROOM, len);
+		}
+
+		bytes.clear();
+	}
+}
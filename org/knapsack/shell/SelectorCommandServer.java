@@ -0,0 +1,640 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.shell;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.knapsack.KnapsackLogger;
+import org.knapsack.shell.pub.ShellSession;
+import org.osgi.service.log.LogService;
+
+/**
+ * A shell server that serves all connections from one thread with a Selector.  Command lines are read
+ * without blocking, commands are executed on a pool of worker threads, and their output is written back in chunks
+ * with gathering writes as it is produced.  A command that produces output faster than the client reads it waits, and a client
+ * that stops reading is closed.  A connection is closed once its response has been written, as with the blocking server,
+ * unless it is a session.  The commands of a session are run one at a time, in the order they were received.
+ * The server channel may be bound to a TCP port or to a UNIX domain socket.
+ *
+ * @author kgilmer
+ *
+ */
+class SelectorCommandServer {
+	/**
+	 * Longest command line accepted from a client.
+	 */
+	private static final int MAX_LINE_LENGTH = 8192;
+
+	private static final int INITIAL_BUFFER_SIZE = 256;
+
+	/**
+	 * Chunks of output a command may produce ahead of the client reading them.
+	 */
+	private static final int MAX_PENDING_CHUNKS = 16;
+
+	/**
+	 * Marks the end of a response in the chunk queue.
+	 */
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+	private final CommandExecutor executor;
+	private final ExecutorService workers;
+	private final KnapsackLogger log;
+	/**
+	 * Responses from workers waiting to be handed to the selector thread.
+	 */
+	private final Queue<Connection> responses = new ConcurrentLinkedQueue<Connection>();
+	private volatile boolean running = true;
+
+	/**
+	 * @param serverChannel bound server channel
+	 * @param executor executor commands are run with
+	 * @param workers pool commands are run on
+	 * @param log
+	 * @throws IOException
+	 */
+	public SelectorCommandServer(ServerSocketChannel serverChannel, CommandExecutor executor, ExecutorService workers, KnapsackLogger log) throws IOException {
+		this.serverChannel = serverChannel;
+		this.executor = executor;
+		this.workers = workers;
+		this.log = log;
+		this.selector = Selector.open();
+
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Serve connections until shutdown() is called.
+	 */
+	public void run() {
+		try {
+			while (running) {
+				selector.select(ConsoleSocketListener.CLIENT_READ_TIMEOUT / 4);
+
+				if (!running)
+					break;
+
+				for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+					SelectionKey key = i.next();
+					i.remove();
+
+					try {
+						if (!key.isValid())
+							continue;
+
+						if (key.isAcceptable())
+							accept();
+						else if (key.isReadable())
+							read(key);
+						else if (key.isWritable())
+							write(key);
+					} catch (IOException e) {
+						log.log(LogService.LOG_DEBUG, "Closing shell connection after error: " + e.getMessage());
+						close(key);
+					}
+				}
+
+				registerResponses();
+				closeIdleConnections();
+			}
+		} catch (ClosedSelectorException e) {
+			// Shutdown.
+		} catch (IOException e) {
+			if (running)
+				log.log(LogService.LOG_ERROR, "An Error occurred while while processing command.", e);
+		} finally {
+			closeAll();
+		}
+	}
+
+	/**
+	 * Stop serving.  The selector thread closes open connections and returns from run().
+	 */
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Close the selector, the server channel and every connection.
+	 */
+	private void closeAll() {
+		try {
+			for (SelectionKey key : selector.keys())
+				close(key);
+		} catch (ClosedSelectorException e) {
+			// Already closed.
+		}
+
+		try {
+			selector.close();
+		} catch (IOException e) {
+		}
+
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * @throws IOException
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+
+		if (channel == null)
+			return;
+
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+	}
+
+	/**
+	 * Read available input and dispatch a command once a full line has been received.
+	 *
+	 * @param key
+	 * @throws IOException
+	 */
+	private void read(SelectionKey key) throws IOException {
+		Connection c = (Connection) key.attachment();
+
+		if (c.channel.read(c.input) < 0)
+			c.eof = true;
+
+		if (dispatch(key, c))
+			return;
+
+		if (c.eof) {
+			// Client closed its output, a single command is whatever it sent.
+			if (!c.session && c.input.position() > 0)
+				submit(key, c, c.takeRemaining());
+			else
+				close(key);
+
+			return;
+		}
+
+		if (!c.input.hasRemaining()) {
+			if (c.input.capacity() >= MAX_LINE_LENGTH) {
+				log.log(LogService.LOG_WARNING, "Shell command from " + c.getClientName() + " is too long, closing connection.");
+				close(key);
+				return;
+			}
+
+			c.growInput();
+		}
+	}
+
+	/**
+	 * Dispatch the next command line that has been received, if any.
+	 *
+	 * @param key
+	 * @param c
+	 * @return true if a command was dispatched.
+	 */
+	private boolean dispatch(SelectionKey key, Connection c) {
+		String line = c.takeLine();
+
+		if (line == null)
+			return false;
+
+		if (c.first) {
+			c.first = false;
+
+			if (line.equals(ShellSession.SESSION_REQUEST)) {
+				c.session = true;
+				c.setNoDelay();
+
+				return dispatch(key, c);
+			}
+		}
+
+		submit(key, c, line);
+
+		return true;
+	}
+
+	/**
+	 * Run a command on a worker thread.  Nothing is read from the connection until the response has been written.
+	 *
+	 * @param key
+	 * @param c
+	 * @param line
+	 */
+	private void submit(SelectionKey key, Connection c, String line) {
+		key.interestOps(0);
+
+		try {
+			workers.execute(new CommandTask(c, line));
+		} catch (RejectedExecutionException e) {
+			log.log(LogService.LOG_WARNING, "Shell is busy, refusing command from " + c.getClientName() + ".");
+
+			try {
+				// Fits in the chunk queue, does not block.
+				c.writeResponse(ConsoleSocketListener.BUSY_MESSAGE);
+			} catch (IOException ioe) {
+				close(key);
+				return;
+			}
+
+			startWriting(key, c);
+		}
+	}
+
+	/**
+	 * Write as much of the response as the channel accepts.  Once it has all been written, the connection is closed,
+	 * or for a session the next command is dispatched.
+	 *
+	 * @param key
+	 * @throws IOException
+	 */
+	private void write(SelectionKey key) throws IOException {
+		Connection c = (Connection) key.attachment();
+
+		c.gather();
+
+		if (c.count > 0) {
+			if (c.channel.write(c.output, 0, c.count) > 0)
+				c.lastWrite = System.currentTimeMillis();
+			
+			c.removeWritten();
+
+			if (c.count > 0)
+				return;
+		}
+
+		if (!c.ended) {
+			// Wait for the command to produce more output.
+			key.interestOps(0);
+			return;
+		}
+
+		if (!c.session) {
+			close(key);
+			return;
+		}
+
+		c.ended = false;
+		c.lastActivity = System.currentTimeMillis();
+
+		if (!dispatch(key, c)) {
+			if (c.eof)
+				close(key);
+			else
+				key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Switch connections that have output waiting to writing.
+	 */
+	private void registerResponses() {
+		Connection c;
+
+		while ((c = responses.poll()) != null) {
+			SelectionKey key = c.channel.keyFor(selector);
+
+			if (key != null && key.isValid())
+				startWriting(key, c);
+		}
+	}
+
+	/**
+	 * @param key
+	 * @param c
+	 */
+	private static void startWriting(SelectionKey key, Connection c) {
+		// The client has until the write timeout to accept output from now on.
+		if (key.interestOps() != SelectionKey.OP_WRITE)
+			c.lastWrite = System.currentTimeMillis();
+		
+		key.interestOps(SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Close connections that have not sent a command in time, have not read output in time, or whose command gave up
+	 * waiting for the client.  Sessions may be idle for longer between commands.
+	 */
+	private void closeIdleConnections() {
+		long now = System.currentTimeMillis();
+
+		for (SelectionKey key : selector.keys()) {
+			Connection c = (Connection) key.attachment();
+
+			if (c == null || !key.isValid())
+				continue;
+			
+			if (c.closed) {
+				close(key);
+			} else if (key.interestOps() == SelectionKey.OP_READ && now - c.lastActivity > c.getTimeout()) {
+				log.log(LogService.LOG_WARNING, "Shell client " + c.getClientName() + " did not send a command in " + c.getTimeout() + "ms.");
+				close(key);
+			} else if (key.interestOps() == SelectionKey.OP_WRITE && now - c.lastWrite > ConsoleSocketListener.CLIENT_WRITE_TIMEOUT) {
+				log.log(LogService.LOG_WARNING, "Shell client " + c.getClientName() + " did not read its response in " + ConsoleSocketListener.CLIENT_WRITE_TIMEOUT + "ms.");
+				close(key);
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 */
+	private static void close(SelectionKey key) {
+		key.cancel();
+
+		if (key.attachment() instanceof Connection)
+			((Connection) key.attachment()).closed = true;
+
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// Ignore close errors.
+		}
+	}
+
+	/**
+	 * Execute a command on a worker thread.  Output is handed to the selector thread as it is produced.
+	 */
+	private final class CommandTask implements Runnable {
+		private final Connection connection;
+		private final String line;
+
+		/**
+		 * @param connection
+		 * @param line
+		 */
+		public CommandTask(Connection connection, String line) {
+			this.connection = connection;
+			this.line = line;
+		}
+
+		@Override
+		public void run() {
+			ResponseWriter out = connection.getWriter();
+
+			try {
+				executor.executeCommand(line, out);
+
+				if (!connection.session && !out.isEmpty() && !out.endsWithNewline())
+					out.write(StringConstants.CRLF);
+
+				out.finish();
+			} catch (Exception e) {
+				if (!connection.closed)
+					log.log(LogService.LOG_ERROR, "An Error occurred while while processing command.", e);
+			} finally {
+				try {
+					connection.put(END);
+				} catch (IOException e) {
+					// Connection has been closed.
+				}
+			}
+		}
+	}
+
+	/**
+	 * The state of a client connection.
+	 */
+	private final class Connection {
+		private final SocketChannel channel;
+		private long lastActivity;
+		/**
+		 * Time output was last written, or the connection started waiting to write.
+		 */
+		private long lastWrite;
+		private ByteBuffer input;
+		private boolean first = true;
+		private boolean session = false;
+		private boolean eof = false;
+		private volatile boolean closed = false;
+		/**
+		 * Output produced by the running command and not yet taken by the selector thread.
+		 */
+		private final BlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<ByteBuffer>(MAX_PENDING_CHUNKS);
+		/**
+		 * Output being written by the selector thread.
+		 */
+		private final ByteBuffer[] output = new ByteBuffer[MAX_PENDING_CHUNKS];
+		private int count = 0;
+		/**
+		 * True once the selector thread has taken all output of the running command.
+		 */
+		private boolean ended = false;
+		/**
+		 * Encoder for the responses of this connection, used by one command at a time.
+		 */
+		private ResponseWriter writer;
+
+		/**
+		 * @param channel
+		 */
+		public Connection(SocketChannel channel) {
+			this.channel = channel;
+			this.lastActivity = System.currentTimeMillis();
+			this.input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		}
+
+		/**
+		 * @return Encoder for the responses of this connection.  Created once it is known if the connection is a session.
+		 */
+		public ResponseWriter getWriter() {
+			if (writer == null)
+				writer = new ResponseWriter(session) {
+
+					@Override
+					protected void emit(byte[] b, int off, int len) throws IOException {
+						ByteBuffer chunk = ByteBuffer.allocate(len);
+						chunk.put(b, off, len);
+						chunk.flip();
+						put(chunk);
+					}
+				};
+
+			return writer;
+		}
+
+		/**
+		 * Hand output to the selector thread.  Blocks while the client is slower than the command, for at most the write timeout.
+		 *
+		 * @param chunk
+		 * @throws IOException if the connection has been closed, or the client did not read output in time.
+		 */
+		public void put(ByteBuffer chunk) throws IOException {
+			long deadline = System.currentTimeMillis() + ConsoleSocketListener.CLIENT_WRITE_TIMEOUT;
+			
+			try {
+				while (!chunks.offer(chunk, 1, TimeUnit.SECONDS)) {
+					if (closed)
+						throw new IOException("Shell connection closed.");
+					
+					if (System.currentTimeMillis() > deadline) {
+						// The selector thread closes the connection.
+						closed = true;
+						selector.wakeup();
+						throw new IOException("Shell client " + getClientName() + " did not read its response in time.");
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+
+			responses.add(this);
+			selector.wakeup();
+		}
+
+		/**
+		 * Write a complete response from the selector thread.
+		 *
+		 * @param resp
+		 * @throws IOException
+		 */
+		public void writeResponse(String resp) throws IOException {
+			getWriter().write(resp);
+			getWriter().finish();
+			put(END);
+		}
+
+		/**
+		 * Take output from the running command.
+		 */
+		public void gather() {
+			while (count < output.length && !ended) {
+				ByteBuffer chunk = chunks.poll();
+
+				if (chunk == null)
+					break;
+
+				if (chunk == END)
+					ended = true;
+				else
+					output[count++] = chunk;
+			}
+		}
+
+		/**
+		 * Drop output that has been written.
+		 */
+		public void removeWritten() {
+			int written = 0;
+
+			while (written < count && !output[written].hasRemaining())
+				written++;
+
+			System.arraycopy(output, written, output, 0, count - written);
+
+			for (int i = count - written; i < count; ++i)
+				output[i] = null;
+
+			count -= written;
+		}
+
+		/**
+		 * @return time in milliseconds the client has to send its next command.
+		 */
+		public int getTimeout() {
+			return session ? ConsoleSocketListener.SESSION_TIMEOUT : ConsoleSocketListener.CLIENT_READ_TIMEOUT;
+		}
+
+		/**
+		 * @return The address of the client, for log messages.
+		 */
+		public String getClientName() {
+			try {
+				return channel.socket().getInetAddress().toString();
+			} catch (UnsupportedOperationException e) {
+				// Not a TCP connection.
+				return "local socket client";
+			}
+		}
+
+		/**
+		 * Send responses without delay, a session client waits on each one.
+		 */
+		public void setNoDelay() {
+			try {
+				channel.socket().setTcpNoDelay(true);
+			} catch (IOException e) {
+				// Responses are delayed at worst.
+			} catch (UnsupportedOperationException e) {
+				// Not a TCP connection, there is no delay to turn off.
+			}
+		}
+
+		/**
+		 * Remove the first line from the input.
+		 *
+		 * @return the line without its line break, or null if no full line has been received.
+		 */
+		public String takeLine() {
+			byte[] b = input.array();
+
+			for (int i = 0; i < input.position(); ++i)
+				if (b[i] == '\n') {
+					String line = new String(b, 0, i).trim();
+					input.flip();
+					input.position(i + 1);
+					input.compact();
+
+					return line;
+				}
+
+			return null;
+		}
+
+		/**
+		 * Remove all input.
+		 *
+		 * @return the input as a line.
+		 */
+		public String takeRemaining() {
+			String line = new String(input.array(), 0, input.position()).trim();
+			input.clear();
+
+			return line;
+		}
+
+		/**
+		 * Double the size of the input buffer.
+		 */
+		public void growInput() {
+			ByteBuffer larger = ByteBuffer.allocate(Math.min(input.capacity() * 2, MAX_LINE_LENGTH));
+			input.flip();
+			larger.put(input);
+			input = larger;
+		}
+	}
+}
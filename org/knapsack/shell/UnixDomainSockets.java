@@ -0,0 +1,152 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.shell;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Access to UNIX domain socket channels.  These are only available from Java 16, so they are looked up at runtime
+ * and knapsack still runs on older JVMs without them.
+ * 
+ * @author kgilmer
+ *
+ */
+public final class UnixDomainSockets {
+	private static final Object UNIX_FAMILY;
+	private static final Method ADDRESS_OF;
+	private static final Method OPEN_SERVER;
+	private static final Method OPEN_CLIENT;
+	private static final Method BIND;
+	private static final Method CONNECT;
+
+	static {
+		Object family = null;
+		Method addressOf = null, openServer = null, openClient = null, bind = null, connect = null;
+
+		try {
+			Class<?> familyClass = Class.forName("java.net.ProtocolFamily");
+			Class<?> addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+
+			family = Class.forName("java.net.StandardProtocolFamily").getField("UNIX").get(null);
+			addressOf = addressClass.getMethod("of", String.class);
+			openServer = ServerSocketChannel.class.getMethod("open", familyClass);
+			openClient = SocketChannel.class.getMethod("open", familyClass);
+			bind = ServerSocketChannel.class.getMethod("bind", SocketAddress.class, int.class);
+			connect = SocketChannel.class.getMethod("connect", SocketAddress.class);
+		} catch (Exception e) {
+			// Not supported by this JVM.
+			family = null;
+		}
+
+		UNIX_FAMILY = family;
+		ADDRESS_OF = addressOf;
+		OPEN_SERVER = openServer;
+		OPEN_CLIENT = openClient;
+		BIND = bind;
+		CONNECT = connect;
+	}
+
+	private UnixDomainSockets() {
+	}
+
+	/**
+	 * @return true if the JVM supports UNIX domain sockets.
+	 */
+	public static boolean isSupported() {
+		return UNIX_FAMILY != null;
+	}
+
+	/**
+	 * Bind a server channel to a socket file.  A file left from a previous run is replaced.
+	 * 
+	 * @param path socket file
+	 * @param backlog number of connections that may wait to be accepted
+	 * @return A bound server channel.
+	 * @throws IOException if the JVM does not support UNIX domain sockets, or on bind error.
+	 */
+	public static ServerSocketChannel bind(File path, int backlog) throws IOException {
+		if (path.exists() && !path.delete())
+			throw new IOException("Unable to delete: " + path);
+
+		ServerSocketChannel channel = (ServerSocketChannel) invoke(OPEN_SERVER, null, UNIX_FAMILY);
+
+		try {
+			invoke(BIND, channel, getAddress(path), backlog);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		return channel;
+	}
+
+	/**
+	 * @param path socket file
+	 * @return A channel connected to the socket.
+	 * @throws IOException if the JVM does not support UNIX domain sockets, or on connection error.
+	 */
+	public static SocketChannel connect(File path) throws IOException {
+		SocketChannel channel = (SocketChannel) invoke(OPEN_CLIENT, null, UNIX_FAMILY);
+
+		try {
+			invoke(CONNECT, channel, getAddress(path));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		return channel;
+	}
+
+	/**
+	 * @param path
+	 * @return The socket address of a socket file.
+	 * @throws IOException
+	 */
+	private static Object getAddress(File path) throws IOException {
+		return invoke(ADDRESS_OF, null, path.getAbsolutePath());
+	}
+
+	/**
+	 * @param method
+	 * @param target
+	 * @param args
+	 * @return The result of the method.
+	 * @throws IOException if UNIX domain sockets are not supported, or thrown by the method.
+	 */
+	private static Object invoke(Method method, Object target, Object... args) throws IOException {
+		if (!isSupported())
+			throw new IOException("UNIX domain sockets require Java 16 or later.");
+
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+
+			throw new IOException(e.getCause().toString());
+		} catch (IllegalAccessException e) {
+			throw new IOException(e.toString());
+		}
+	}
+}
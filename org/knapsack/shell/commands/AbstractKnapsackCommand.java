@@ -30,7 +30,7 @@ import org.osgi.framework.BundleContext;
  * @author kgilmer
  * 
  */
-public abstract class AbstractKnapsackCommand implements IKnapsackCommand {
+public abstract class AbstractKnapsackCommand implements IKnapsackCommand, Cloneable {
 
 	protected List<String> arguments;
 
@@ -74,4 +74,19 @@ public abstract class AbstractKnapsackCommand implements IKnapsackCommand {
 	public String getDescription() {
 		return "No help available for this command.";
 	}
+	
+	/**
+	 * The shell initializes and executes a copy of the registered command for each call, so that calls
+	 * running at the same time do not share arguments.  Fields are copied shallowly: state that must outlive a 
+	 * call is kept in objects the copies share, and commands with state that is not thread-safe override this.
+	 * 
+	 * @return A copy of this command for one call.
+	 */
+	public AbstractKnapsackCommand copy() {
+		try {
+			return (AbstractKnapsackCommand) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+	}
 }
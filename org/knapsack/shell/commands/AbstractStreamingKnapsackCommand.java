@@ -0,0 +1,55 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.shell.commands;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.knapsack.shell.pub.IStreamingKnapsackCommand;
+
+/**
+ * A helper base class for commands that write their output as it is produced.  Output is built a record
+ * at a time in a StringBuilder that is reused for every record.
+ * 
+ * @author kgilmer
+ * 
+ */
+public abstract class AbstractStreamingKnapsackCommand extends AbstractKnapsackCommand implements IStreamingKnapsackCommand {
+
+	/* (non-Javadoc)
+	 * @see org.knapsack.shell.pub.IKnapsackCommand#execute()
+	 */
+	public String execute() throws Exception {
+		StringWriter sw = new StringWriter();
+		execute(sw);
+		
+		return sw.toString();
+	}
+	
+	/**
+	 * Write a record to the output and clear the builder for the next one.
+	 * 
+	 * @param sb
+	 * @param out
+	 * @throws IOException
+	 */
+	protected static void flush(StringBuilder sb, Writer out) throws IOException {
+		out.append(sb);
+		sb.setLength(0);
+	}
+}
@@ -16,8 +16,13 @@
  */
 package org.knapsack.shell.commands;
 
+import java.io.IOException;
+import java.io.Writer;
+
+import org.knapsack.BundleMetadataCache;
+import org.knapsack.shell.pub.IRecordWriter;
+import org.knapsack.shell.pub.IStructuredKnapsackCommand;
 import org.osgi.framework.Bundle;
-import org.sprinkles.Applier;
 
 /**
  * Print bundle information.
@@ -25,17 +30,28 @@ import org.sprinkles.Applier;
  * @author kgilmer
  *
  */
-public class BundlesCommand extends AbstractKnapsackCommand {
+public class BundlesCommand extends AbstractStreamingKnapsackCommand implements IStructuredKnapsackCommand {
 	
 	@Override
-	public String execute() throws Exception {
-		final StringBuilder sb = new StringBuilder(1024 * 8);
-		
-		Applier.map(
-				context.getBundles(), 
-				new PrintBundleFunction(sb, arguments.contains("-v")));
+	public void execute(Writer out) throws Exception {
+		final StringBuilder sb = new StringBuilder(256);
+		PrintBundleFunction function = new PrintBundleFunction(sb, arguments.contains("-v"));
 		
-		return sb.toString();
+		for (Bundle b : context.getBundles()) {
+			function.apply(b);
+			flush(sb, out);
+		}
+	}
+
+	@Override
+	public void execute(IRecordWriter out) throws Exception {
+		for (Bundle b : context.getBundles()) {
+			out.beginRecord();
+			writeBundle(out, b);
+			out.field("state", getStateLabel(b.getState()));
+			out.field("location", b.getLocation());
+			out.endRecord();
+		}
 	}
 
 	@Override
@@ -61,16 +77,45 @@ public class BundlesCommand extends AbstractKnapsackCommand {
 		sb.append("]");		
 	}
 
+	/**
+	 * Write the id, name and version of a bundle as fields of the current record.
+	 * 
+	 * @param out
+	 * @param b
+	 * @throws IOException
+	 */
+	public static void writeBundle(IRecordWriter out, Bundle b) throws IOException {
+		BundleMetadataCache.BundleMetadata m = BundleMetadataCache.getInstance().get(b);
+		
+		out.field("id", m.getId());
+		out.field("name", m.getName());
+		out.field("version", m.getVersion());
+	}
+
+	/**
+	 * Write the id, name and version of a bundle as a record in a field of the current record.
+	 * 
+	 * @param out
+	 * @param name field name
+	 * @param b
+	 * @throws IOException
+	 */
+	public static void writeBundle(IRecordWriter out, String name, Bundle b) throws IOException {
+		if (b == null)
+			return;
+		
+		out.beginRecord(name);
+		writeBundle(out, b);
+		out.endRecord();
+	}
+
 	/**
 	 * @param b
 	 * @return The location on filesystem of bundle
 	 */
 	public static String getBundleLocation(Bundle b) {
 		//Remove "file://" prefix
-		StringBuilder sb = new StringBuilder();
-		sb.append(b.getLocation().substring(7));
-		
-		return sb.toString();
+		return BundleMetadataCache.getInstance().get(b).getLocation().substring(7);
 	}
 
 	/**
@@ -81,54 +126,44 @@ public class BundlesCommand extends AbstractKnapsackCommand {
 		if (b == null)
 			return "";
 		
-		String version = (String) b.getHeaders().get("Bundle-Version");	
-		
-		if (version == null) {
-			version = "";
-		}
-	
-		StringBuilder sb = new StringBuilder();
-		sb.append(version);
-		
-		return sb.toString();
+		return BundleMetadataCache.getInstance().get(b).getVersion();
 	}
 
 	public static String getBundleLabel(Bundle b) {
 		if (b == null)
 			return "";
 		
-		StringBuilder sb = new StringBuilder();
-		
-		BundlesCommand.appendId(sb, b.getBundleId());
-		sb.append(getBundleName(b));
-		sb.append(" (");
-		sb.append(BundlesCommand.getBundleVersion(b));
-		sb.append(")");
-	
-		return sb.toString();
+		return BundleMetadataCache.getInstance().get(b).getLabel();
 	}
 
 	public static String getBundleName(Bundle b) {
 		if (b == null)
 			return "[null]";
-				
-		String name = (String) b.getHeaders().get("Bundle-SymbolicName");
-	
-		if (name == null) {
-			name = (String) b.getHeaders().get("Bundle-Name");
-		}
-	
-		if (name == null) {
-			name = "Undefined";
-		}
-	
-		if (name.indexOf(";") > -1)
-			name = name.split(";")[0];
-	
-		StringBuilder sb = new StringBuilder();
-		sb.append(name);
 		
-		return sb.toString();
+		return BundleMetadataCache.getInstance().get(b).getName();
+	}
+
+	/**
+	 * @param state
+	 * @return The name of the state as defined in OSGi spec.
+	 */
+	public static String getStateLabel(int state) {
+		switch (state) {
+		case Bundle.UNINSTALLED:
+			return "UNINSTALLED";
+		case Bundle.INSTALLED:
+			return "INSTALLED";
+		case Bundle.RESOLVED:
+			return "RESOLVED";
+		case Bundle.STARTING:
+			return "STARTING";
+		case Bundle.STOPPING:
+			return "STOPPING";
+		case Bundle.ACTIVE:
+			return "ACTIVE";
+		default:
+			return "UNKNOWN";
+		}
 	}
 
 	/**
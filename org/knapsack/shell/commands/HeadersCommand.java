@@ -16,10 +16,14 @@
  */
 package org.knapsack.shell.commands;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Dictionary;
 import java.util.Enumeration;
 
 import org.knapsack.shell.StringConstants;
+import org.knapsack.shell.pub.IRecordWriter;
+import org.knapsack.shell.pub.IStructuredKnapsackCommand;
 import org.osgi.framework.Bundle;
 import org.sprinkles.Applier;
 
@@ -29,11 +33,11 @@ import org.sprinkles.Applier;
  * @author kgilmer
  *
  */
-public class HeadersCommand extends AbstractKnapsackCommand {
+public class HeadersCommand extends AbstractStreamingKnapsackCommand implements IStructuredKnapsackCommand {
 
 	@Override
-	public String execute() throws Exception {
-		final StringBuilder sb = new StringBuilder();
+	public void execute(Writer out) throws Exception {
+		final StringBuilder sb = new StringBuilder(1024);
 		PrintHeadersFunction function = new PrintHeadersFunction(sb);
 		
 		if (arguments.size() == 1) {
@@ -44,12 +48,45 @@ public class HeadersCommand extends AbstractKnapsackCommand {
 			if (b != null)
 				function.apply(b);
 			
+			flush(sb, out);
 		} else {
 			function.setPrintBundle(true);
-			Applier.map(context.getBundles(), function);
+			
+			for (Bundle b : context.getBundles()) {
+				function.apply(b);
+				flush(sb, out);
+			}
+		}
+	}
+
+	@Override
+	public void execute(IRecordWriter out) throws Exception {
+		if (arguments.size() == 1) {
+			Bundle b = context.getBundle(Integer.parseInt(arguments.get(0)));
+			
+			if (b != null)
+				writeHeaders(out, b);
+		} else {
+			for (Bundle b : context.getBundles())
+				writeHeaders(out, b);
+		}
+	}
+	
+	private void writeHeaders(IRecordWriter out, Bundle b) throws IOException {
+		Dictionary<?, ?> headers = b.getHeaders();
+		Enumeration<?> keys = headers.keys();
+		
+		out.beginRecord();
+		BundlesCommand.writeBundle(out, b);
+		out.beginRecord("headers");
+		
+		while (keys.hasMoreElements()) {
+			Object key = keys.nextElement();
+			out.field(key.toString(), headers.get(key).toString());
 		}
 		
-		return sb.toString();
+		out.endRecord();
+		out.endRecord();
 	}
 
 	@Override
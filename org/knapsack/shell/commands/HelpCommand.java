@@ -24,6 +24,8 @@ import org.knapsack.shell.CommandParser;
 import org.knapsack.shell.ConsoleSocketListener;
 import org.knapsack.shell.StringConstants;
 import org.knapsack.shell.pub.IKnapsackCommand;
+import org.knapsack.shell.pub.IRecordWriter;
+import org.knapsack.shell.pub.IStructuredKnapsackCommand;
 import org.sprinkles.Applier;
 
 /**
@@ -32,7 +34,7 @@ import org.sprinkles.Applier;
  * @author kgilmer
  * 
  */
-public class HelpCommand extends AbstractKnapsackCommand {
+public class HelpCommand extends AbstractKnapsackCommand implements IStructuredKnapsackCommand {
 	
 	private final CommandParser parser;
 
@@ -52,6 +54,27 @@ public class HelpCommand extends AbstractKnapsackCommand {
 		return sb.toString();
 	}
 	
+	@Override
+	public void execute(IRecordWriter out) throws Exception {
+		if (getArguments().contains("versions")) {
+			Properties p = new Properties();
+			p.load(Launcher.class.getResourceAsStream("knapsack.version"));
+			
+			out.beginRecord();
+			for (String name : p.stringPropertyNames())
+				out.field(name, p.getProperty(name));
+			out.endRecord();
+		} else {
+			for (IKnapsackCommand cmd : parser.getCommands().values()) {
+				out.beginRecord();
+				out.field("name", cmd.getName());
+				out.field("usage", cmd.getUsage());
+				out.field("description", cmd.getDescription());
+				out.endRecord();
+			}
+		}
+	}
+	
 	@Override
 	public boolean isValid() {
 		return arguments.size()< 2;
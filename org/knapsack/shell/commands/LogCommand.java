@@ -16,15 +16,23 @@
  */
 package org.knapsack.shell.commands;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.List;
 
+import org.knapsack.KnapsackLogger;
+import org.knapsack.Launcher;
+import org.knapsack.LogRing;
 import org.knapsack.shell.StringConstants;
+import org.knapsack.shell.pub.IRecordWriter;
+import org.knapsack.shell.pub.IStructuredKnapsackCommand;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.log.LogEntry;
 import org.osgi.service.log.LogReaderService;
@@ -32,12 +40,15 @@ import org.osgi.service.log.LogReaderService;
 /**
  * Print the OSGi log.
  * 
+ * Entries are read from the log ring of knapsack, if enabled, otherwise from the LogReader service.
+ * 
  * @author kgilmer
  *
  */
-public class LogCommand extends AbstractKnapsackCommand {
+public class LogCommand extends AbstractStreamingKnapsackCommand implements IStructuredKnapsackCommand {
+	private static final String [] LEVEL_NAMES = {"error", "warning", "info", "debug"};
 
-	private final SimpleDateFormat dateFormatter;
+	private SimpleDateFormat dateFormatter;
 	
 	/**
 	 * @param dateFormat
@@ -54,24 +65,180 @@ public class LogCommand extends AbstractKnapsackCommand {
 	}
 	
 	@Override
-	public String execute() throws Exception {
-		final StringBuilder sb = new StringBuilder();
+	public AbstractKnapsackCommand copy() {
+		LogCommand copy = (LogCommand) super.copy();
+		// SimpleDateFormat is not thread-safe.
+		copy.dateFormatter = (SimpleDateFormat) dateFormatter.clone();
+		
+		return copy;
+	}
+	
+	@Override
+	public void execute(Writer out) throws Exception {
+		final StringBuilder sb = new StringBuilder(256);
+		final boolean verbose = !arguments.contains("-b");
+		
+		for (LogEntry entry : getEntries())
+			addLogEntry(entry, sb, out, verbose);
+	}
+
+	@Override
+	public void execute(IRecordWriter out) throws Exception {
 		final boolean verbose = !arguments.contains("-b");
 		
+		for (LogEntry entry : getEntries()) {
+			out.beginRecord();
+			out.field("time", entry.getTime());
+			out.field("message", entry.getMessage());
+			
+			if (verbose) {
+				out.field("level", getLevelLabel(entry.getLevel()).trim());
+				BundlesCommand.writeBundle(out, "bundle", entry.getBundle());
+			}
+			
+			if (entry.getException() != null) {
+				StringWriter sw = new StringWriter();
+				entry.getException().printStackTrace(new PrintWriter(sw));
+				
+				out.field("exception", entry.getException().getMessage());
+				out.field("stackTrace", sw.toString());
+			}
+			
+			out.endRecord();
+		}
+	}
+	
+	@Override
+	public boolean isValid() {
+		try {
+			getLevel();
+			getLongOption("-i", LogRing.ANY_BUNDLE);
+			getSince();
+			getLongOption("-n", 0);
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @return log entries matching the options of the command, oldest first.
+	 */
+	private List<LogEntry> getEntries() {
+		int level = getLevel();
+		long bundleId = getLongOption("-i", LogRing.ANY_BUNDLE);
+		long since = getSince();
+		int count = (int) getLongOption("-n", 0);
+		
+		KnapsackLogger logger = Launcher.getLogger();
+		LogRing ring = logger == null ? null : logger.getLogRing();
+		
+		if (ring != null)
+			return ring.query(level, bundleId, since, count);
+		
 		ServiceReference ref = context.getServiceReference(LogReaderService.class.getName());
-		if (ref != null)
-		{
-		    LogReaderService reader = (LogReaderService) context.getService(ref);	
-		    
-		    Enumeration<LogEntry> latestLogs = reader.getLog();		   
-		    		    	    
-		    ArrayList<LogEntry> entryList = Collections.list(latestLogs);
-		    Collections.reverse(entryList);
-		    for (LogEntry entry : entryList)
-		    	addLogEntry(entry, sb, verbose);		 		 		    	
+		if (ref == null)
+			return Collections.emptyList();
+		
+		// The reader returns newest first, stop once enough entries are found.
+		LogReaderService reader = (LogReaderService) context.getService(ref);
+		List<LogEntry> entries = new ArrayList<LogEntry>();
+		
+		for (Enumeration<LogEntry> e = reader.getLog(); e.hasMoreElements() && (count <= 0 || entries.size() < count);) {
+			LogEntry entry = e.nextElement();
+			
+			if (since > 0 && entry.getTime() < since)
+				break;
+			
+			if (level > 0 && entry.getLevel() > level)
+				continue;
+			
+			if (bundleId != LogRing.ANY_BUNDLE && (entry.getBundle() == null || entry.getBundle().getBundleId() != bundleId))
+				continue;
+			
+			entries.add(entry);
 		}
 		
-		return sb.toString();
+		Collections.reverse(entries);
+		return entries;
+	}
+	
+	/**
+	 * @return level of the -l option, as a number or a name, or 0 if not specified.
+	 */
+	private int getLevel() {
+		String value = getOption("-l");
+		
+		if (value == null)
+			return 0;
+		
+		for (int i = 0; i < LEVEL_NAMES.length; ++i)
+			if (LEVEL_NAMES[i].startsWith(value.toLowerCase()))
+				return i + 1;
+		
+		return Integer.parseInt(value);
+	}
+	
+	/**
+	 * @return time of the -s option, or 0 if not specified.  The option is either milliseconds since the epoch or
+	 * a duration before now such as 30s, 10m, 2h or 1d.
+	 */
+	private long getSince() {
+		String value = getOption("-s");
+		
+		if (value == null)
+			return 0;
+		
+		long unit;
+		switch (value.charAt(value.length() - 1)) {
+		case 's':
+			unit = 1000;
+			break;
+		case 'm':
+			unit = 60 * 1000;
+			break;
+		case 'h':
+			unit = 60 * 60 * 1000;
+			break;
+		case 'd':
+			unit = 24 * 60 * 60 * 1000;
+			break;
+		default:
+			return Long.parseLong(value);
+		}
+		
+		return System.currentTimeMillis() - Long.parseLong(value.substring(0, value.length() - 1)) * unit;
+	}
+	
+	/**
+	 * @param name
+	 * @param defaultValue
+	 * @return numeric value of option or defaultValue if not specified.
+	 */
+	private long getLongOption(String name, long defaultValue) {
+		String value = getOption(name);
+		
+		if (value == null)
+			return defaultValue;
+		
+		return Long.parseLong(value);
+	}
+	
+	/**
+	 * @param name
+	 * @return argument following the option name, or null if the option is not specified.
+	 */
+	private String getOption(String name) {
+		int i = arguments.indexOf(name);
+		
+		if (i == -1)
+			return null;
+		
+		if (i == arguments.size() - 1 || arguments.get(i + 1).length() == 0)
+			throw new IllegalArgumentException("Option " + name + " requires a value.");
+		
+		return arguments.get(i + 1);
 	}
 
 	@Override
@@ -81,7 +248,7 @@ public class LogCommand extends AbstractKnapsackCommand {
 	
 	@Override
 	public String getUsage() {
-		return "[-b (brief)]";
+		return "[-b (brief)] [-l level] [-i bundle id] [-s since (ms or 30s, 10m, 2h, 1d ago)] [-n count]";
 	}
 	
 	@Override
@@ -93,7 +260,7 @@ public class LogCommand extends AbstractKnapsackCommand {
 		return dateFormatter.format(new Date(time));
 	}
 	
-	private void addLogEntry(LogEntry entry, StringBuilder sb, boolean verbose) {
+	private void addLogEntry(LogEntry entry, StringBuilder sb, Writer out, boolean verbose) throws IOException {
 
 		if (verbose) {
 			sb.append(formatDateTime(entry.getTime()));
@@ -114,12 +281,14 @@ public class LogCommand extends AbstractKnapsackCommand {
 		if (entry.getException() != null) {
 			sb.append(entry.getException().getMessage());
 			sb.append(StringConstants.CRLF);
+			flush(sb, out);
 			
-			StringWriter sWriter = new StringWriter();
-			PrintWriter pw = new PrintWriter(sWriter);
+			PrintWriter pw = new PrintWriter(out);
 			entry.getException().printStackTrace(pw);
-			sb.append(sWriter.toString());
-			sb.append(StringConstants.CRLF);
+			pw.flush();
+			out.write(StringConstants.CRLF);
+		} else {
+			flush(sb, out);
 		}
 	}
 	
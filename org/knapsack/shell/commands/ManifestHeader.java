@@ -0,0 +1,194 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.shell.commands;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parser for OSGi manifest headers such as Import-Package and Export-Package.  A header is a comma separated list of
+ * clauses, each clause is one or more paths followed by attributes (name=value) and directives (name:=value), all
+ * separated by semicolons.  Separators within quoted values, as in version="[1.0,2.0)", are part of the value.
+ * 
+ * @author kgilmer
+ *
+ */
+final class ManifestHeader {
+
+	private ManifestHeader() {
+	}
+
+	/**
+	 * @param header value of a manifest header, may be null.
+	 * @return The clauses of the header, empty if there are none.
+	 */
+	public static List<Clause> parse(String header) {
+		if (header == null)
+			return Collections.emptyList();
+
+		List<Clause> clauses = new ArrayList<Clause>();
+
+		for (String clause : split(header, ',')) {
+			Clause c = new Clause();
+
+			for (String part : split(clause, ';')) {
+				int eq = indexOfUnquoted(part, '=');
+
+				if (eq < 0) {
+					c.paths.add(part);
+				} else if (eq > 0 && part.charAt(eq - 1) == ':') {
+					c.directives.put(part.substring(0, eq - 1).trim(), unquote(part.substring(eq + 1).trim()));
+					c.parameters.add(part);
+				} else {
+					c.attributes.put(part.substring(0, eq).trim(), unquote(part.substring(eq + 1).trim()));
+					c.parameters.add(part);
+				}
+			}
+
+			if (!c.paths.isEmpty())
+				clauses.add(c);
+		}
+
+		return clauses;
+	}
+
+	/**
+	 * Split a string at a separator that is not within quotes.  Parts are trimmed, empty parts are left out.
+	 * 
+	 * @param s
+	 * @param separator
+	 * @return The parts of the string.
+	 */
+	private static List<String> split(String s, char separator) {
+		List<String> parts = new ArrayList<String>();
+		boolean quoted = false;
+		int start = 0;
+
+		for (int i = 0; i <= s.length(); ++i) {
+			if (i < s.length()) {
+				char c = s.charAt(i);
+
+				if (c == '"')
+					quoted = !quoted;
+
+				if (quoted || c != separator)
+					continue;
+			}
+
+			String part = s.substring(start, i).trim();
+			if (part.length() > 0)
+				parts.add(part);
+
+			start = i + 1;
+		}
+
+		return parts;
+	}
+
+	/**
+	 * @param s
+	 * @param ch
+	 * @return The index of the first occurrence of the character that is not within quotes, or -1.
+	 */
+	private static int indexOfUnquoted(String s, char ch) {
+		boolean quoted = false;
+
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+
+			if (c == '"')
+				quoted = !quoted;
+			else if (c == ch && !quoted)
+				return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @param s
+	 * @return The string without surrounding quotes.
+	 */
+	private static String unquote(String s) {
+		if (s.length() >= 2 && s.charAt(0) == '"' && s.charAt(s.length() - 1) == '"')
+			return s.substring(1, s.length() - 1);
+
+		return s;
+	}
+
+	/**
+	 * A clause of a manifest header.
+	 */
+	static final class Clause {
+		private final List<String> paths = new ArrayList<String>(1);
+		private final Map<String, String> attributes = new LinkedHashMap<String, String>();
+		private final Map<String, String> directives = new LinkedHashMap<String, String>();
+		private final List<String> parameters = new ArrayList<String>();
+
+		/**
+		 * @return The paths of the clause, such as package names.
+		 */
+		public List<String> getPaths() {
+			return paths;
+		}
+
+		/**
+		 * @return Attributes of the clause, with quotes removed from values.
+		 */
+		public Map<String, String> getAttributes() {
+			return attributes;
+		}
+
+		/**
+		 * @return Directives of the clause, with quotes removed from values.
+		 */
+		public Map<String, String> getDirectives() {
+			return directives;
+		}
+
+		/**
+		 * @return The version attribute, or null if there is none.
+		 */
+		public String getVersion() {
+			String version = attributes.get("version");
+
+			if (version == null)
+				version = attributes.get("specification-version");
+
+			return version;
+		}
+
+		/**
+		 * @return The attributes and directives as they were written in the header, separated by semicolons.
+		 */
+		public String getParameters() {
+			StringBuilder sb = new StringBuilder();
+
+			for (String p : parameters) {
+				if (sb.length() > 0)
+					sb.append(';');
+
+				sb.append(p);
+			}
+
+			return sb.toString();
+		}
+	}
+}
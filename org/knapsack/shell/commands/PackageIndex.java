@@ -0,0 +1,211 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.shell.commands;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.knapsack.shell.commands.ManifestHeader.Clause;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * An index of the bundles that export and import each package, from the Export-Package and Import-Package headers.
+ * The index is built once and then kept up to date as bundles are installed, updated and uninstalled.
+ * 
+ * @author kgilmer
+ *
+ */
+final class PackageIndex implements SynchronousBundleListener {
+	private final Map<String, List<Entry>> exporters = new HashMap<String, List<Entry>>();
+	private final Map<String, List<Entry>> importers = new HashMap<String, List<Entry>>();
+	/**
+	 * Packages in the headers of each bundle, so that a bundle can be removed from the index.
+	 */
+	private final Map<Long, List<String>> bundlePackages = new HashMap<Long, List<String>>();
+
+	private PackageIndex() {
+	}
+
+	/**
+	 * @param context
+	 * @return An index of the installed bundles that follows bundle changes.
+	 */
+	public static PackageIndex open(BundleContext context) {
+		PackageIndex index = new PackageIndex();
+
+		// Listen first so no change is missed while the index is built.
+		context.addBundleListener(index);
+
+		for (Bundle b : context.getBundles())
+			index.update(b);
+
+		return index;
+	}
+
+	@Override
+	public void bundleChanged(BundleEvent event) {
+		switch (event.getType()) {
+		case BundleEvent.INSTALLED:
+		case BundleEvent.UPDATED:
+			update(event.getBundle());
+			break;
+		case BundleEvent.UNINSTALLED:
+			remove(event.getBundle());
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * @param pkg package name
+	 * @return Bundles that export the package, in the order they were indexed.
+	 */
+	public synchronized List<Entry> getExporters(String pkg) {
+		return copy(exporters.get(pkg));
+	}
+
+	/**
+	 * @param pkg package name
+	 * @return Bundles that import the package, in the order they were indexed.
+	 */
+	public synchronized List<Entry> getImporters(String pkg) {
+		return copy(importers.get(pkg));
+	}
+
+	/**
+	 * Index the current headers of a bundle, replacing what was indexed for it before.
+	 * 
+	 * @param b
+	 */
+	private synchronized void update(Bundle b) {
+		remove(b);
+
+		List<String> packages = new ArrayList<String>();
+		index(b, b.getHeaders().get("Export-Package"), exporters, packages);
+		index(b, b.getHeaders().get("Import-Package"), importers, packages);
+
+		bundlePackages.put(b.getBundleId(), packages);
+	}
+
+	/**
+	 * @param b
+	 * @param header
+	 * @param index
+	 * @param packages packages indexed for the bundle
+	 */
+	private static void index(Bundle b, Object header, Map<String, List<Entry>> index, List<String> packages) {
+		if (header == null)
+			return;
+
+		for (Clause c : ManifestHeader.parse(header.toString()))
+			for (String pkg : c.getPaths()) {
+				List<Entry> entries = index.get(pkg);
+
+				if (entries == null) {
+					entries = new ArrayList<Entry>(2);
+					index.put(pkg, entries);
+				}
+
+				entries.add(new Entry(b, c.getVersion()));
+				packages.add(pkg);
+			}
+	}
+
+	/**
+	 * @param b
+	 */
+	private synchronized void remove(Bundle b) {
+		List<String> packages = bundlePackages.remove(b.getBundleId());
+
+		if (packages == null)
+			return;
+
+		for (String pkg : packages) {
+			remove(exporters, pkg, b);
+			remove(importers, pkg, b);
+		}
+	}
+
+	/**
+	 * @param index
+	 * @param pkg
+	 * @param b
+	 */
+	private static void remove(Map<String, List<Entry>> index, String pkg, Bundle b) {
+		List<Entry> entries = index.get(pkg);
+
+		if (entries == null)
+			return;
+
+		for (Iterator<Entry> i = entries.iterator(); i.hasNext();)
+			if (i.next().getBundle().getBundleId() == b.getBundleId())
+				i.remove();
+
+		if (entries.isEmpty())
+			index.remove(pkg);
+	}
+
+	/**
+	 * @param entries
+	 * @return A copy of the entries, which may be read outside of the lock.
+	 */
+	private static List<Entry> copy(List<Entry> entries) {
+		if (entries == null)
+			return Collections.emptyList();
+
+		return new ArrayList<Entry>(entries);
+	}
+
+	/**
+	 * A bundle exporting or importing a package.
+	 */
+	static final class Entry {
+		private final Bundle bundle;
+		private final String version;
+
+		/**
+		 * @param bundle
+		 * @param version
+		 */
+		public Entry(Bundle bundle, String version) {
+			this.bundle = bundle;
+			this.version = version;
+		}
+
+		/**
+		 * @return The exporting or importing bundle.
+		 */
+		public Bundle getBundle() {
+			return bundle;
+		}
+
+		/**
+		 * @return The version exported, or version range imported, or null if the header does not give one.
+		 */
+		public String getVersion() {
+			return version;
+		}
+	}
+}
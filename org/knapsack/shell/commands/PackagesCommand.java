@@ -16,12 +16,19 @@
  */
 package org.knapsack.shell.commands;
 
-import java.util.Collection;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.knapsack.shell.StringConstants;
+import org.knapsack.shell.commands.ManifestHeader.Clause;
+import org.knapsack.shell.commands.PackageIndex.Entry;
+import org.knapsack.shell.pub.IRecordWriter;
+import org.knapsack.shell.pub.IStructuredKnapsackCommand;
 import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
 import org.sprinkles.Applier;
-import org.sprinkles.Applier.Fn;
 
 /**
  * Print bundle package information.
@@ -29,11 +36,30 @@ import org.sprinkles.Applier.Fn;
  * @author kgilmer
  * 
  */
-public class PackagesCommand extends AbstractKnapsackCommand {
+public class PackagesCommand extends AbstractStreamingKnapsackCommand implements IStructuredKnapsackCommand {
+
+	/**
+	 * Exporters and importers of each package, built on first use and shared by all copies of the command.
+	 */
+	private final AtomicReference<PackageIndex> indexRef = new AtomicReference<PackageIndex>();
+	
+	private PackageIndex index;
 
 	@Override
-	public String execute() throws Exception {
-		final StringBuilder sb = new StringBuilder(1024 * 8);
+	public void initialize(List<String> arguments, BundleContext context) {
+		super.initialize(arguments, context);
+		
+		synchronized (indexRef) {
+			if (indexRef.get() == null)
+				indexRef.set(PackageIndex.open(context));
+		}
+		
+		index = indexRef.get();
+	}
+
+	@Override
+	public void execute(Writer out) throws Exception {
+		final StringBuilder sb = new StringBuilder(1024);
 		boolean brief = arguments.contains("-b");
 		
 		PrintPackagesForBundleFunction function = new PrintPackagesForBundleFunction(sb, brief);
@@ -52,13 +78,111 @@ public class PackagesCommand extends AbstractKnapsackCommand {
 				//Print package info
 				printPackageInfo(sb, la.trim(), brief);
 			}
+			
+			flush(sb, out);
 		} else {
 			//Print all bundle package data.
 			function.setPrintBundle(true);
-			Applier.map(context.getBundles(), function);
+			
+			for (Bundle b : context.getBundles()) {
+				function.apply(b);
+				flush(sb, out);
+			}
 		}
+	}
 
-		return sb.toString();
+	@Override
+	public void execute(IRecordWriter out) throws Exception {
+		boolean brief = arguments.contains("-b");
+		
+		if ((!brief && arguments.size() == 1) || (brief && arguments.size() == 2)) {
+			String la = arguments.get(arguments.size() - 1);
+			if (isNumber(la)) {
+				Bundle b = context.getBundle(Integer.parseInt(la));
+
+				if (b != null)
+					writePackages(out, b, brief);
+			} else {
+				writePackageInfo(out, la.trim());
+			}
+		} else {
+			for (Bundle b : context.getBundles())
+				writePackages(out, b, brief);
+		}
+	}
+
+	/**
+	 * Write a record of the packages a bundle imports and exports.
+	 * 
+	 * @param out
+	 * @param b
+	 * @param brief if true, package attributes are left out.
+	 * @throws IOException
+	 */
+	private void writePackages(IRecordWriter out, Bundle b, boolean brief) throws IOException {
+		out.beginRecord();
+		BundlesCommand.writeBundle(out, b);
+		writePackageList(out, "imports", b.getHeaders().get("Import-Package"), brief);
+		writePackageList(out, "exports", b.getHeaders().get("Export-Package"), brief);
+		out.endRecord();
+	}
+
+	/**
+	 * @param out
+	 * @param name field name
+	 * @param header value of a package header, may be null.
+	 * @param brief
+	 * @throws IOException
+	 */
+	private void writePackageList(IRecordWriter out, String name, Object header, boolean brief) throws IOException {
+		out.beginList(name);
+		
+		if (header != null)
+			for (Clause c : ManifestHeader.parse(header.toString()))
+				for (String pkg : c.getPaths()) {
+					out.beginRecord();
+					out.field("name", pkg);
+					out.field("version", c.getVersion());
+					if (!brief && !c.getParameters().isEmpty())
+						out.field("attributes", c.getParameters());
+					out.endRecord();
+				}
+		
+		out.endList();
+	}
+
+	/**
+	 * Write a record of the provider and consumers of the given package.
+	 * 
+	 * @param out
+	 * @param pkg
+	 * @throws IOException
+	 */
+	private void writePackageInfo(IRecordWriter out, String pkg) throws IOException {
+		out.beginRecord();
+		out.field("package", pkg);
+		writeEntries(out, "providers", index.getExporters(pkg));
+		writeEntries(out, "usedBy", index.getImporters(pkg));
+		out.endRecord();
+	}
+
+	/**
+	 * @param out
+	 * @param name field name
+	 * @param entries
+	 * @throws IOException
+	 */
+	private void writeEntries(IRecordWriter out, String name, List<Entry> entries) throws IOException {
+		out.beginList(name);
+		
+		for (Entry e : entries) {
+			out.beginRecord();
+			out.field("version", e.getVersion());
+			BundlesCommand.writeBundle(out, "bundle", e.getBundle());
+			out.endRecord();
+		}
+		
+		out.endList();
 	}
 
 	/**
@@ -70,30 +194,42 @@ public class PackagesCommand extends AbstractKnapsackCommand {
 	private void printPackageInfo(StringBuilder sb, String pkg, boolean brief) {
 		sb.append("Provided by");
 		sb.append(StringConstants.CRLF);
-		sb.append(StringConstants.TAB);
 		
-		Bundle providerBundle = Applier.find(context.getBundles(), new FindPackageProviderFunction(pkg, "Export-Package"));
+		List<Entry> providers = index.getExporters(pkg);
 		
-		if (providerBundle == null) 
+		if (providers.isEmpty()) {
+			sb.append(StringConstants.TAB);
 			sb.append("[NONE]");
-		else
-			if (!brief)
-				sb.append(BundlesCommand.getBundleLabel(providerBundle));
-			else
-				sb.append(BundlesCommand.getBundleName(providerBundle));
-
-		sb.append(StringConstants.CRLF);
+			sb.append(StringConstants.CRLF);
+		} else {
+			appendEntries(sb, providers, brief);
+		}
 		
 		sb.append("Used by");
 		sb.append(StringConstants.CRLF);
-		Collection<Bundle> consumerBundles = Applier.map(context.getBundles(), new FindPackageProviderFunction(pkg, "Import-Package"));
-		
-		for (Bundle b : consumerBundles) {
+		appendEntries(sb, index.getImporters(pkg), brief);
+	}
+
+	/**
+	 * @param sb
+	 * @param entries
+	 * @param brief if true, only bundle names are printed.
+	 */
+	private void appendEntries(StringBuilder sb, List<Entry> entries, boolean brief) {
+		for (Entry e : entries) {
 			sb.append(StringConstants.TAB);
-			if (!brief)
-				sb.append(BundlesCommand.getBundleLabel(b));
-			else
-				sb.append(BundlesCommand.getBundleName(b));
+			
+			if (!brief) {
+				sb.append(BundlesCommand.getBundleLabel(e.getBundle()));
+				
+				if (e.getVersion() != null) {
+					sb.append(StringConstants.TAB);
+					sb.append(e.getVersion());
+				}
+			} else {
+				sb.append(BundlesCommand.getBundleName(e.getBundle()));
+			}
+			
 			sb.append(StringConstants.CRLF);
 		}
 	}
@@ -151,20 +287,18 @@ public class PackagesCommand extends AbstractKnapsackCommand {
 			Object imports = b.getHeaders().get("Import-Package");
 			Object exports = b.getHeaders().get("Export-Package");
 			
-			FormatPackageElementFunction pf = new FormatPackageElementFunction(sb, brief);
-			
 			if (imports != null) {
 				sb.append("Imports");
 				sb.append(StringConstants.CRLF);
 				
-				Applier.map(imports.toString().split(","), pf);
+				appendPackages(ManifestHeader.parse(imports.toString()));
 			}
 			
 			if (exports != null) {
 				sb.append("Exports");
 				sb.append(StringConstants.CRLF);
 				
-				Applier.map(exports.toString().split(","), pf);		
+				appendPackages(ManifestHeader.parse(exports.toString()));
 			}
 			
 			if (printBundle) 
@@ -172,69 +306,25 @@ public class PackagesCommand extends AbstractKnapsackCommand {
 			
 			return b;
 		}
-	}
-	
-	private class FindPackageProviderFunction implements Fn<Bundle, Bundle> {
-
-		private final String pkg;
-		private final String header;
-
-		public FindPackageProviderFunction(String pkg, String header) {
-			this.pkg = pkg;
-			this.header = header;
-		}
-
-		@Override
-		public Bundle apply(final Bundle input) {
-			Object exportsLine = input.getHeaders().get(header);
-			
-			if (exportsLine == null)
-				return null;
-			
-			return Applier.find(exportsLine.toString().split(","), new Applier.Fn<String, Bundle>() {
 
-				@Override
-				public Bundle apply(String pkgName) {
-					String [] elems = pkgName.split(";");
-					
-					if (elems.length > 0 && elems[0].trim().equals(pkg))
-						return input;
+		/**
+		 * @param clauses clauses of a package header
+		 */
+		private void appendPackages(List<Clause> clauses) {
+			for (Clause c : clauses)
+				for (String pkg : c.getPaths()) {
+					sb.append(StringConstants.TAB);
+					sb.append(pkg);
 					
-					return null;
-				}
-			});			
-		}
-	}
-
-	private class FormatPackageElementFunction implements Fn<String, String> {
-
-		private final StringBuilder sb;
-		private final boolean brief;
-
-		public FormatPackageElementFunction(StringBuilder sb, boolean brief) {
-			this.sb = sb;
-			this.brief = brief;
-		}
-
-		@Override
-		public String apply(String input) {
-			String [] elems =  input.split(";");			
-			
-			sb.append(StringConstants.TAB);
-			sb.append(elems[0].trim());
-			
-			if (!brief) {
-				for (int i = 1; i < elems.length; ++i) {
-					sb.append(';');
-					sb.append(elems[i]);					
+					if (!brief && !c.getParameters().isEmpty()) {
+						sb.append(';');
+						sb.append(c.getParameters());
+					}
+					sb.append(StringConstants.CRLF);
 				}
-			}
-			sb.append(StringConstants.CRLF);
-			
-			return null;
 		}
 	}
-
+	
 	/**
 	 * Assumes input string like 'name=value'.
 	 * @param sb 
@@ -19,6 +19,8 @@ package org.knapsack.shell.commands;
 import java.util.Map.Entry;
 
 import org.knapsack.shell.StringConstants;
+import org.knapsack.shell.pub.IRecordWriter;
+import org.knapsack.shell.pub.IStructuredKnapsackCommand;
 import org.sprinkles.Applier;
 
 /**
@@ -27,7 +29,7 @@ import org.sprinkles.Applier;
  * @author kgilmer
  *
  */
-public class PrintConfCommand extends AbstractKnapsackCommand {
+public class PrintConfCommand extends AbstractKnapsackCommand implements IStructuredKnapsackCommand {
 
 	@Override
 	public String execute() throws Exception {
@@ -46,6 +48,16 @@ public class PrintConfCommand extends AbstractKnapsackCommand {
 		return sb.toString();
 	}
 
+	@Override
+	public void execute(IRecordWriter out) throws Exception {
+		for (Entry<Object, Object> e : System.getProperties().entrySet()) {
+			out.beginRecord();
+			out.field("name", e.getKey().toString());
+			out.field("value", e.getValue().toString());
+			out.endRecord();
+		}
+	}
+
 	@Override
 	public String getCommandName() {
 		return "properties";
@@ -16,12 +16,15 @@
  */
 package org.knapsack.shell.commands;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Arrays;
 
 import org.knapsack.shell.StringConstants;
+import org.knapsack.shell.pub.IRecordWriter;
+import org.knapsack.shell.pub.IStructuredKnapsackCommand;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.ServiceReference;
-import org.sprinkles.Applier;
 
 /**
  * Prints OSGi Service Registry information.
@@ -29,58 +32,120 @@ import org.sprinkles.Applier;
  * @author kgilmer
  *
  */
-public class ServicesCommand extends AbstractKnapsackCommand {
+public class ServicesCommand extends AbstractStreamingKnapsackCommand implements IStructuredKnapsackCommand {
 
 	@Override
-	public String execute() throws Exception {
-		final StringBuilder sb = new StringBuilder();
+	public void execute(Writer out) throws Exception {
+		final StringBuilder sb = new StringBuilder(256);
 		final boolean verbose = !arguments.contains("-b");
 		final boolean dependencies = arguments.contains("-d");
 		final boolean properties = arguments.contains("-p");
 		
-		Applier.map(context.getServiceReferences((String) null, null), 
-				new Applier.Fn<ServiceReference, ServiceReference>() {
-
-			@Override
-			public ServiceReference apply(ServiceReference sr) {
-				if (verbose) {
-					BundlesCommand.appendId(sb, ServicesCommand.getServiceId(sr));
-					sb.append(StringConstants.TAB);
-					sb.append(ServicesCommand.getServiceName(sr));
-					sb.append(StringConstants.TAB);
-					sb.append(BundlesCommand.getBundleLabel(sr.getBundle()));						
-					sb.append(StringConstants.CRLF);
-				} else {
-					BundlesCommand.appendId(sb, ServicesCommand.getServiceId(sr));						
-					sb.append(StringConstants.TAB);
-					sb.append(ServicesCommand.getServiceName(sr));
-					sb.append(StringConstants.CRLF);
-				}
-				
-				if (properties) {
-					sb.append(getServiceProperties(sr));
-				}
+		ServiceReference[] refs = context.getServiceReferences((String) null, null);
+		
+		if (refs == null)
+			return;
+		
+		for (ServiceReference sr : refs) {
+			if (verbose) {
+				BundlesCommand.appendId(sb, ServicesCommand.getServiceId(sr));
+				sb.append(StringConstants.TAB);
+				sb.append(ServicesCommand.getServiceName(sr));
+				sb.append(StringConstants.TAB);
+				sb.append(BundlesCommand.getBundleLabel(sr.getBundle()));						
+				sb.append(StringConstants.CRLF);
+			} else {
+				BundlesCommand.appendId(sb, ServicesCommand.getServiceId(sr));						
+				sb.append(StringConstants.TAB);
+				sb.append(ServicesCommand.getServiceName(sr));
+				sb.append(StringConstants.CRLF);
+			}
+			
+			if (properties) {
+				appendServiceProperties(sb, sr);
+			}
+			
+			if (dependencies) {
+				Bundle[] db = sr.getUsingBundles();
 				
-				if (dependencies) {
-					Bundle[] db = sr.getUsingBundles();
-					
-					if (db != null)
-						for (Bundle b : Arrays.asList(db)) {
-							sb.append("\tUsed by ");
-							sb.append(BundlesCommand.getBundleLabel(b));
-							sb.append(StringConstants.CRLF);
-						}
-				}
+				if (db != null)
+					for (Bundle b : Arrays.asList(db)) {
+						sb.append("\tUsed by ");
+						sb.append(BundlesCommand.getBundleLabel(b));
+						sb.append(StringConstants.CRLF);
+					}
+			}
+			
+			flush(sb, out);
+		}
+	}
+	
+	@Override
+	public void execute(IRecordWriter out) throws Exception {
+		final boolean dependencies = arguments.contains("-d");
+		final boolean properties = arguments.contains("-p");
+		
+		ServiceReference[] refs = context.getServiceReferences((String) null, null);
+		
+		if (refs == null)
+			return;
+		
+		for (ServiceReference sr : refs) {
+			out.beginRecord();
+			out.field("id", getServiceId(sr));
+			
+			out.beginList("objectClass");
+			for (String name : (String[]) sr.getProperty("objectClass"))
+				out.value(name);
+			out.endList();
+			
+			BundlesCommand.writeBundle(out, "bundle", sr.getBundle());
+			
+			if (properties)
+				writeServiceProperties(out, sr);
+			
+			if (dependencies) {
+				Bundle[] db = sr.getUsingBundles();
 				
-				return sr;
+				out.beginList("usedBy");
+				if (db != null)
+					for (Bundle b : db) {
+						out.beginRecord();
+						BundlesCommand.writeBundle(out, b);
+						out.endRecord();
+					}
+				out.endList();
 			}
-		});
+			
+			out.endRecord();
+		}
+	}
+	
+	private void writeServiceProperties(IRecordWriter out, ServiceReference sr) throws IOException {
+		out.beginRecord("properties");
 		
-		return sb.toString();
+		for (String key : sr.getPropertyKeys()) {
+			if (key.equals("service.id") || key.equals("objectClass"))
+				continue;
+			
+			Object o = sr.getProperty(key);
+			
+			if (o instanceof Object[]) {
+				out.beginList(key);
+				for (Object e : (Object[]) o)
+					out.value(String.valueOf(e));
+				out.endList();
+			} else if (o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte) {
+				out.field(key, ((Number) o).longValue());
+			} else {
+				out.field(key, String.valueOf(o));
+			}
+		}
+		
+		out.endRecord();
 	}
 	
-	private String getServiceProperties(ServiceReference sr) {
-		StringBuffer sb = new StringBuffer();
+	private void appendServiceProperties(StringBuilder sb, ServiceReference sr) {
 		
 		for (String key : Arrays.asList(sr.getPropertyKeys())) {
 			if (key.equals("service.id") || key.equals("objectClass"))
@@ -108,9 +173,7 @@ public class ServicesCommand extends AbstractKnapsackCommand {
 				sb.append("]");
 			}	
 			sb.append(StringConstants.CRLF);
-		}		
-
-		return sb.toString();
+		}
 	}
 
 	@Override
@@ -0,0 +1,112 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.shell.commands;
+
+import org.knapsack.StartupTimeline;
+import org.knapsack.StartupTimeline.Span;
+import org.knapsack.shell.StringConstants;
+import org.knapsack.shell.pub.IRecordWriter;
+import org.knapsack.shell.pub.IStructuredKnapsackCommand;
+
+/**
+ * Print the timeline of knapsack startup.
+ *
+ * @author kgilmer
+ *
+ */
+public class StartupCommand extends AbstractKnapsackCommand implements IStructuredKnapsackCommand {
+
+	@Override
+	public String execute() throws Exception {
+		StartupTimeline timeline = StartupTimeline.getInstance();
+		boolean phasesOnly = arguments.contains("-p");
+		StringBuilder sb = new StringBuilder(1024 * 4);
+
+		if (timeline.isRecording()) {
+			sb.append("Startup has not completed.");
+			sb.append(StringConstants.CRLF);
+		} else {
+			sb.append("Startup completed in ");
+			sb.append(timeline.getDuration());
+			sb.append("ms.");
+			sb.append(StringConstants.CRLF);
+		}
+
+		for (Span s : timeline.getSpans()) {
+			if (phasesOnly && !s.getCategory().equals(StartupTimeline.PHASE))
+				continue;
+
+			pad(sb, Long.toString(s.getStart() - timeline.getBootTime()), 7);
+			pad(sb, Long.toString(s.getDuration()), 7);
+			sb.append("  ");
+			sb.append(s.getCategory());
+			pad(sb, "", 9 - s.getCategory().length());
+			sb.append(s.getName());
+			sb.append(StringConstants.CRLF);
+		}
+
+		return sb.toString();
+	}
+
+	@Override
+	public void execute(IRecordWriter out) throws Exception {
+		StartupTimeline timeline = StartupTimeline.getInstance();
+		boolean phasesOnly = arguments.contains("-p");
+
+		for (Span s : timeline.getSpans()) {
+			if (phasesOnly && !s.getCategory().equals(StartupTimeline.PHASE))
+				continue;
+
+			out.beginRecord();
+			out.field("category", s.getCategory());
+			out.field("name", s.getName());
+			out.field("thread", s.getThread());
+			out.field("start", s.getStart() - timeline.getBootTime());
+			out.field("duration", s.getDuration());
+			out.endRecord();
+		}
+	}
+
+	/**
+	 * Right-align a value in a column.
+	 *
+	 * @param sb
+	 * @param value
+	 * @param width
+	 */
+	private static void pad(StringBuilder sb, String value, int width) {
+		for (int i = value.length(); i < width; ++i)
+			sb.append(' ');
+
+		sb.append(value);
+	}
+
+	@Override
+	public String getCommandName() {
+		return "startup";
+	}
+
+	@Override
+	public String getUsage() {
+		return "[-p (phases only)]";
+	}
+
+	@Override
+	public String getDescription() {
+		return "Print the start offset and duration in milliseconds of startup phases and bundle installs and starts.";
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.shell.pub;
+
+import java.io.IOException;
+
+/**
+ * A sink for the structured output of shell commands.  Output is a sequence of records, each made of named fields.  
+ * A field may hold a value, a nested record, or a list of values or records.  The shell encodes records as they
+ * are written, in the output format the client asked for.
+ * 
+ * Calls must be balanced: every beginRecord() and beginList() is followed by the matching endRecord() or endList().
+ * 
+ * @author kgilmer
+ *
+ */
+public interface IRecordWriter {
+	/**
+	 * Start a record.  Outside of a record this starts a top level record, within a list it starts an element of the list.
+	 * 
+	 * @throws IOException
+	 */
+	public void beginRecord() throws IOException;
+
+	/**
+	 * Start a record that is the value of a field of the current record.
+	 * 
+	 * @param name field name
+	 * @throws IOException
+	 */
+	public void beginRecord(String name) throws IOException;
+
+	/**
+	 * End the current record.
+	 * 
+	 * @throws IOException
+	 */
+	public void endRecord() throws IOException;
+
+	/**
+	 * Start a list that is the value of a field of the current record.  Elements are added with value() or beginRecord().
+	 * 
+	 * @param name field name
+	 * @throws IOException
+	 */
+	public void beginList(String name) throws IOException;
+
+	/**
+	 * End the current list.
+	 * 
+	 * @throws IOException
+	 */
+	public void endList() throws IOException;
+
+	/**
+	 * Write a field of the current record.
+	 * 
+	 * @param name field name
+	 * @param value field value, may be null.
+	 * @throws IOException
+	 */
+	public void field(String name, String value) throws IOException;
+
+	/**
+	 * Write a numeric field of the current record.
+	 * 
+	 * @param name field name
+	 * @param value field value
+	 * @throws IOException
+	 */
+	public void field(String name, long value) throws IOException;
+
+	/**
+	 * Add a value to the current list.
+	 * 
+	 * @param value may be null.
+	 * @throws IOException
+	 */
+	public void value(String value) throws IOException;
+}
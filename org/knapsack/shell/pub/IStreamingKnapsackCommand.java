@@ -0,0 +1,37 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.shell.pub;
+
+import java.io.Writer;
+
+/**
+ * A shell command that writes its output as it is produced rather than returning it as one String.
+ * The shell calls execute(Writer) for these commands; execute() remains for callers that want the output as a String.
+ *
+ * @author kgilmer
+ *
+ */
+public interface IStreamingKnapsackCommand extends IKnapsackCommand {
+	/**
+	 * Execute the command.
+	 *
+	 * @param out writer the output of the command is written to.  The shell sends output to the client as it is written.
+	 *            The writer must not be closed by the command.
+	 * @throws Exception
+	 */
+	public void execute(Writer out) throws Exception;
+}
@@ -0,0 +1,35 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.shell.pub;
+
+/**
+ * A shell command that can write its output as records, for clients that ask for a machine-readable output format
+ * with the --format option.  The shell calls execute(IRecordWriter) for these commands when a format other than text
+ * is requested.  The output of other commands is returned as a single record with the field "output".
+ *
+ * @author kgilmer
+ *
+ */
+public interface IStructuredKnapsackCommand extends IKnapsackCommand {
+	/**
+	 * Execute the command.
+	 *
+	 * @param out writer the records of the command are written to.  Records are sent to the client as they are written.
+	 * @throws Exception
+	 */
+	public void execute(IRecordWriter out) throws Exception;
+}
@@ -0,0 +1,731 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.shell.pub;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.knapsack.FSHelper;
+import org.knapsack.Launcher;
+import org.knapsack.shell.ConsoleSocketListener;
+
+/**
+ * Measures the throughput and latency of the knapsack shell by running a mix of commands over many
+ * concurrent connections.  Each connection runs one command at a time, either one connection per command
+ * as the shell scripts do, or in a session (see {@link ShellSession}).
+ * 
+ * A request is refused if the shell could not be connected to or answered that it is busy, and failed if
+ * the connection broke or the shell answered with an error.  Only requests that were served count towards latency and 
+ * throughput, refused and failed requests are counted separately.  A connection that is refused backs off before trying again.
+ * 
+ * @author kgilmer
+ *
+ */
+public class LoadTester {
+	/**
+	 * Commands run and their relative weights if no mix is given.
+	 */
+	public static final String DEFAULT_MIX = "bundles=4,services -p=2,log=2,packages=1";
+	
+	private static final int DEFAULT_CONNECTIONS = 16;
+	private static final int DEFAULT_DURATION = 10;
+	private static final int DEFAULT_WARMUP = 2;
+	private static final String DEFAULT_HOST = "127.0.0.1";
+	
+	/**
+	 * Time in milliseconds a connection waits after its first refusal.  Doubled for each further refusal in a row.
+	 */
+	private static final long MIN_BACKOFF = 10;
+	private static final long MAX_BACKOFF = 1000;
+	
+	/**
+	 * Responses that start with one of these are counted as failed requests.
+	 */
+	private static final String[] ERROR_RESPONSES = {
+		"An error occurred while executing", "Unknown command:", "Unknown output format:" };
+	
+	private static final String USAGE = "Usage: LoadTester [options] [hostname] [port] | -r [root directory]" + "\n"
+			+ "  -c [connections]  concurrent connections (default " + DEFAULT_CONNECTIONS + ")" + "\n"
+			+ "  -d [seconds]      length of the measured run (default " + DEFAULT_DURATION + ")" + "\n"
+			+ "  -n [requests]     stop after this many measured requests" + "\n"
+			+ "  -w [seconds]      warm up before measuring (default " + DEFAULT_WARMUP + ")" + "\n"
+			+ "  -m [mix]          commands and weights (default \"" + DEFAULT_MIX + "\")" + "\n"
+			+ "  -s                run commands in sessions rather than one connection per command" + "\n"
+			+ "  -r [directory]    start knapsack in this JVM with this root directory and test its shell";
+
+	private final String host;
+	private final int port;
+	private final String[] commands;
+	private final int[] weights;
+	private final int connections;
+	private final boolean session;
+	
+	private volatile boolean measuring;
+	private volatile boolean running;
+	private AtomicLong remaining;
+
+	/**
+	 * @param host host name of shell
+	 * @param port port of shell
+	 * @param mix commands and weights, in the form "command=weight,command=weight".  Weights default to 1.
+	 * @param connections number of concurrent connections
+	 * @param session true to run the commands of a connection in a session
+	 */
+	public LoadTester(String host, int port, String mix, int connections, boolean session) {
+		if (connections < 1)
+			throw new IllegalArgumentException("At least one connection is required.");
+		
+		this.host = host;
+		this.port = port;
+		this.connections = connections;
+		this.session = session;
+		
+		String[] entries = mix.split(",");
+		commands = new String[entries.length];
+		weights = new int[entries.length];
+		
+		for (int i = 0; i < entries.length; ++i) {
+			// Commands may contain '=' in their arguments, the weight follows the last one.
+			String entry = entries[i].trim();
+			int sep = entry.lastIndexOf('=');
+			
+			if (sep > 0 && isNumber(entry.substring(sep + 1).trim())) {
+				commands[i] = entry.substring(0, sep).trim();
+				weights[i] = Integer.parseInt(entry.substring(sep + 1).trim());
+			} else {
+				commands[i] = entry;
+				weights[i] = 1;
+			}
+			
+			if (commands[i].length() == 0 || weights[i] < 1)
+				throw new IllegalArgumentException("Invalid command mix: " + mix);
+		}
+	}
+
+	/**
+	 * @param args input arguments
+	 * @throws Exception on failure to start knapsack or to run the test
+	 */
+	public static void main(String[] args) throws Exception {
+		int connections = DEFAULT_CONNECTIONS;
+		int duration = DEFAULT_DURATION;
+		int warmup = DEFAULT_WARMUP;
+		long requests = 0;
+		String mix = DEFAULT_MIX;
+		boolean session = false;
+		String rootDirectory = null;
+		List<String> params = new ArrayList<String>();
+		
+		try {
+			for (int i = 0; i < args.length; ++i) {
+				String arg = args[i];
+				
+				if (arg.equals("-s"))
+					session = true;
+				else if (arg.equals("-c"))
+					connections = Integer.parseInt(args[++i]);
+				else if (arg.equals("-d"))
+					duration = Integer.parseInt(args[++i]);
+				else if (arg.equals("-n"))
+					requests = Long.parseLong(args[++i]);
+				else if (arg.equals("-w"))
+					warmup = Integer.parseInt(args[++i]);
+				else if (arg.equals("-m"))
+					mix = args[++i];
+				else if (arg.equals("-r"))
+					rootDirectory = args[++i];
+				else if (arg.startsWith("-"))
+					throw new IllegalArgumentException(arg);
+				else
+					params.add(arg);
+			}
+		} catch (RuntimeException e) {
+			// Missing or malformed option values.
+			params = null;
+		}
+		
+		if (params == null || (rootDirectory == null && (params.size() < 1 || params.size() > 2)) || (rootDirectory != null && !params.isEmpty())) {
+			System.err.println("Invalid parameters");
+			System.out.println(USAGE);
+			System.exit(1);
+		}
+		
+		String host = DEFAULT_HOST;
+		int port;
+		
+		if (rootDirectory != null) {
+			port = startKnapsack(rootDirectory);
+		} else if (params.size() == 1) {
+			port = Integer.parseInt(params.get(0));
+		} else {
+			host = params.get(0);
+			port = Integer.parseInt(params.get(1));
+		}
+		
+		LoadTester tester = new LoadTester(host, port, mix, connections, session);
+		Result result = tester.run(warmup * 1000L, duration * 1000L, requests);
+		result.print(System.out);
+		
+		// Stop the knapsack started by this JVM.
+		System.exit(0);
+	}
+
+	/**
+	 * Start knapsack in this JVM.
+	 * 
+	 * @param rootDirectory root directory of knapsack
+	 * @return port of the shell
+	 */
+	private static int startKnapsack(String rootDirectory) {
+		Launcher.main(new String[] { rootDirectory });
+		ConsoleSocketListener shell = Launcher.getShell();
+		
+		if (shell == null) {
+			System.err.println("The shell of knapsack is disabled.");
+			System.exit(1);
+		}
+		
+		return shell.getPort();
+	}
+
+	/**
+	 * Run the commands until the duration has passed or the number of requests have been measured.
+	 * 
+	 * @param warmup time in milliseconds to run before measuring
+	 * @param duration time in milliseconds to measure, or 0 to run until the number of requests have been measured
+	 * @param requests number of requests to measure, or 0 to run for the duration
+	 * @return Result of the measured part of the run.
+	 * @throws InterruptedException if interrupted while waiting for the connections
+	 */
+	public Result run(long warmup, long duration, long requests) throws InterruptedException {
+		if (duration <= 0 && requests <= 0)
+			throw new IllegalArgumentException("A duration or a number of requests is required.");
+		
+		remaining = new AtomicLong(requests > 0 ? requests : Long.MAX_VALUE);
+		running = true;
+		measuring = warmup <= 0;
+		
+		Worker[] workers = new Worker[connections];
+		CountDownLatch done = new CountDownLatch(connections);
+		
+		for (int i = 0; i < connections; ++i) {
+			workers[i] = new Worker(i, done);
+			workers[i].start();
+		}
+		
+		if (warmup > 0) {
+			Thread.sleep(warmup);
+			measuring = true;
+		}
+		
+		long start = System.nanoTime();
+		
+		if (duration > 0)
+			done.await(duration, TimeUnit.MILLISECONDS);
+		else
+			done.await();
+		
+		running = false;
+		long elapsed = System.nanoTime() - start;
+		done.await();
+		
+		Result result = new Result(commands, connections, session);
+		
+		for (Worker w : workers)
+			result.add(w.stats);
+		
+		result.elapsed = elapsed;
+		
+		return result;
+	}
+
+	private static boolean isNumber(String s) {
+		if (s.length() == 0)
+			return false;
+		
+		for (int i = 0; i < s.length(); ++i)
+			if (!Character.isDigit(s.charAt(i)))
+				return false;
+		
+		return true;
+	}
+
+	/**
+	 * @param response response of the shell
+	 * @return true if the response is an error
+	 */
+	private static boolean isError(String response) {
+		for (String e : ERROR_RESPONSES)
+			if (response.startsWith(e) || response.contains("\"error\":\"" + e) || response.contains("error=" + e))
+				return true;
+		
+		return false;
+	}
+
+	/**
+	 * Runs commands over one connection, or one connection at a time.
+	 */
+	private class Worker extends Thread {
+		private final CountDownLatch done;
+		private final Random random;
+		private final int totalWeight;
+		final Stats[] stats;
+		private ShellSession shellSession;
+		private boolean fresh;
+		private long backoff = 0;
+
+		public Worker(int index, CountDownLatch done) {
+			super("Knapsack Load Tester " + index);
+			setDaemon(true);
+			this.done = done;
+			// Each worker runs the same sequence of commands in every run.
+			this.random = new Random(index);
+			
+			int total = 0;
+			for (int w : weights)
+				total += w;
+			this.totalWeight = total;
+			
+			stats = new Stats[commands.length];
+			for (int i = 0; i < stats.length; ++i)
+				stats[i] = new Stats();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					int command = nextCommand();
+					boolean measured = measuring;
+					
+					if (measured && remaining.getAndDecrement() <= 0)
+						break;
+					
+					long start = System.nanoTime();
+					int outcome = execute(commands[command]);
+					long latency = System.nanoTime() - start;
+					
+					if (measured)
+						stats[command].record(outcome, latency);
+					
+					if (outcome == Stats.REFUSED)
+						backOff();
+					else
+						backoff = 0;
+				}
+			} catch (InterruptedException e) {
+				// Stop.
+			} finally {
+				if (shellSession != null)
+					shellSession.close();
+				
+				done.countDown();
+			}
+		}
+
+		/**
+		 * Wait before trying again, so that a shell that refuses connections is not flooded with them.
+		 * 
+		 * @throws InterruptedException
+		 */
+		private void backOff() throws InterruptedException {
+			backoff = backoff == 0 ? MIN_BACKOFF : Math.min(backoff * 2, MAX_BACKOFF);
+			Thread.sleep(backoff);
+		}
+
+		private int nextCommand() {
+			int r = random.nextInt(totalWeight);
+			
+			for (int i = 0; i < weights.length; ++i) {
+				r -= weights[i];
+				
+				if (r < 0)
+					return i;
+			}
+			
+			return weights.length - 1;
+		}
+
+		/**
+		 * @param commandLine
+		 * @return One of Stats.OK, Stats.ERROR and Stats.REFUSED.
+		 */
+		private int execute(String commandLine) {
+			try {
+				String response = session ? executeInSession(commandLine) : executeOnce(commandLine);
+				
+				if (response.startsWith(ConsoleSocketListener.BUSY_MESSAGE))
+					return Stats.REFUSED;
+				
+				return isError(response) ? Stats.ERROR : Stats.OK;
+			} catch (ConnectException e) {
+				return Stats.REFUSED;
+			} catch (IOException e) {
+				// A busy shell answers a new session with its message instead of a frame.
+				boolean refused = fresh && shellSession != null && !(e instanceof EOFException);
+				
+				if (shellSession != null) {
+					shellSession.close();
+					shellSession = null;
+				}
+				
+				return refused ? Stats.REFUSED : Stats.ERROR;
+			}
+		}
+
+		private String executeOnce(String commandLine) throws IOException {
+			Socket socket = new Socket(host, port);
+			
+			try {
+				OutputStream out = socket.getOutputStream();
+				out.write((commandLine + "\n").getBytes());
+				out.flush();
+				
+				InputStream in = socket.getInputStream();
+				ByteArrayOutputStream response = new ByteArrayOutputStream();
+				FSHelper.copy(in, response);
+				
+				return response.toString();
+			} finally {
+				FSHelper.closeQuietly(socket);
+			}
+		}
+
+		private String executeInSession(String commandLine) throws IOException {
+			fresh = shellSession == null;
+			
+			if (fresh)
+				shellSession = new ShellSession(host, port);
+			
+			String response = shellSession.execute(commandLine);
+			fresh = false;
+			
+			return response;
+		}
+	}
+
+	/**
+	 * Outcomes of one command, and latencies of the requests that were served, recorded by one worker.
+	 */
+	static class Stats {
+		static final int OK = 0;
+		static final int ERROR = 1;
+		static final int REFUSED = 2;
+		
+		long errors;
+		long refused;
+		final Histogram latency = new Histogram();
+
+		void record(int outcome, long nanos) {
+			// A refusal or an error is often answered faster than a command, it would flatter latency and throughput.
+			if (outcome == ERROR)
+				errors++;
+			else if (outcome == REFUSED)
+				refused++;
+			else
+				latency.record(nanos / 1000);
+		}
+
+		void add(Stats s) {
+			errors += s.errors;
+			refused += s.refused;
+			latency.add(s.latency);
+		}
+	}
+
+	/**
+	 * A log-linear histogram: values are counted in 16 buckets for every power of two, so a bucket is
+	 * at most 1/16th wider than its lower bound.
+	 */
+	static class Histogram {
+		private static final int SUB_BITS = 4;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+		
+		private final long[] counts = new long[(64 - SUB_BITS + 1) * SUB_BUCKETS];
+		private long count;
+		private long min = Long.MAX_VALUE;
+		private long max;
+		private long sum;
+
+		void record(long value) {
+			if (value < 0)
+				value = 0;
+			
+			counts[index(value)]++;
+			count++;
+			sum += value;
+			
+			if (value < min)
+				min = value;
+			if (value > max)
+				max = value;
+		}
+
+		void add(Histogram h) {
+			for (int i = 0; i < counts.length; ++i)
+				counts[i] += h.counts[i];
+			
+			count += h.count;
+			sum += h.sum;
+			min = Math.min(min, h.min);
+			max = Math.max(max, h.max);
+		}
+
+		static int index(long value) {
+			if (value < SUB_BUCKETS)
+				return (int) value;
+			
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+			
+			return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+		}
+
+		/**
+		 * @param index
+		 * @return The smallest value counted in a bucket.
+		 */
+		static long lowerBound(int index) {
+			if (index < SUB_BUCKETS)
+				return index;
+			
+			int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+			
+			return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BITS);
+		}
+
+		/**
+		 * @param index
+		 * @return The largest value counted in a bucket.
+		 */
+		static long upperBound(int index) {
+			if (index < SUB_BUCKETS)
+				return index;
+			
+			return lowerBound(index) + (1L << (index / SUB_BUCKETS - 1)) - 1;
+		}
+
+		long getCount() {
+			return count;
+		}
+
+		long getMin() {
+			return count == 0 ? 0 : min;
+		}
+
+		long getMax() {
+			return max;
+		}
+
+		double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * @param percentile between 0 and 100
+		 * @return The upper bound of the bucket of the value at the percentile.
+		 */
+		long getPercentile(double percentile) {
+			if (count == 0)
+				return 0;
+			
+			long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+			long seen = 0;
+			
+			for (int i = 0; i < counts.length; ++i) {
+				seen += counts[i];
+				
+				if (seen >= target)
+					return Math.min(upperBound(i), max);
+			}
+			
+			return max;
+		}
+
+		/**
+		 * @param exponent
+		 * @return The number of values between 2^exponent and 2^(exponent + 1), or below 2 for exponent 0.
+		 */
+		long getCountOfPower(int exponent) {
+			long c = 0;
+			
+			for (int i = 0; i < counts.length; ++i) {
+				long lower = lowerBound(i);
+				
+				if (exponent == 0 ? lower < 2 : (lower >= (1L << exponent) && lower < (1L << (exponent + 1))))
+					c += counts[i];
+			}
+			
+			return c;
+		}
+	}
+
+	/**
+	 * Totals of a run.
+	 */
+	public static class Result {
+		private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+		private static final int BAR_WIDTH = 40;
+		
+		private final String[] commands;
+		private final int connections;
+		private final boolean session;
+		private final Stats[] stats;
+		private final Stats total = new Stats();
+		private long elapsed;
+
+		Result(String[] commands, int connections, boolean session) {
+			this.commands = commands;
+			this.connections = connections;
+			this.session = session;
+			this.stats = new Stats[commands.length];
+			
+			for (int i = 0; i < stats.length; ++i)
+				stats[i] = new Stats();
+		}
+
+		void add(Stats[] s) {
+			for (int i = 0; i < s.length; ++i) {
+				stats[i].add(s[i]);
+				total.add(s[i]);
+			}
+		}
+
+		/**
+		 * @return number of measured requests that were served, not counting errors and refusals.
+		 */
+		public long getRequests() {
+			return total.latency.getCount();
+		}
+
+		/**
+		 * @return number of requests the shell answered with an error, or whose connection broke
+		 */
+		public long getErrors() {
+			return total.errors;
+		}
+
+		/**
+		 * @return number of requests the shell did not accept
+		 */
+		public long getRefused() {
+			return total.refused;
+		}
+
+		/**
+		 * @return measured requests served per second
+		 */
+		public double getThroughput() {
+			return elapsed == 0 ? 0 : getRequests() / (elapsed / 1e9);
+		}
+
+		/**
+		 * @param percentile between 0 and 100
+		 * @return latency in microseconds at the percentile, of the requests that were served
+		 */
+		public long getLatency(double percentile) {
+			return total.latency.getPercentile(percentile);
+		}
+
+		/**
+		 * Print the totals, the latency distribution and the totals of each command.
+		 * 
+		 * @param out
+		 */
+		public void print(PrintStream out) {
+			Histogram h = total.latency;
+			
+			out.println(String.format(Locale.US, "%d requests served in %.2fs over %d %s (%.1f req/s)", 
+					getRequests(), elapsed / 1e9, connections, session ? "sessions" : "connections", getThroughput()));
+			out.println(String.format(Locale.US, "%d errors, %d refused (not included in latency and throughput)", getErrors(), getRefused()));
+			out.println();
+			
+			StringBuilder sb = new StringBuilder("Latency (ms): ");
+			sb.append(String.format(Locale.US, "min %s  mean %s", ms(h.getMin()), ms((long) h.getMean())));
+			for (double p : PERCENTILES)
+				sb.append(String.format(Locale.US, "  p%s %s", p == (long) p ? Long.toString((long) p) : Double.toString(p), ms(h.getPercentile(p))));
+			sb.append("  max ").append(ms(h.getMax()));
+			out.println(sb.toString());
+			out.println();
+			
+			printHistogram(out, h);
+			out.println();
+			
+			out.println(String.format(Locale.US, "%-24s %10s %10s %8s %8s %10s %10s %10s", 
+					"Command", "Served", "req/s", "Errors", "Refused", "p50 (ms)", "p99 (ms)", "max (ms)"));
+			
+			for (int i = 0; i < commands.length; ++i) {
+				Histogram ch = stats[i].latency;
+				
+				out.println(String.format(Locale.US, "%-24s %10d %10.1f %8d %8d %10s %10s %10s", 
+						commands[i], ch.getCount(), elapsed == 0 ? 0 : ch.getCount() / (elapsed / 1e9), stats[i].errors, stats[i].refused,
+						ms(ch.getPercentile(50)), ms(ch.getPercentile(99)), ms(ch.getMax())));
+			}
+		}
+
+		private static void printHistogram(PrintStream out, Histogram h) {
+			int first = -1;
+			int last = -1;
+			long most = 0;
+			
+			for (int e = 0; e < 63; ++e) {
+				long c = h.getCountOfPower(e);
+				
+				if (c > 0) {
+					if (first == -1)
+						first = e;
+					last = e;
+					most = Math.max(most, c);
+				}
+			}
+			
+			for (int e = first; e <= last && first != -1; ++e) {
+				long c = h.getCountOfPower(e);
+				StringBuilder bar = new StringBuilder();
+				
+				for (int i = 0; i < (int) (c * BAR_WIDTH / most); ++i)
+					bar.append('#');
+				
+				if (c > 0 && bar.length() == 0)
+					bar.append('.');
+				
+				out.println(String.format(Locale.US, "  < %10s ms %10d  %s", ms(1L << (e + 1)), c, bar));
+			}
+		}
+
+		/**
+		 * @param micros
+		 * @return microseconds as milliseconds.
+		 */
+		private static String ms(long micros) {
+			return String.format(Locale.US, "%.3f", micros / 1000.0);
+		}
+	}
+}
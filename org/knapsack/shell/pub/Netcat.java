@@ -16,13 +16,17 @@
  */
 package org.knapsack.shell.pub;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
 
 import org.knapsack.FSHelper;
+import org.knapsack.shell.UnixDomainSockets;
 
 /**
  * Emulates the portion of netcat that reads from stdin and writes to a socket.  This class
@@ -40,9 +44,14 @@ public class Netcat {
 	 */
 	public static void main(String[] args) throws UnknownHostException, IOException {
 		//Check input parameters
+		if (args.length == 1) {
+			run(new File(args[0]), System.in, System.out);
+			return;
+		}
+		
 		if (args.length != 2) {
 			System.err.println("Invalid parameters");
-			System.out.println("Usage: Netcat [hostname] [port]");
+			System.out.println("Usage: Netcat [hostname] [port] | [socket file]");
 			System.exit(1);
 		}
 		
@@ -70,4 +79,23 @@ public class Netcat {
 		FSHelper.copy(in, output);		
 		FSHelper.closeQuietly(socket);
 	}
+
+	/**
+	 * Execute a shell command by connecting to a UNIX domain socket, sending command, and reading response.
+	 * 
+	 * @param socketFile UNIX domain socket
+	 * @param input input stream to read command from
+	 * @param output output stream to send response to
+	 * @throws IOException on I/O error, or if the JVM does not support UNIX domain sockets
+	 */
+	public static void run(File socketFile, InputStream input, OutputStream output) throws IOException {
+		SocketChannel channel = UnixDomainSockets.connect(socketFile);
+		
+		try {
+			FSHelper.copy(input, Channels.newOutputStream(channel));
+			FSHelper.copy(Channels.newInputStream(channel), output);
+		} finally {
+			channel.close();
+		}
+	}
 }
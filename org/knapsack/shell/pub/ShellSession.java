@@ -0,0 +1,158 @@
+/*
+ *    Copyright 2011 Ken Gilmer
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.knapsack.shell.pub;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+import org.knapsack.FSHelper;
+
+/**
+ * A client for the persistent session mode of the knapsack shell.  One connection carries any number of commands.
+ *
+ * The client starts a session by sending the line {@link #SESSION_REQUEST}.  Each following line is executed as a command,
+ * in order, and each response is sent back as a series of frames as it is produced.  A frame is the length of a chunk of
+ * the response in bytes as a decimal number and a newline, followed by the chunk.  A frame of length 0 ends the response.
+ * Commands may be pipelined; responses are always returned in the order the commands were sent.  The session ends when
+ * the client closes the connection.
+ *
+ * @author kgilmer
+ *
+ */
+public class ShellSession {
+	/**
+	 * First line sent by a client to start a session.
+	 */
+	public static final String SESSION_REQUEST = "#session";
+
+	private final Socket socket;
+	private final OutputStream out;
+	private final InputStream in;
+	private byte[] buf = new byte[8192];
+
+	/**
+	 * Connect to the shell and start a session.
+	 *
+	 * @param host host name
+	 * @param port port
+	 * @throws UnknownHostException on name resolution error
+	 * @throws IOException on I/O error
+	 */
+	public ShellSession(String host, int port) throws UnknownHostException, IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		out = new BufferedOutputStream(socket.getOutputStream());
+		in = new BufferedInputStream(socket.getInputStream());
+
+		out.write((SESSION_REQUEST + "\n").getBytes());
+	}
+
+	/**
+	 * Send a command and wait for its response.
+	 *
+	 * @param commandLine command and arguments
+	 * @return response of command
+	 * @throws IOException on I/O error
+	 */
+	public String execute(String commandLine) throws IOException {
+		send(commandLine);
+
+		return receive();
+	}
+
+	/**
+	 * Send a command without waiting for its response.  Responses are read with receive() in the order commands were sent.
+	 *
+	 * @param commandLine command and arguments
+	 * @throws IOException on I/O error
+	 */
+	public void send(String commandLine) throws IOException {
+		out.write((commandLine + "\n").getBytes());
+		out.flush();
+	}
+
+	/**
+	 * @return the response to the oldest command that has not been received.
+	 * @throws IOException on I/O error, or if the shell closed the session.
+	 */
+	public String receive() throws IOException {
+		ByteArrayOutputStream resp = new ByteArrayOutputStream();
+		receive(resp);
+
+		return resp.toString();
+	}
+
+	/**
+	 * Copy the response to the oldest command that has not been received to a stream as it arrives.
+	 *
+	 * @param output stream to write response to
+	 * @throws IOException on I/O error, or if the shell closed the session.
+	 */
+	public void receive(OutputStream output) throws IOException {
+		int length;
+
+		while ((length = readFrameLength()) > 0) {
+			if (buf.length < length)
+				buf = new byte[length];
+
+			int read = 0;
+
+			while (read < length) {
+				int n = in.read(buf, read, length - read);
+
+				if (n == -1)
+					throw new EOFException("Session closed by shell.");
+
+				read += n;
+			}
+
+			output.write(buf, 0, length);
+		}
+	}
+
+	/**
+	 * @return length of the next frame.
+	 * @throws IOException
+	 */
+	private int readFrameLength() throws IOException {
+		int length = 0;
+		int c;
+
+		while ((c = in.read()) != '\n') {
+			if (c < '0' || c > '9')
+				throw new IOException(c == -1 ? "Session closed by shell." : "Invalid response frame.");
+
+			length = length * 10 + (c - '0');
+		}
+
+		return length;
+	}
+
+	/**
+	 * End the session.
+	 */
+	public void close() {
+		FSHelper.closeQuietly(socket);
+	}
+}
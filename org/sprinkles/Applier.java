@@ -5,12 +5,14 @@
  */
 package org.sprinkles;
 
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 
 /**
  * Map a function from one list to another. A way of applying a function to list
@@ -57,6 +59,21 @@ public final class Applier {
 		O apply(I input, O previousOutput);
 	}
 
+	/**
+	 * Combines the results of folding two adjacent parts of a set in a parallel fold.  
+	 * Must be associative: combining (a, b) and then c gives the same result as combining a with (b, c).
+	 *
+	 * @param <O> Output type of the fold
+	 */
+	public interface CombineFn<O> {
+		/**
+		 * @param left result of folding the first part
+		 * @param right result of folding the part that follows
+		 * @return result of folding both parts.
+		 */
+		O apply(O left, O right);
+	}
+
 	/**
 	 * Map a function over an input. Will recurse if any element is also Iterable.
 	 * @param input
@@ -79,19 +96,20 @@ public final class Applier {
 		if (input == null)
 			return Collections.emptyList();
 		
-		Collection<O> out = new ArrayList<O>();
-		Iterable<?> in;
+		Collection<O> out;
 
 		// If the input is iterable, treat as such, otherwise apply function to
 		// single element.
-		if (input instanceof Iterable)
-			in = (Iterable<?>) input;
-		else if (input instanceof Object[])
-			in = Arrays.asList((Object []) input);
-		else 
-			in = Arrays.asList(input);
-
-		applyMap(function, in, out, false, true, true);
+		if (input instanceof Iterable) {
+			out = new ArrayList<O>(input instanceof Collection ? ((Collection<?>) input).size() : 10);
+			applyMap(function, (Iterable<?>) input, out, false, true, true);
+		} else if (input instanceof Object[]) {
+			out = new ArrayList<O>(((Object []) input).length);
+			applyMap(function, (Object []) input, out, false, true, true);
+		} else {
+			out = new ArrayList<O>(1);
+			applyElement(function, input, out, false, true, true);
+		}
 
 		return Collections.unmodifiableCollection(out);
 	}
@@ -135,35 +153,100 @@ public final class Applier {
 	 *            Inspect input types, if is a Map, iterate over values of map.
 	 * @param recurse
 	 *            Call apply on any elements of collection that are iterable.
+	 * @return true if a match was found and stopFirstMatch is set.
 	 */
-	private static <I, O> void applyMap(Fn<I, O> function, Iterable<?> input
+	private static <I, O> boolean applyMap(Fn<I, O> function, Iterable<?> input
 			, Collection<O> collection, boolean stopFirstMatch, boolean adaptMap, boolean recurse) {
 		
-		for (Object child : input) {
-			boolean isIterable = child instanceof Collection;
+		// Lists with constant time access are walked by index, without an Iterator.
+		if (input instanceof List && input instanceof RandomAccess) {
+			List<?> list = (List<?>) input;
 			
-			if (!isIterable && adaptMap) {
-				if (child instanceof Map) {
-					child = (I) ((Map) child).values();
-					isIterable = true;
-				}
-			}
-
-			if (isIterable && recurse) {
+			for (int i = 0, size = list.size(); i < size; ++i)
+				if (applyElement(function, list.get(i), collection, stopFirstMatch, adaptMap, recurse))
+					return true;
+			
+			return false;
+		}
+		
+		for (Object child : input)
+			if (applyElement(function, child, collection, stopFirstMatch, adaptMap, recurse))
+				return true;
+		
+		return false;
+	}
+	
+	/**
+	 * The map function for arrays.  Arrays of a type that can not hold a Collection or Map are applied without inspecting elements.
+	 * 
+	 * @see #applyMap(Fn, Iterable, Collection, boolean, boolean, boolean)
+	 */
+	private static <I, O> boolean applyMap(Fn<I, O> function, Object[] input
+			, Collection<O> collection, boolean stopFirstMatch, boolean adaptMap, boolean recurse) {
+		
+		if (isFlat(input)) {
+			for (int i = 0; i < input.length; ++i) {
+				@SuppressWarnings("unchecked")
+				O result = function.apply((I) input[i]);
 				
-				applyMap(function, (Iterable<?>) child, collection, stopFirstMatch, adaptMap, recurse);
-			} else {
-				O result = function.apply((I) child);
-
 				if (result != null) {
 					collection.add(result);
-
-					if (stopFirstMatch) {
-						return;
-					}
+					
+					if (stopFirstMatch)
+						return true;
 				}
 			}
+			
+			return false;
 		}
+		
+		for (int i = 0; i < input.length; ++i)
+			if (applyElement(function, input[i], collection, stopFirstMatch, adaptMap, recurse))
+				return true;
+		
+		return false;
+	}
+	
+	/**
+	 * Apply the function to an element of the input, or recurse if the element is a Collection or Map.
+	 * 
+	 * @see #applyMap(Fn, Iterable, Collection, boolean, boolean, boolean)
+	 */
+	private static <I, O> boolean applyElement(Fn<I, O> function, Object child
+			, Collection<O> collection, boolean stopFirstMatch, boolean adaptMap, boolean recurse) {
+		boolean isIterable = child instanceof Collection;
+		
+		if (!isIterable && adaptMap) {
+			if (child instanceof Map) {
+				child = ((Map<?, ?>) child).values();
+				isIterable = true;
+			}
+		}
+
+		if (isIterable && recurse)
+			return applyMap(function, (Iterable<?>) child, collection, stopFirstMatch, adaptMap, recurse);
+		
+		@SuppressWarnings("unchecked")
+		O result = function.apply((I) child);
+
+		if (result != null) {
+			collection.add(result);
+			
+			return stopFirstMatch;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * @param input
+	 * @return true if the elements of the array can not be Collections or Maps, for example String[].
+	 */
+	private static boolean isFlat(Object[] input) {
+		Class<?> type = input.getClass().getComponentType();
+		
+		return Modifier.isFinal(type.getModifiers()) 
+				&& !Collection.class.isAssignableFrom(type) && !Map.class.isAssignableFrom(type);
 	}
 
 	/**
@@ -177,18 +260,14 @@ public final class Applier {
 	 * @return A collection of the results of the application of the function against the input element(s).
 	 */
 	public static <I, O> O fold(Object input, FoldFn<I, O> function) {
-		Collection<?> in;
-
 		// If the input is iterable, treat as such, otherwise apply function to
 		// single element.
 		if (input instanceof Collection)
-			in = (Collection<?>) input;
+			return applyFold(function, (Collection<?>) input, null, true, true);
 		else if (input instanceof Object[])
-			in = Arrays.asList((Object []) input);
-		else
-			in = Arrays.asList(input);
+			return applyFold(function, Arrays.asList((Object []) input), null, true, true);
 
-		return applyFold(function, in, null, true, true);
+		return applyFold(function, Collections.singletonList(input), null, true, true);
 	}
 
 	/**
@@ -204,24 +283,43 @@ public final class Applier {
 	private static <I, O> O applyFold(FoldFn<I, O> function, Iterable<?> input
 			, O result, boolean adaptMap, boolean recurse) {
 		
-		for (Object child : input) {
-			boolean isIterable = child instanceof Collection;
+		if (input instanceof List && input instanceof RandomAccess) {
+			List<?> list = (List<?>) input;
+			
+			for (int i = 0, size = list.size(); i < size; ++i)
+				result = foldElement(function, list.get(i), result, adaptMap, recurse);
+			
+			return result;
+		}
+		
+		for (Object child : input)
+			result = foldElement(function, child, result, adaptMap, recurse);
 
-			if (!isIterable && adaptMap) {
-				if (child instanceof Map) {
-					child = ((Map<?, ?>) child).values();
-					isIterable = true;
-				}
-			}
+		return result;
+	}
+	
+	/**
+	 * Apply the fold function to an element of the input, or recurse if the element is a Collection or Map.
+	 * 
+	 * @see #applyFold(FoldFn, Iterable, Object, boolean, boolean)
+	 */
+	private static <I, O> O foldElement(FoldFn<I, O> function, Object child
+			, O result, boolean adaptMap, boolean recurse) {
+		boolean isIterable = child instanceof Collection;
 
-			if (isIterable && recurse) {
-				result = applyFold(function, (Iterable<?>) child, result, adaptMap, recurse);
-			} else {
-				result = function.apply((I) child, result);
+		if (!isIterable && adaptMap) {
+			if (child instanceof Map) {
+				child = ((Map<?, ?>) child).values();
+				isIterable = true;
 			}
 		}
 
-		return result;
+		if (isIterable && recurse)
+			return applyFold(function, (Iterable<?>) child, result, adaptMap, recurse);
+		
+		@SuppressWarnings("unchecked")
+		I in = (I) child;
+		return function.apply(in, result);
 	}
 
 	/**
@@ -240,24 +338,62 @@ public final class Applier {
 		if (input == null)
 			return null;
 		
-		Collection<O> out = new ArrayList<O>();
-		Collection<?> in;
-		if (input instanceof Collection)
-			in = (Collection<?>) input;
-		else if (input instanceof Object[])
-			in = Arrays.asList((Object []) input);
-		else
-			in = Arrays.asList(input);
-
-		Applier.applyMap(function, in, out, true, true, true);
-
-		if (out.size() > 1) {
-			throw new RuntimeException(
-					"Sanity check failed; call to apply with stopFirstMatch should never add more than one element to collection.");
-		} else if (out.size() == 1) {
-			return out.iterator().next();
+		if (input instanceof Object[]) {
+			Object[] in = (Object []) input;
+			boolean flat = isFlat(in);
+			
+			for (int i = 0; i < in.length; ++i) {
+				@SuppressWarnings("unchecked")
+				O result = flat ? function.apply((I) in[i]) : findElement(function, in[i]);
+				
+				if (result != null)
+					return result;
+			}
+			
+			return null;
 		}
-
+		
+		return findElement(function, input);
+	}
+	
+	/**
+	 * Find without collecting results: the first non-null result is returned as soon as it is found, 
+	 * including from nested Collections.
+	 * 
+	 * @param function
+	 * @param child element, Collection, or Map whose values are searched
+	 * @return The first non-null result or null.
+	 */
+	private static <I, O> O findElement(Fn<I, O> function, Object child) {
+		if (child instanceof Map)
+			child = ((Map<?, ?>) child).values();
+		
+		if (!(child instanceof Collection)) {
+			@SuppressWarnings("unchecked")
+			I in = (I) child;
+			return function.apply(in);
+		}
+		
+		if (child instanceof List && child instanceof RandomAccess) {
+			List<?> list = (List<?>) child;
+			
+			for (int i = 0, size = list.size(); i < size; ++i) {
+				O result = findElement(function, list.get(i));
+				
+				if (result != null)
+					return result;
+			}
+			
+			return null;
+		}
+		
+		for (Object element : (Collection<?>) child) {
+			O result = findElement(function, element);
+			
+			if (result != null)
+				return result;
+		}
+		
 		return null;
 	}
 
@@ -0,0 +1,479 @@
+/*
+ * ParallelApplier.java - Parallel map, fold and find for sets.
+ * See https://github.com/kgilmer/Sprinkles
+ * Released into the public domain.
+ */
+package org.sprinkles;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sprinkles.Applier.CombineFn;
+import org.sprinkles.Applier.Fn;
+import org.sprinkles.Applier.FoldFn;
+
+/**
+ * Parallel versions of Applier.map(), fold() and find().  
+ * 
+ * The input is flattened as Applier does: nested Collections are recursed into, Maps are replaced by 
+ * their values and null results are dropped.  The elements are then split in halves, fork/join style, 
+ * until a part is small enough to be applied on one thread.  A thread that waits for the other half 
+ * of its part runs that half itself if no thread has picked it up yet, so calls may be nested and 
+ * any executor, even with a single thread, can be used.
+ * 
+ * Results are in the order of the input, as with Applier.
+ * 
+ * @author kgilmer
+ *
+ */
+public final class ParallelApplier {
+	
+	private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * Parts are split until they are smaller than the input divided by this number and the parallelism.
+	 */
+	private static final int PARTS_PER_THREAD = 4;
+	
+	private static final int NOT_FOUND = Integer.MAX_VALUE;
+	
+	private static ExecutorService defaultExecutor;
+	
+	/**
+	 * Stateless utility class.
+	 */
+	private ParallelApplier() {
+	}
+
+	/**
+	 * Map a function over an input in parallel, with a shared executor.
+	 * 
+	 * @param <I> The type that will be passed into the function as input.
+	 * @param <O> The type that will be returned from the function as output.
+	 * @param input input to the function, can be a single value, array, or Collection, all of which will be treated as a set.
+	 * @param function the function that will be applied to elements of the input.  Must be safe to call from several threads.
+	 * @return A collection of the results of the application of the function against the input element(s), in input order.
+	 */
+	public static <I, O> Collection<O> map(Object input, Fn<I, O> function) {
+		return map(input, function, getDefaultExecutor());
+	}
+	
+	/**
+	 * Map a function over an input in parallel.
+	 * 
+	 * @param <I> The type that will be passed into the function as input.
+	 * @param <O> The type that will be returned from the function as output.
+	 * @param input input to the function, can be a single value, array, or Collection, all of which will be treated as a set.
+	 * @param function the function that will be applied to elements of the input.  Must be safe to call from several threads.
+	 * @param executor executor parts of the input are applied on
+	 * @return A collection of the results of the application of the function against the input element(s), in input order.
+	 */
+	public static <I, O> Collection<O> map(Object input, final Fn<I, O> function, ExecutorService executor) {
+		if (input == null)
+			return Collections.emptyList();
+		
+		final Object[] elements = flatten(input, true);
+		final Object[] results = new Object[elements.length];
+		
+		new Part(executor, 0, elements.length, getGrain(elements.length)) {
+			@Override
+			@SuppressWarnings("unchecked")
+			protected Object applyRange(int from, int to) {
+				for (int i = from; i < to; ++i)
+					results[i] = function.apply((I) elements[i]);
+				
+				return null;
+			}
+		}.invoke();
+		
+		List<O> out = new ArrayList<O>(results.length);
+		for (Object r : results)
+			if (r != null) {
+				@SuppressWarnings("unchecked")
+				O o = (O) r;
+				out.add(o);
+			}
+		
+		return Collections.unmodifiableCollection(out);
+	}
+	
+	/**
+	 * Fold an input in parallel, with a shared executor.
+	 * 
+	 * @param <I> The type that will be passed into the function as input.
+	 * @param <O> The type that will be returned from the function as output.
+	 * @param input input to the function, can be a single value, array, or Collection, all of which will be treated as a set.
+	 * @param function the function that will be applied to elements of the input.  The first element of each part is passed null as previous output.
+	 * @param combiner associative function that combines the results of adjacent parts
+	 * @return The result of the fold, or null if the input is empty.
+	 */
+	public static <I, O> O fold(Object input, FoldFn<I, O> function, CombineFn<O> combiner) {
+		return fold(input, function, combiner, getDefaultExecutor());
+	}
+	
+	/**
+	 * Fold an input in parallel.  Each part is folded as Applier.fold() does, and the results of the parts 
+	 * are combined in input order.
+	 * 
+	 * @param <I> The type that will be passed into the function as input.
+	 * @param <O> The type that will be returned from the function as output.
+	 * @param input input to the function, can be a single value, array, or Collection, all of which will be treated as a set.
+	 * @param function the function that will be applied to elements of the input.  The first element of each part is passed null as previous output.
+	 * @param combiner associative function that combines the results of adjacent parts
+	 * @param executor executor parts of the input are folded on
+	 * @return The result of the fold, or null if the input is empty.
+	 */
+	public static <I, O> O fold(Object input, final FoldFn<I, O> function, final CombineFn<O> combiner, ExecutorService executor) {
+		final Object[] elements = flatten(input, false);
+		
+		if (elements.length == 0)
+			return null;
+		
+		@SuppressWarnings("unchecked")
+		O folded = (O) new Part(executor, 0, elements.length, getGrain(elements.length)) {
+			@Override
+			@SuppressWarnings("unchecked")
+			protected Object applyRange(int from, int to) {
+				O result = null;
+				
+				for (int i = from; i < to; ++i)
+					result = function.apply((I) elements[i], result);
+				
+				return result;
+			}
+			
+			@Override
+			@SuppressWarnings("unchecked")
+			protected Object combine(Object left, Object right) {
+				return combiner.apply((O) left, (O) right);
+			}
+		}.invoke();
+		
+		return folded;
+	}
+	
+	/**
+	 * Find in parallel, with a shared executor.
+	 * 
+	 * @param <I> The type that will be passed into the function as input.
+	 * @param <O> The type that will be returned from the function as output.
+	 * @param input input passed to function, if null is passed, null is returned without evaluation.
+	 * @param function to be executed.  Must be safe to call from several threads.
+	 * @return The first non-null result, in input order, from application of function.
+	 */
+	public static <I, O> O find(Object input, Fn<I, O> function) {
+		return find(input, function, getDefaultExecutor());
+	}
+	
+	/**
+	 * Apply a function to the elements of the input in parallel until a non-null value is returned.  Once an 
+	 * element matches, parts following it are cancelled or stop, and only parts preceding it continue 
+	 * so that the first match in input order is returned.
+	 * 
+	 * @param <I> The type that will be passed into the function as input.
+	 * @param <O> The type that will be returned from the function as output.
+	 * @param input input passed to function, if null is passed, null is returned without evaluation.
+	 * @param function to be executed.  Must be safe to call from several threads.
+	 * @param executor executor parts of the input are searched on
+	 * @return The first non-null result, in input order, from application of function.
+	 */
+	public static <I, O> O find(Object input, final Fn<I, O> function, ExecutorService executor) {
+		if (input == null)
+			return null;
+		
+		final Object[] elements = flatten(input, false);
+		final Object[] results = new Object[elements.length];
+		final AtomicInteger found = new AtomicInteger(NOT_FOUND);
+		
+		new Part(executor, 0, elements.length, getGrain(elements.length)) {
+			@Override
+			@SuppressWarnings("unchecked")
+			protected Object applyRange(int from, int to) {
+				for (int i = from; i < to && i < found.get(); ++i) {
+					Object r = function.apply((I) elements[i]);
+					
+					if (r != null) {
+						results[i] = r;
+						
+						int current;
+						while (i < (current = found.get()) && !found.compareAndSet(current, i))
+							;
+						
+						break;
+					}
+				}
+				
+				return null;
+			}
+			
+			@Override
+			protected boolean isCancelled(int from) {
+				return from > found.get();
+			}
+		}.invoke();
+		
+		int index = found.get();
+		if (index == NOT_FOUND)
+			return null;
+		
+		@SuppressWarnings("unchecked")
+		O result = (O) results[index];
+		return result;
+	}
+	
+	/**
+	 * Executor used when none is given: one daemon thread per available processor, created on first use.
+	 * 
+	 * @return the shared executor.
+	 */
+	private static synchronized ExecutorService getDefaultExecutor() {
+		if (defaultExecutor == null) {
+			defaultExecutor = Executors.newFixedThreadPool(PARALLELISM, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Sprinkles Applier " + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		
+		return defaultExecutor;
+	}
+	
+	/**
+	 * @param size number of elements
+	 * @return largest number of elements applied without splitting.
+	 */
+	private static int getGrain(int size) {
+		return Math.max(1, size / (PARALLELISM * PARTS_PER_THREAD));
+	}
+	
+	/**
+	 * Flatten the input to its elements in order, as Applier would visit them.
+	 * 
+	 * @param input
+	 * @param iterable true if an input that is Iterable but not a Collection is treated as a set, as Applier.map() does.
+	 * @return elements the function is applied to.
+	 */
+	private static Object[] flatten(Object input, boolean iterable) {
+		Iterable<?> in;
+		
+		if (input instanceof Collection || (iterable && input instanceof Iterable))
+			in = (Iterable<?>) input;
+		else if (input instanceof Object[])
+			in = Arrays.asList((Object []) input);
+		else 
+			in = Arrays.asList(input);
+		
+		List<Object> out = new ArrayList<Object>();
+		flatten(in, out);
+		
+		return out.toArray();
+	}
+
+	/**
+	 * @param input
+	 * @param out
+	 */
+	private static void flatten(Iterable<?> input, List<Object> out) {
+		for (Object child : input) {
+			if (child instanceof Map)
+				child = ((Map<?, ?>) child).values();
+			
+			if (child instanceof Collection)
+				flatten((Collection<?>) child, out);
+			else 
+				out.add(child);
+		}
+	}
+	
+	/**
+	 * A range of elements that is applied directly if small enough, or split in two halves.  The second half 
+	 * is forked to the executor while the first is applied on the current thread.
+	 */
+	private abstract static class Part implements Runnable {
+		private static final int NEW = 0;
+		private static final int RUNNING = 1;
+		private static final int DONE = 2;
+		
+		private final ExecutorService executor;
+		private final int from;
+		private final int to;
+		private final int grain;
+		private final AtomicInteger state = new AtomicInteger(NEW);
+		private Object result;
+		private Throwable error;
+		
+		/**
+		 * @param executor
+		 * @param from first element of the part
+		 * @param to element following the last element of the part
+		 * @param grain largest number of elements applied without splitting
+		 */
+		Part(ExecutorService executor, int from, int to, int grain) {
+			this.executor = executor;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+		
+		/**
+		 * Apply the function to a range of elements.
+		 * 
+		 * @param from
+		 * @param to
+		 * @return result of the range.
+		 */
+		protected abstract Object applyRange(int from, int to);
+		
+		/**
+		 * @param left
+		 * @param right
+		 * @return result of two adjacent ranges.
+		 */
+		protected Object combine(Object left, Object right) {
+			return null;
+		}
+		
+		/**
+		 * @param from first element of a range
+		 * @return true if the range no longer needs to be applied.
+		 */
+		protected boolean isCancelled(int from) {
+			return false;
+		}
+		
+		/**
+		 * Apply this part on the current thread, forking halves as needed.
+		 * 
+		 * @return result of the part.
+		 */
+		Object invoke() {
+			return compute(from, to);
+		}
+		
+		@Override
+		public void run() {
+			if (state.compareAndSet(NEW, RUNNING))
+				runClaimed();
+		}
+		
+		/**
+		 * @param from
+		 * @param to
+		 * @return result of the range.
+		 */
+		private Object compute(int from, int to) {
+			if (isCancelled(from))
+				return null;
+			
+			if (to - from <= grain)
+				return applyRange(from, to);
+			
+			int mid = (from + to) >>> 1;
+			Part right = fork(mid, to);
+			Object left = compute(from, mid);
+			
+			return combine(left, right.join());
+		}
+		
+		/**
+		 * @param from
+		 * @param to
+		 * @return part for a half, submitted to the executor.
+		 */
+		private Part fork(int from, int to) {
+			final Part outer = this;
+			Part p = new Part(executor, from, to, grain) {
+				@Override
+				protected Object applyRange(int from, int to) {
+					return outer.applyRange(from, to);
+				}
+				
+				@Override
+				protected Object combine(Object left, Object right) {
+					return outer.combine(left, right);
+				}
+				
+				@Override
+				protected boolean isCancelled(int from) {
+					return outer.isCancelled(from);
+				}
+			};
+			
+			try {
+				executor.execute(p);
+			} catch (RejectedExecutionException e) {
+				// Run by the thread that joins it.
+			}
+			
+			return p;
+		}
+		
+		/**
+		 * Wait for the part, or run it on the current thread if no thread has started it.
+		 * 
+		 * @return result of the part.
+		 */
+		private Object join() {
+			if (state.compareAndSet(NEW, RUNNING)) {
+				runClaimed();
+			} else {
+				synchronized (this) {
+					boolean interrupted = false;
+					
+					while (state.get() != DONE) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							interrupted = true;
+						}
+					}
+					
+					if (interrupted)
+						Thread.currentThread().interrupt();
+				}
+			}
+			
+			if (error instanceof RuntimeException)
+				throw (RuntimeException) error;
+			else if (error instanceof Error)
+				throw (Error) error;
+			
+			return result;
+		}
+		
+		/**
+		 * Compute the part and wake the thread joining it.
+		 */
+		private void runClaimed() {
+			Object r = null;
+			Throwable t = null;
+			
+			try {
+				r = compute(from, to);
+			} catch (Throwable e) {
+				t = e;
+			}
+			
+			synchronized (this) {
+				result = r;
+				error = t;
+				state.set(DONE);
+				notifyAll();
+			}
+		}
+	}
+}
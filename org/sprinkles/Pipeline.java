@@ -0,0 +1,281 @@
+/*
+ * Pipeline.java - Lazy composition of functions over sets.
+ * See https://github.com/kgilmer/Sprinkles
+ * Released into the public domain.
+ */
+package org.sprinkles;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.sprinkles.Applier.Fn;
+
+/**
+ * A lazy sequence of elements that functions are applied to as elements are pulled.  
+ * 
+ * Unlike nested calls to Applier.map(), no stage collects its results before the next stage starts: 
+ * each element travels through every stage before the next element is read from the input, and 
+ * iteration may stop at any time.  As with Applier, nested Collections in the input are recursed into, 
+ * Maps are replaced by their values, and null results of a function are dropped.  Null elements of the
+ * input are dropped as well.
+ * 
+ * A pipeline can be iterated more than once, in which case the stages are applied again.
+ * 
+ * @author kgilmer
+ *
+ * @param <T> Type of the elements
+ */
+public abstract class Pipeline<T> implements Iterable<T> {
+	
+	/**
+	 * @param <T> Type of the elements
+	 * @param input a single value, array, Iterable, or Collection, all of which will be treated as a set.  If null the pipeline is empty.
+	 * @return A pipeline over the elements of the input.
+	 */
+	public static <T> Pipeline<T> from(final Object input) {
+		return new Pipeline<T>() {
+			@Override
+			public Iterator<T> iterator() {
+				if (input == null)
+					return Collections.<T>emptyList().iterator();
+				
+				Iterator<?> in;
+				if (input instanceof Iterable)
+					in = ((Iterable<?>) input).iterator();
+				else if (input instanceof Object[])
+					in = Arrays.asList((Object []) input).iterator();
+				else
+					in = Collections.singletonList(input).iterator();
+				
+				return new FlatteningIterator<T>(in);
+			}
+		};
+	}
+
+	/**
+	 * @param <O> Type of the results
+	 * @param function applied to each element as it is pulled.  Elements for which it returns null are dropped.
+	 * @return A pipeline of the results of the function.
+	 */
+	public <O> Pipeline<O> map(final Fn<? super T, O> function) {
+		final Pipeline<T> source = this;
+		
+		return new Pipeline<O>() {
+			@Override
+			public Iterator<O> iterator() {
+				final Iterator<T> in = source.iterator();
+				
+				return new LookaheadIterator<O>() {
+					@Override
+					protected O computeNext() {
+						while (in.hasNext()) {
+							O result = function.apply(in.next());
+							
+							if (result != null)
+								return result;
+						}
+						
+						return endOfData();
+					}
+				};
+			}
+		};
+	}
+	
+	/**
+	 * @param <O> Type of the results
+	 * @param function returns a set of results for each element.  The results of an element are pulled before the next element is read.
+	 * @return A pipeline of the elements of the results of the function.
+	 */
+	public <O> Pipeline<O> expand(final Fn<? super T, ? extends Iterable<? extends O>> function) {
+		final Pipeline<T> source = this;
+		
+		return new Pipeline<O>() {
+			@Override
+			public Iterator<O> iterator() {
+				final Iterator<T> in = source.iterator();
+				
+				return new LookaheadIterator<O>() {
+					private Iterator<? extends O> current = Collections.<O>emptyList().iterator();
+					
+					@Override
+					protected O computeNext() {
+						while (true) {
+							while (current.hasNext()) {
+								O result = current.next();
+								
+								if (result != null)
+									return result;
+							}
+							
+							if (!in.hasNext())
+								return endOfData();
+							
+							Iterable<? extends O> results = function.apply(in.next());
+							if (results != null)
+								current = results.iterator();
+						}
+					}
+				};
+			}
+		};
+	}
+	
+	/**
+	 * @param count maximum number of elements
+	 * @return A pipeline that ends after count elements.  The input is not read further.
+	 */
+	public Pipeline<T> limit(final int count) {
+		final Pipeline<T> source = this;
+		
+		return new Pipeline<T>() {
+			@Override
+			public Iterator<T> iterator() {
+				final Iterator<T> in = source.iterator();
+				
+				return new LookaheadIterator<T>() {
+					private int remaining = count;
+					
+					@Override
+					protected T computeNext() {
+						if (remaining <= 0 || !in.hasNext())
+							return endOfData();
+						
+						remaining--;
+						return in.next();
+					}
+				};
+			}
+		};
+	}
+	
+	/**
+	 * @return The first element, or null if the pipeline is empty.  Only the elements needed to produce it are read from the input.
+	 */
+	public T first() {
+		Iterator<T> i = iterator();
+		
+		return i.hasNext() ? i.next() : null;
+	}
+	
+	/**
+	 * Pull every element into a collection.
+	 * 
+	 * @param <C> Type of the collection
+	 * @param out collection elements are added to
+	 * @return out
+	 */
+	public <C extends Collection<? super T>> C into(C out) {
+		for (T element : this)
+			out.add(element);
+		
+		return out;
+	}
+	
+	/**
+	 * @return A list of every element, in order.
+	 */
+	public List<T> toList() {
+		return into(new ArrayList<T>());
+	}
+	
+	/**
+	 * An iterator that computes its next element ahead of the call to next().
+	 *
+	 * @param <E> Type of the elements
+	 */
+	private abstract static class LookaheadIterator<E> implements Iterator<E> {
+		private E next;
+		private boolean ready;
+		private boolean done;
+		
+		/**
+		 * @return the next element, or the result of endOfData() if there are no more elements.
+		 */
+		protected abstract E computeNext();
+		
+		/**
+		 * @return null, marking the end of the elements.
+		 */
+		protected final E endOfData() {
+			done = true;
+			return null;
+		}
+		
+		@Override
+		public final boolean hasNext() {
+			if (!ready && !done) {
+				next = computeNext();
+				ready = !done;
+			}
+			
+			return ready;
+		}
+		
+		@Override
+		public final E next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			
+			ready = false;
+			E e = next;
+			next = null;
+			return e;
+		}
+		
+		@Override
+		public final void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+	
+	/**
+	 * Iterates over the leaves of nested Collections, with Maps replaced by their values, as Applier does.
+	 *
+	 * @param <E> Type of the elements
+	 */
+	private static final class FlatteningIterator<E> extends LookaheadIterator<E> {
+		private final LinkedList<Iterator<?>> stack = new LinkedList<Iterator<?>>();
+		
+		/**
+		 * @param input
+		 */
+		private FlatteningIterator(Iterator<?> input) {
+			stack.addFirst(input);
+		}
+
+		@Override
+		protected E computeNext() {
+			while (!stack.isEmpty()) {
+				Iterator<?> top = stack.getFirst();
+				
+				if (!top.hasNext()) {
+					stack.removeFirst();
+					continue;
+				}
+				
+				Object child = top.next();
+				
+				if (child instanceof Map)
+					child = ((Map<?, ?>) child).values();
+				
+				if (child instanceof Collection)
+					stack.addFirst(((Collection<?>) child).iterator());
+				else if (child != null) {
+					@SuppressWarnings("unchecked")
+					E element = (E) child;
+					return element;
+				}
+			}
+			
+			return endOfData();
+		}
+	}
+}
@@ -11,6 +11,9 @@ import java.io.FilenameFilter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
 
 import org.sprinkles.Applier;
 import org.sprinkles.Applier.Fn;
@@ -40,6 +43,11 @@ public final class FileFunctions  {
 	 * Get all files and directories.  Assumes input is a File or Collection of Files.
 	 */
 	public static final Fn<File, Collection<File>> GET_FILES_AND_DIRS_FN = new GetFiles(true, true, null, null);	
+	/**
+	 * Lazily walk all files (not directories).  Directories are listed as the walk reaches them, so the first files 
+	 * are available before the whole tree is read.  Use with Pipeline.expand().
+	 */
+	public static final Fn<File, Iterable<File>> WALK_FILES_FN = new WalkFiles(new GetFiles(true, false, null, null));
 	
 	/**
 	 * A function that walks a directory tree and adds files to the result collection.
@@ -76,24 +84,37 @@ public final class FileFunctions  {
 			return c;
 		}
 		
+		/**
+		 * @param f
+		 * @return true if f is included in the result.
+		 */
+		private boolean includes(File f) {
+			return (f.isFile() && incFile) || (f.isDirectory() && incDir);
+		}
+		
+		/**
+		 * @param f
+		 * @return children of f that pass the filter, or null if f is not a directory.
+		 */
+		private File[] list(File f) {
+			if (ffilter != null)
+				return f.listFiles(ffilter);
+			else if (fnfilter != null)
+				return f.listFiles(fnfilter);
+			
+			return f.listFiles();
+		}
+		
 		/**
 		 * @param f base file
 		 * @param container container to add to
 		 */
 		private void fileToCollection(File f, Collection<File> container) {
-			if ((f.isFile() && incFile) || (f.isDirectory() && incDir)) {
+			if (includes(f)) {
 				container.add(f);
 			} 
 
-			File[] oa = null;
-			
-			if (ffilter != null) {
-				oa = f.listFiles(ffilter);
-			} else if (fnfilter != null) {
-				oa = f.listFiles(fnfilter);
-			} else {
-				oa = f.listFiles();
-			}
+			File[] oa = list(f);
 			
 			if (oa != null && oa.length > 0) {
 				for (File cf : Arrays.asList(oa)) {
@@ -102,4 +123,85 @@ public final class FileFunctions  {
 			}
 		}
 	}
+	
+	/**
+	 * A function that returns a lazy walk of a directory tree, visiting files in the same order as GetFiles.
+	 * 
+	 * @author kgilmer
+	 *
+	 */
+	public static class WalkFiles implements Applier.Fn<File, Iterable<File>> {
+		
+		private final GetFiles selector;
+
+		/**
+		 * @param selector defines which files are returned and which children are visited.
+		 */
+		public WalkFiles(GetFiles selector) {
+			this.selector = selector;
+		}
+
+		@Override
+		public Iterable<File> apply(final File root) {
+			return new Iterable<File>() {
+				@Override
+				public Iterator<File> iterator() {
+					return new Walk(root);
+				}
+			};
+		}
+		
+		/**
+		 * Depth-first walk that lists a directory when it is reached.
+		 */
+		private final class Walk implements Iterator<File> {
+			private final LinkedList<Iterator<File>> stack = new LinkedList<Iterator<File>>();
+			private File next;
+
+			/**
+			 * @param root
+			 */
+			private Walk(File root) {
+				stack.add(Arrays.asList(root).iterator());
+			}
+
+			@Override
+			public boolean hasNext() {
+				while (next == null && !stack.isEmpty()) {
+					Iterator<File> top = stack.getFirst();
+					
+					if (!top.hasNext()) {
+						stack.removeFirst();
+						continue;
+					}
+					
+					File f = top.next();
+					File[] children = selector.list(f);
+					
+					if (children != null && children.length > 0)
+						stack.addFirst(Arrays.asList(children).iterator());
+					
+					if (selector.includes(f))
+						next = f;
+				}
+				
+				return next != null;
+			}
+
+			@Override
+			public File next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				
+				File f = next;
+				next = null;
+				return f;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		}
+	}
 }
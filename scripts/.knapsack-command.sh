@@ -2,8 +2,67 @@
 # It simply forwards the entire command line to knapsack, waits for a response, 
 # And prints the response back to the user.
 #
+# If knapsack's control pipe exists, the command is written to it along with a 
+# private pipe for the response.  Otherwise, or if knapsack does not take the 
+# command in time, the command is sent to the shell's UNIX domain socket if 
+# there is one, or to the shell port.  If knapsack takes the command but does 
+# not start to respond in time, an error is printed.
+#
 # Do not edit this file, it is dynamically generated each time knapsack runs.
 
+# Seconds to wait for knapsack to take a command from the control pipe.  A pipe
+# left by a knapsack that is no longer running has no reader and would never
+# take it.
+CONTROL_TIMEOUT=2
+# Seconds to wait for knapsack to start to respond.  Longer than knapsack waits
+# for the response pipe to be opened, so that a late response is not mixed up.
+RESPONSE_TIMEOUT=15
+
+if [ -n "$KNAPSACK_CONTROL" ] && [ -p "$KNAPSACK_CONTROL" ]; then
+	# knapsack only accepts absolute response pipe paths without spaces.
+	RESPONSE_DIR="${TMPDIR:-/tmp}"
+	case "$RESPONSE_DIR" in
+		[!/]*|*[[:space:]]*) RESPONSE_DIR=/tmp ;;
+	esac
+	RESPONSE_PIPE="$RESPONSE_DIR/knapsack-response.$$"
+	rm -f "$RESPONSE_PIPE" "$RESPONSE_PIPE.timeout"
+	mkfifo -m 600 "$RESPONSE_PIPE" || exit 1
+	trap 'rm -f "$RESPONSE_PIPE" "$RESPONSE_PIPE.timeout"' EXIT
+	
+	echo "$RESPONSE_PIPE `basename $0` $@" > "$KNAPSACK_CONTROL" &
+	WRITER=$!
+	( sleep $CONTROL_TIMEOUT; kill $WRITER ) > /dev/null 2>&1 &
+	WATCHDOG=$!
+	
+	if wait $WRITER 2> /dev/null; then
+		kill $WATCHDOG 2> /dev/null
+		
+		# If knapsack does not open the response pipe in time, it is opened here so that the read ends.
+		( sleep $RESPONSE_TIMEOUT; : > "$RESPONSE_PIPE.timeout"; : > "$RESPONSE_PIPE" ) > /dev/null 2>&1 &
+		WATCHDOG=$!
+		exec 3< "$RESPONSE_PIPE"
+		kill $WATCHDOG 2> /dev/null
+		
+		while IFS= read -r line <&3 || [ -n "$line" ]; do
+			printf "%s\n" "$line"
+		done
+		exec 3<&-
+		
+		if [ -f "$RESPONSE_PIPE.timeout" ]; then
+			echo "knapsack did not respond." >&2
+			exit 1
+		fi
+		exit 0
+	fi
+	
+	kill $WATCHDOG 2> /dev/null
+fi
+
+if [ -n "$KNAPSACK_SOCKET" ] && [ -S "$KNAPSACK_SOCKET" ]; then
+	echo "`basename $0` $@" | $UNIX_COMMAND "$KNAPSACK_SOCKET"
+	exit $?
+fi
+
 if [ -z $KNAPSACK_PORT ]; then
 	echo "KNAPSACK_PORT must be set."
 	exit 1
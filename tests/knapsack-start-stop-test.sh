@@ -3,7 +3,7 @@
 describe "Knapsack Start/Stop Tests"
 
 it_should_be_startable() {
-	java -jar knapsack.jar &
+	java -Dorg.knapsack.shell.pipes=true -jar knapsack.jar &
 	sleep 1
 }
 